@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * <p>Common methods for the benchmarks. The samples of the tool are used as
+ * the application, by default they are located in the <em>tool/samples</em>
+ * folder relative to the benchmarks module, the system property
+ * <em>jspc.samples</em> can be used to set another location.</p>
+ *
+ * @author rmartinc
+ */
+public class BenchmarkUtils {
+
+    private BenchmarkUtils() {
+    }
+
+    public static File getSamples() throws IOException {
+        File samples = new File(System.getProperty("jspc.samples", "../tool/samples"));
+        if (!samples.isDirectory()) {
+            throw new IOException("Samples directory not found, use -Djspc.samples=<dir>: " + samples.getAbsolutePath());
+        }
+        return samples.getCanonicalFile();
+    }
+
+    public static Path createTempDirectory() throws IOException {
+        return Files.createTempDirectory("jspc-benchmark");
+    }
+
+    public static void delete(Path path) throws IOException {
+        if (path != null && Files.exists(path)) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks of the compilation of the samples. The <em>execute</em>
+ * benchmark compiles the whole application with different number of
+ * threads and modes (the output directory is new for every invocation).
+ * The <em>compileJsp</em> benchmarks compile a single page again and again
+ * (the JspC is executed in watch mode, so the class is removed before every
+ * compilation), every benchmark thread uses its own JspC and output
+ * directory, so the variant with all the threads measures the throughput
+ * per core.</p>
+ *
+ * @author rmartinc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JspCCompileBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ExecuteState {
+
+        @Param({"1", "2", "4"})
+        public int threadCount;
+
+        @Param({"default", "batch", "pipeline"})
+        public String mode;
+
+        private Path outputDir;
+
+        @Setup(Level.Invocation)
+        public void setup() throws Exception {
+            outputDir = BenchmarkUtils.createTempDirectory();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            BenchmarkUtils.delete(outputDir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PageState {
+
+        @Param({"simple.jsp", "jsp-include-main.jsp", "jstl-simple.jsp", "tld-in-jar-resources.jsp"})
+        public String page;
+
+        private Path outputDir;
+        private JspC jspc;
+        private String jsp;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            outputDir = BenchmarkUtils.createTempDirectory();
+            jsp = BenchmarkUtils.getSamples() + "/" + page;
+            jspc = new JspC()
+                    .setDebugLevel(org.apache.logging.log4j.Level.OFF)
+                    .setUriRoot(BenchmarkUtils.getSamples().getPath())
+                    .setOutputDir(outputDir.toString())
+                    .setWatch(true)
+                    .setThreadCount(1)
+                    .addPage(jsp);
+            JspCResults results = jspc.execute();
+            if (results.isError()) {
+                throw new IllegalStateException("Error compiling " + page, results.getErrors().get(0).getError());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            BenchmarkUtils.delete(outputDir);
+        }
+    }
+
+    @Benchmark
+    public JspCResults execute(ExecuteState state) throws Exception {
+        return new JspC()
+                .setDebugLevel(org.apache.logging.log4j.Level.OFF)
+                .setUriRoot(BenchmarkUtils.getSamples().getPath())
+                .setOutputDir(state.outputDir.toString())
+                .setFailOnError(false)
+                .setThreadCount(state.threadCount)
+                .setBatchCompile("batch".equals(state.mode))
+                .setPipeline("pipeline".equals(state.mode))
+                .execute();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void compileJsp(PageState state) {
+        state.jspc.compileJsp(state.jsp);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void compileJspAllThreads(PageState state) {
+        state.jspc.compileJsp(state.jsp);
+    }
+}
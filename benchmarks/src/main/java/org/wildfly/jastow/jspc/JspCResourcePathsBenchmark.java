@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Benchmarks of <em>JspCServletContext.getResourcePaths</em> with a
+ * class loader with a lot of jars that contain <em>META-INF/resources</em>.
+ * Every jar has its own directory and some files in a directory shared by
+ * all the jars. The <em>indexClassLoader</em> benchmark measures the
+ * creation of the index (all the jars are read), the other ones the
+ * lookups once the index is created.</p>
+ *
+ * @author rmartinc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JspCResourcePathsBenchmark {
+
+    private static final int ENTRIES_PER_JAR = 50;
+
+    @Param({"10", "100"})
+    public int jars;
+
+    private Path dir;
+    private URLClassLoader loader;
+    private JspCServletContext ctx;
+
+    private static void createJar(Path file, int idx) throws IOException {
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(file))) {
+            for (int i = 0; i < ENTRIES_PER_JAR; i++) {
+                String name = i % 2 == 0
+                        ? String.format("META-INF/resources/jar%d/dir%d/file%d.jsp", idx, i % 5, i)
+                        : String.format("META-INF/resources/shared/jar%d-file%d.txt", idx, i);
+                jar.putNextEntry(new JarEntry(name));
+                OutputStream os = jar;
+                os.write(name.getBytes(StandardCharsets.UTF_8));
+                jar.closeEntry();
+            }
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        dir = BenchmarkUtils.createTempDirectory();
+        Path webapp = Files.createDirectories(dir.resolve("webapp").resolve("WEB-INF").resolve("lib")).getParent().getParent();
+        Files.write(webapp.resolve("index.jsp"), "<p>index</p>".getBytes(StandardCharsets.UTF_8));
+        URL[] urls = new URL[jars];
+        for (int i = 0; i < jars; i++) {
+            Path jar = webapp.resolve("WEB-INF").resolve("lib").resolve("lib" + i + ".jar");
+            createJar(jar, i);
+            urls[i] = jar.toUri().toURL();
+        }
+        loader = new URLClassLoader(urls, null);
+        ctx = new JspCServletContext();
+        ctx.setUriRoot(webapp.toString());
+        ctx.setClassLoader(loader);
+        // create the index before the lookups
+        ctx.getResourceIndex();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        loader.close();
+        BenchmarkUtils.delete(dir);
+    }
+
+    private void lookup(Blackhole bh) {
+        bh.consume(ctx.getResourcePaths("/"));
+        bh.consume(ctx.getResourcePaths("/shared/"));
+        bh.consume(ctx.getResourcePaths("/jar0/dir0/"));
+    }
+
+    @Benchmark
+    public JspCResourceIndex indexClassLoader() {
+        return new JspCResourceIndex(loader);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void getResourcePaths(Blackhole bh) {
+        lookup(bh);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void getResourcePathsAllThreads(Blackhole bh) {
+        lookup(bh);
+    }
+}
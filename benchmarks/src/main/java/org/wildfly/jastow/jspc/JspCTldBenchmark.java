@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.jasper.deploy.TagLibraryInfo;
+import org.jboss.metadata.web.spec.TldMetaData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Benchmarks of the TLD parsing (<em>Utils.parseTld</em>) and the
+ * creation of the taglib information (<em>Utils.createTldInfo</em>). The
+ * TLD files of the samples and the standard tag library are read into
+ * memory first, so no IO is measured. Both operations are executed by the
+ * TLD scan threads, the variants with all the threads measure the
+ * throughput per core.</p>
+ *
+ * @author rmartinc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JspCTldBenchmark {
+
+    private static final String[] STANDARD_TLDS = {"c.tld", "fmt.tld", "fn.tld", "sql.tld", "x.tld"};
+
+    private final Map<String, byte[]> tlds = new LinkedHashMap<>();
+    private final Map<String, TldMetaData> parsed = new LinkedHashMap<>();
+
+    @Setup
+    public void setup() throws Exception {
+        try (Stream<Path> paths = Files.walk(BenchmarkUtils.getSamples().toPath())) {
+            for (Path path : paths.filter(p -> p.toString().endsWith(".tld")).collect(Collectors.toList())) {
+                tlds.put(path.toString(), Files.readAllBytes(path));
+            }
+        }
+        for (String name : STANDARD_TLDS) {
+            try (InputStream is = getClass().getClassLoader().getResourceAsStream("META-INF/" + name)) {
+                if (is != null) {
+                    tlds.put("META-INF/" + name, is.readAllBytes());
+                }
+            }
+        }
+        if (tlds.isEmpty()) {
+            throw new IOException("No TLD files found");
+        }
+        for (Map.Entry<String, byte[]> tld : tlds.entrySet()) {
+            parsed.put(tld.getKey(), Utils.parseTld(new ByteArrayInputStream(tld.getValue())));
+        }
+    }
+
+    private List<TldMetaData> parseAll() throws Exception {
+        List<TldMetaData> result = new ArrayList<>(tlds.size());
+        for (byte[] bytes : tlds.values()) {
+            result.add(Utils.parseTld(new ByteArrayInputStream(bytes)));
+        }
+        return result;
+    }
+
+    private HashMap<String, TagLibraryInfo> createAll() {
+        HashMap<String, TagLibraryInfo> result = new HashMap<>();
+        for (Map.Entry<String, TldMetaData> tld : parsed.entrySet()) {
+            Utils.createTldInfo(tld.getKey(), tld.getValue(), result);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void parseTld(Blackhole bh) throws Exception {
+        bh.consume(parseAll());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void parseTldAllThreads(Blackhole bh) throws Exception {
+        bh.consume(parseAll());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void createTldInfo(Blackhole bh) {
+        bh.consume(createAll());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void createTldInfoAllThreads(Blackhole bh) {
+        bh.consume(createAll());
+    }
+}
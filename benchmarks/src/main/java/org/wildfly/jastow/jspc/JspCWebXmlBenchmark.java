@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks of the web XML writers. Every <em>WEBXML_LEVEL</em> is
+ * executed with a big number of servlets (10000 by default). The merge
+ * level uses a small <em>web.xml</em> in the application.</p>
+ *
+ * @author rmartinc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JspCWebXmlBenchmark {
+
+    private static final String WEB_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<web-app xmlns=\"https://jakarta.ee/xml/ns/jakartaee\" version=\"6.0\">\n"
+            + "    <display-name>benchmark</display-name>\n"
+            + "    <welcome-file-list>\n"
+            + "        <welcome-file>index.jsp</welcome-file>\n"
+            + "    </welcome-file-list>\n"
+            + "</web-app>\n";
+
+    @Param({"INC_WEBXML", "FRG_WEBXML", "ALL_WEBXML", "MERGE_WEBXML"})
+    public JspC.WEBXML_LEVEL level;
+
+    @Param({"10000"})
+    public int entries;
+
+    private Path dir;
+    private JspC jspc;
+    private final Map<String, String> servlets = new TreeMap<>();
+
+    @Setup
+    public void setup() throws Exception {
+        dir = BenchmarkUtils.createTempDirectory();
+        Path webapp = dir.resolve("webapp");
+        Files.createDirectories(webapp.resolve("WEB-INF"));
+        Files.write(webapp.resolve("WEB-INF").resolve("web.xml"), WEB_XML.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < entries; i++) {
+            servlets.put(String.format("/dir%d/page%d.jsp", i % 100, i), String.format("org.apache.jsp.dir%d.page%d_jsp", i % 100, i));
+        }
+        jspc = new JspC()
+                .setDebugLevel(org.apache.logging.log4j.Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setWebxmlLevel(level)
+                .setWebxmlFile(dir.resolve("web-output.xml").toString());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        BenchmarkUtils.delete(dir);
+    }
+
+    @Benchmark
+    public Path write() throws Exception {
+        jspc.writeWebXml(servlets);
+        return dir;
+    }
+}
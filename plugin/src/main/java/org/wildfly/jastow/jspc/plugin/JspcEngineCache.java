@@ -0,0 +1,327 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc.plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.ExecutionListener;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.eclipse.aether.SessionData;
+import org.wildfly.jastow.jspc.JspCEngine;
+
+/**
+ * <p>Cache of JspC engines scoped to the maven build session. In a reactor
+ * with several web modules every execution of the plugin reuses the class
+ * loader of the provided libraries and the engine created for it (TLDs
+ * parsed from the jars, jar entries and the classes read by the java
+ * compiler from the provided loader). The classes and libraries of every
+ * module are still loaded in its own class loader. The cache also keeps the
+ * semaphore that limits the compilation threads of all the modules. The
+ * cache is thread safe, so it can be used in parallel builds.</p>
+ *
+ * <p>The cached class loaders are closed when the session ends (the
+ * execution listener of the request is wrapped to be notified).</p>
+ *
+ * @author rmartinc
+ */
+public class JspcEngineCache implements Closeable {
+
+    private static final String SESSION_KEY = JspcEngineCache.class.getName();
+
+    /**
+     * The provided class loader and the engine that shares its classes.
+     */
+    public static class Entry {
+        private final URLClassLoader classLoader;
+        private final JspCEngine engine;
+
+        private Entry(URLClassLoader classLoader, JspCEngine engine) {
+            this.classLoader = classLoader;
+            this.engine = engine;
+        }
+
+        public URLClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        public JspCEngine getEngine() {
+            return engine;
+        }
+    }
+
+    // the entries by parent class loader (compared by identity) and libraries
+    private final Map<ClassLoader, Map<String, Entry>> entries = Collections.synchronizedMap(new IdentityHashMap<>());
+    private Semaphore threadBudget;
+
+    /**
+     * Returns the cache of the session, it is created the first time.
+     *
+     * @param session The maven session
+     * @return The cache for the session
+     */
+    public static JspcEngineCache get(MavenSession session) {
+        SessionData data = session.getRepositorySession().getData();
+        JspcEngineCache cache = (JspcEngineCache) data.get(SESSION_KEY);
+        while (cache == null) {
+            JspcEngineCache created = new JspcEngineCache();
+            if (data.set(SESSION_KEY, null, created)) {
+                closeAtSessionEnd(session.getRequest(), created);
+            }
+            cache = (JspcEngineCache) data.get(SESSION_KEY);
+        }
+        return cache;
+    }
+
+    private static void closeAtSessionEnd(MavenExecutionRequest request, JspcEngineCache cache) {
+        if (request != null) {
+            synchronized (request) {
+                request.setExecutionListener(new SessionEndListener(request.getExecutionListener(), cache));
+            }
+        }
+    }
+
+    /**
+     * Returns the entry for the provided libraries, the same entry is
+     * returned for the same parent loader, jars (path, size and last
+     * modified time) and TLD cache directory.
+     *
+     * @param urls The provided libraries
+     * @param parent The parent class loader
+     * @param tldCacheDirectory The TLD cache directory or null
+     * @return The entry with the class loader and the engine
+     */
+    public Entry getEntry(List<URL> urls, ClassLoader parent, String tldCacheDirectory) {
+        StringBuilder key = new StringBuilder()
+                .append(tldCacheDirectory);
+        for (URL url : urls) {
+            key.append(';').append(url);
+            try {
+                File file = new File(url.toURI());
+                key.append(':').append(file.length()).append(':').append(file.lastModified());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // not a file, just the URL
+            }
+        }
+        Map<String, Entry> byParent = entries.computeIfAbsent(parent, p -> new ConcurrentHashMap<>());
+        return byParent.computeIfAbsent(key.toString(), k -> {
+            URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), parent);
+            return new Entry(loader, new JspCEngine(tldCacheDirectory == null? null : new File(tldCacheDirectory), loader));
+        });
+    }
+
+    /**
+     * Returns the semaphore shared by all the executions of the session. It
+     * is created with the permits passed in the first call.
+     *
+     * @param permits The number of threads for the whole session
+     * @return The shared semaphore
+     */
+    public synchronized Semaphore getThreadBudget(int permits) {
+        if (threadBudget == null) {
+            threadBudget = new Semaphore(Math.max(1, permits));
+        }
+        return threadBudget;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.values().stream().mapToInt(Map::size).sum();
+        }
+    }
+
+    /**
+     * Closes the class loaders of all the entries and empties the cache.
+     *
+     * @throws IOException The first error closing the loaders
+     */
+    @Override
+    public void close() throws IOException {
+        List<Entry> closed = new ArrayList<>();
+        synchronized (entries) {
+            entries.values().forEach(m -> closed.addAll(m.values()));
+            entries.clear();
+        }
+        IOException error = null;
+        for (Entry entry : closed) {
+            try {
+                entry.getClassLoader().close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Listener that delegates to the original one and closes the cache when
+     * the session ends.
+     */
+    static class SessionEndListener implements ExecutionListener {
+        private final ExecutionListener delegate;
+        private final JspcEngineCache cache;
+
+        SessionEndListener(ExecutionListener delegate, JspcEngineCache cache) {
+            this.delegate = delegate;
+            this.cache = cache;
+        }
+
+        @Override
+        public void projectDiscoveryStarted(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.projectDiscoveryStarted(event);
+            }
+        }
+
+        @Override
+        public void sessionStarted(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.sessionStarted(event);
+            }
+        }
+
+        @Override
+        public void sessionEnded(ExecutionEvent event) {
+            try {
+                if (delegate != null) {
+                    delegate.sessionEnded(event);
+                }
+            } finally {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    // nothing to do, the build is finished
+                }
+            }
+        }
+
+        @Override
+        public void projectSkipped(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.projectSkipped(event);
+            }
+        }
+
+        @Override
+        public void projectStarted(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.projectStarted(event);
+            }
+        }
+
+        @Override
+        public void projectSucceeded(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.projectSucceeded(event);
+            }
+        }
+
+        @Override
+        public void projectFailed(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.projectFailed(event);
+            }
+        }
+
+        @Override
+        public void mojoSkipped(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.mojoSkipped(event);
+            }
+        }
+
+        @Override
+        public void mojoStarted(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.mojoStarted(event);
+            }
+        }
+
+        @Override
+        public void mojoSucceeded(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.mojoSucceeded(event);
+            }
+        }
+
+        @Override
+        public void mojoFailed(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.mojoFailed(event);
+            }
+        }
+
+        @Override
+        public void forkStarted(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.forkStarted(event);
+            }
+        }
+
+        @Override
+        public void forkSucceeded(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.forkSucceeded(event);
+            }
+        }
+
+        @Override
+        public void forkFailed(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.forkFailed(event);
+            }
+        }
+
+        @Override
+        public void forkedProjectStarted(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.forkedProjectStarted(event);
+            }
+        }
+
+        @Override
+        public void forkedProjectSucceeded(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.forkedProjectSucceeded(event);
+            }
+        }
+
+        @Override
+        public void forkedProjectFailed(ExecutionEvent event) {
+            if (delegate != null) {
+                delegate.forkedProjectFailed(event);
+            }
+        }
+    }
+}
@@ -16,27 +16,42 @@
 package org.wildfly.jastow.jspc.plugin;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.jasper.Constants;
 import org.apache.logging.log4j.Level;
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.util.FileUtils;
 import org.wildfly.jastow.jspc.JspC;
+import org.wildfly.jastow.jspc.JspCClassCache;
+import org.wildfly.jastow.jspc.JspCEngine;
+import org.wildfly.jastow.jspc.JspCManifest;
 import org.wildfly.jastow.jspc.JspCResults;
 
 /**
@@ -71,6 +86,18 @@ public class JspcMojo extends AbstractMojo {
     @Parameter(defaultValue = "${project}", readonly = true, required = true)
     private MavenProject project;
 
+    /**
+     * The maven session.
+     */
+    @Parameter(defaultValue = "${session}", readonly = true)
+    private MavenSession session;
+
+    /**
+     * Helper to attach the report to the project.
+     */
+    @Component
+    private MavenProjectHelper projectHelper;
+
     /**
      * The artifacts for the plugin itself.
      */
@@ -187,6 +214,26 @@ public class JspcMojo extends AbstractMojo {
     @Parameter
     private Integer threadCount;
 
+    /**
+     * Maximum number of threads compiling pages at the same time in all the
+     * executions of the build session. In a parallel build (-T) several
+     * modules are executed at the same time and every one uses threadCount
+     * threads, the permits are shared to not overload the host. The limit
+     * is only applied if this parameter is configured or the build is
+     * parallel (then the number of available processors by default),
+     * otherwise every execution just uses its threadCount.
+     */
+    @Parameter
+    private Integer sessionThreadCount;
+
+    /**
+     * Use a virtual thread per JSP (it needs java 21 or newer) and limit the
+     * java compilation to the number of cores. The threadCount is ignored.
+     * If the JVM has no virtual threads normal threads are used.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean virtualThreads;
+
     /**
      * If any JSP gives an error the plugin throws an exception. The same
      * value is passed to the JspC tool.
@@ -201,6 +248,130 @@ public class JspcMojo extends AbstractMojo {
     @Parameter(defaultValue = "false")
     private boolean failFast;
 
+    /**
+     * Directory of the compiled classes cache. If set the compiled classes
+     * are stored in the directory and reused by other executions (other
+     * projects or branches) when the same JSP is compiled with the same
+     * inputs and options.
+     */
+    @Parameter
+    private String cacheDirectory;
+
+    /**
+     * Maximum size of the classes cache in megabytes. By default the JspC
+     * default value is used (1024).
+     */
+    @Parameter
+    private Integer cacheSize;
+
+    /**
+     * Directory of the TLD cache. If set the TLD files parsed from the jars
+     * are stored in the directory and only the jars that are new or
+     * modified are parsed again in the next executions.
+     */
+    @Parameter
+    private String tldCacheDirectory;
+
+    /**
+     * Generate the java sources of all the JSPs first and compile them
+     * later together in a single ECJ compilation (or several if
+     * batchShards is greater than 1).
+     */
+    @Parameter(defaultValue = "false")
+    private boolean batchCompile;
+
+    /**
+     * Number of ECJ compilations executed in parallel when batchCompile is
+     * used. By default the JspC default value is used (1).
+     */
+    @Parameter
+    private Integer batchShards;
+
+    /**
+     * Execute the generation of the java sources, the compilation and the
+     * writing of the classes in different stages connected by bounded
+     * queues. The generation stage uses threadCount threads.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean pipeline;
+
+    /**
+     * Number of threads of the compile stage in pipeline mode. By default
+     * the JspC default value is used (number of available threads in the
+     * target host divided by 2).
+     */
+    @Parameter
+    private Integer compileThreads;
+
+    /**
+     * Number of threads of the write stage in pipeline mode. By default the
+     * JspC default value is used (1).
+     */
+    @Parameter
+    private Integer writeThreads;
+
+    /**
+     * Size of the queues between the stages in pipeline mode. By default the
+     * JspC default value is used (64).
+     */
+    @Parameter
+    private Integer queueSize;
+
+    /**
+     * File of the JSON report with the results and the times of every page.
+     * If set the report is generated and attached to the project (type
+     * json and classifier jspc-report).
+     */
+    @Parameter
+    private String reportFile;
+
+    /**
+     * Jar file where the compiled classes are written (plus the java sources
+     * if kept and the web-fragment.xml if generated). The jar is
+     * reproducible (sorted entries and fixed timestamps), for example to be
+     * placed as <em>WEB-INF/lib/precompiled-jsps.jar</em>. The classes are
+     * also kept in the output directory.
+     */
+    @Parameter
+    private String outputJar;
+
+    /**
+     * Generate the java sources in a local temporary directory and compile
+     * them from memory. Only the classes (and the sources if they are kept)
+     * are written to the output directory.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean inMemorySources;
+
+    /**
+     * Only compile the stale pages. The state of the previous execution (the
+     * incremental manifest of the tool and a hash of the configuration) is
+     * saved in the stateDirectory. If the configuration, the dependencies
+     * and the files of the application are not modified since then the
+     * execution is skipped. If only files of the application are modified
+     * the pages that depend on them are compiled (the web XML file is still
+     * complete). If the configuration, the dependencies or the classes of the
+     * application change all the pages are compiled. Disabled by default,
+     * all the pages are compiled in every execution.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean incremental;
+
+    /**
+     * Directory where the state of the incremental compilation is saved.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/jspc")
+    private String stateDirectory;
+
+    /**
+     * Reuse the class loader of the provided libraries and the JspC engine
+     * (TLDs parsed from the jars and classes read by the compiler) between
+     * all the executions of the build session. Useful in a reactor with
+     * several web modules. The classes of every module are not shared.
+     */
+    @Parameter(defaultValue = "true")
+    private boolean reuseEngine;
+
     /**
      * The JspC instance being used to compile the jsps.
      */
@@ -209,6 +380,8 @@ public class JspcMojo extends AbstractMojo {
 
     private JspCResults results;
 
+    private boolean upToDate;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (getLog().isDebugEnabled()) {
@@ -247,7 +420,16 @@ public class JspcMojo extends AbstractMojo {
         //Make a classloader so provided jars will be on the classpath
         List<URL> sysUrls = new ArrayList<>();
         sysUrls.addAll(providedJars);
-        URLClassLoader sysClassLoader = new URLClassLoader(sysUrls.toArray(new URL[0]), currentClassLoader);
+        URLClassLoader sysClassLoader;
+        JspCEngine engine = null;
+        if (reuseEngine && session != null) {
+            JspcEngineCache.Entry entry = JspcEngineCache.get(session).getEntry(sysUrls, currentClassLoader, tldCacheDirectory);
+            sysClassLoader = entry.getClassLoader();
+            engine = entry.getEngine();
+            getLog().debug("Reusing the JspC engine of the build session");
+        } else {
+            sysClassLoader = new URLClassLoader(sysUrls.toArray(new URL[0]), currentClassLoader);
+        }
 
         //make a classloader with the webapp classpath
         URLClassLoader webAppClassLoader = new URLClassLoader(webAppUrls.toArray(new URL[0]), sysClassLoader);
@@ -269,17 +451,17 @@ public class JspcMojo extends AbstractMojo {
         //Interpose a fake classloader as the webapp class loader. This is because the Apache JspC class
         //uses a TldScanner which ignores jars outside of the WEB-INF/lib path on the webapp classloader.
         //It will, however, look at all jars on the parents of the webapp classloader.
+        //The loader is passed explicitly to the JspC, the context class loader of the thread is not modified
+        //because several modules can be executed at the same time (parallel builds).
         URLClassLoader fakeWebAppClassLoader = new URLClassLoader(new URL[0], webAppClassLoader);
-        Thread.currentThread().setContextClassLoader(fakeWebAppClassLoader);
-
-        Thread.currentThread().setContextClassLoader(fakeWebAppClassLoader);
 
         try {
             if (jspc == null) {
                 jspc = new JspC();
             }
 
-            jspc.setUriRoot(webAppSourceDirectory)
+            jspc.setParentClassLoader(fakeWebAppClassLoader)
+                    .setUriRoot(webAppSourceDirectory)
                     .setOutputDir(generatedClasses)
                     .setDeleteSources(!keepSources)
                     .setWebxmlLevel(JspC.WEBXML_LEVEL.valueOf(webXmlType))
@@ -309,6 +491,46 @@ public class JspcMojo extends AbstractMojo {
             if (threadCount != null) {
                 jspc.setThreadCount(threadCount);
             }
+            jspc.setVirtualThreads(virtualThreads);
+            if (cacheDirectory != null) {
+                new File(cacheDirectory).mkdirs();
+                jspc.setCacheDir(cacheDirectory);
+            }
+            if (cacheSize != null) {
+                jspc.setCacheSize(cacheSize);
+            }
+            if (tldCacheDirectory != null) {
+                new File(tldCacheDirectory).mkdirs();
+                jspc.setTldCacheDir(tldCacheDirectory);
+            }
+            if (engine != null) {
+                jspc.setEngine(engine);
+            }
+            if (session != null && (sessionThreadCount != null || session.isParallel())) {
+                jspc.setThreadBudget(JspcEngineCache.get(session).getThreadBudget(
+                        sessionThreadCount != null? sessionThreadCount : Runtime.getRuntime().availableProcessors()));
+            }
+            jspc.setBatchCompile(batchCompile);
+            if (batchShards != null) {
+                jspc.setBatchShards(batchShards);
+            }
+            jspc.setPipeline(pipeline);
+            jspc.setInMemorySources(inMemorySources);
+            if (compileThreads != null) {
+                jspc.setCompileThreads(compileThreads);
+            }
+            if (writeThreads != null) {
+                jspc.setWriteThreads(writeThreads);
+            }
+            if (queueSize != null) {
+                jspc.setQueueSize(queueSize);
+            }
+            if (reportFile != null) {
+                jspc.setReportFile(reportFile);
+            }
+            if (outputJar != null) {
+                jspc.setOutputJar(outputJar);
+            }
 
             // JspC#setExtensions() does not exist, so
             // always set concrete list of files that will be processed.
@@ -317,22 +539,54 @@ public class JspcMojo extends AbstractMojo {
             if (jspFiles == null || jspFiles.isEmpty()) {
                 getLog().info("No files selected to precompile");
             } else {
+                String configuration = null;
+                long start = System.currentTimeMillis();
+                if (incremental) {
+                    configuration = calculateConfiguration(webAppUrls, sysUrls);
+                    upToDate = checkUpToDate(configuration, jspFiles);
+                    if (upToDate) {
+                        getLog().info("Nothing to compile - all JSP files are up to date");
+                        results = createSkippedResults();
+                        if (reportFile != null && projectHelper != null && new File(reportFile).isFile()) {
+                            projectHelper.attachArtifact(project, "json", "jspc-report", new File(reportFile));
+                        }
+                        return;
+                    }
+                    jspc.setIncremental(true)
+                            .setManifestFile(getStateFile(JspCManifest.DEFAULT_NAME).getAbsolutePath());
+                }
                 getLog().info("Compiling " + jspFiles + " from includes=" + includes + " excludes=" + excludes);
                 jspc.setPages(jspFiles);
                 results = jspc.execute();
+                if (configuration != null && !results.isError()) {
+                    saveState(configuration, start);
+                }
+                if (reportFile != null && projectHelper != null) {
+                    projectHelper.attachArtifact(project, "json", "jspc-report", new File(reportFile));
+                }
                 if (results.isError()) {
                     getLog().error(String.format("Generation completed for [%d] files with [%d] errors in [%d] milliseconds",
                             results.total(), results.errors(), results.getTime()));
-                    if (failOnError) {
-                        throw new IllegalStateException(String.format("Compilation failed for %d JSP files.", results.errors()));
-                    }
                 } else {
                     getLog().info(String.format("Generation completed for [%d] files with [%d] errors in [%d] milliseconds",
                             results.total(), results.errors(), results.getTime()));
                 }
+                for (String line : results.getSummary(JspC.SUMMARY_SLOWEST_PAGES)) {
+                    getLog().info(line);
+                }
+                if (results.isError() && failOnError) {
+                    throw new IllegalStateException(String.format("Compilation failed for %d JSP files.", results.errors()));
+                }
             }
         } finally {
-            Thread.currentThread().setContextClassLoader(currentClassLoader);
+            if (jspc != null) {
+                jspc.close();
+            }
+            fakeWebAppClassLoader.close();
+            webAppClassLoader.close();
+            if (engine == null) {
+                sysClassLoader.close();
+            }
         }
     }
 
@@ -344,6 +598,140 @@ public class JspcMojo extends AbstractMojo {
         return results;
     }
 
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+    private File getStateFile(String name) {
+        return new File(stateDirectory, name);
+    }
+
+    /**
+     * Hash of all the parameters of the execution and the jars in the
+     * classpath (path, size and last modified time). The pages are not part
+     * of the hash, the manifest compiles the new pages and drops the missing
+     * ones.
+     */
+    private String calculateConfiguration(List<URL> webAppUrls, List<URL> sysUrls) throws Exception {
+        List<String> values = new ArrayList<>();
+        Collections.addAll(values, webXmlType, webXml, generatedClasses, String.valueOf(keepSources),
+                webAppSourceDirectory, includes, excludes, String.valueOf(classesDirectory), sourceVersion,
+                targetVersion, targetPackage, String.valueOf(xpoweredBy), String.valueOf(trimSpaces), javaEncoding,
+                webxmlEncoding, String.valueOf(useProvidedScope), outputJar, String.valueOf(inMemorySources));
+        for (URL url : webAppUrls) {
+            addFileState(values, new File(url.toURI()));
+        }
+        for (URL url : sysUrls) {
+            addFileState(values, new File(url.toURI()));
+        }
+        for (Artifact artifact : pluginArtifacts) {
+            if (artifact.getFile() != null) {
+                addFileState(values, artifact.getFile());
+            }
+        }
+        return JspCClassCache.hash(values.toArray(new String[0]));
+    }
+
+    private void addFileState(List<String> values, File file) {
+        values.add(file.getAbsolutePath());
+        if (file.isFile()) {
+            values.add(file.length() + ":" + file.lastModified());
+        }
+    }
+
+    /**
+     * The execution is up to date if the configuration is the same than the
+     * previous successful execution, the outputs exist and no file inside the
+     * application or the classes directory (excluding the compiled pages) is
+     * newer than that execution and the pages are the ones in the manifest.
+     * If the configuration or the classes are modified the manifest is
+     * removed to compile all the pages again.
+     */
+    private boolean checkUpToDate(String configuration, List<String> jspFiles) throws IOException {
+        File stateFile = getStateFile("jspc.state");
+        File manifestFile = getStateFile(JspCManifest.DEFAULT_NAME);
+        if (!stateFile.isFile() || !manifestFile.isFile()) {
+            getLog().debug("No previous state, all the pages are compiled");
+            return false;
+        }
+        long lastExecution = stateFile.lastModified();
+        String previous = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8).trim();
+        List<Path> excluded = new ArrayList<>();
+        Path classes = classesDirectory.toPath().toAbsolutePath().normalize();
+        excluded.add(classes.resolve((targetPackage == null? Constants.JSP_PACKAGE_NAME : targetPackage).replace('.', File.separatorChar)));
+        excluded.add(classes.resolve(Constants.TAG_FILE_PACKAGE_NAME.replace('.', File.separatorChar)));
+        if (!configuration.equals(previous) || isModified(classes, lastExecution, excluded)) {
+            getLog().debug("Configuration or classes modified since the previous execution, all the pages are compiled");
+            Files.delete(manifestFile.toPath());
+            return false;
+        }
+        if (!new File(webXml).isFile() || (outputJar != null && !new File(outputJar).isFile())) {
+            getLog().debug("Output files missing, compiling the stale pages");
+            return false;
+        }
+        excluded.add(Paths.get(generatedClasses).toAbsolutePath().normalize());
+        excluded.add(Paths.get(stateDirectory).toAbsolutePath().normalize());
+        if (isModified(Paths.get(webAppSourceDirectory).toAbsolutePath().normalize(), lastExecution, excluded)) {
+            getLog().debug("Application files modified since the previous execution, compiling the stale pages");
+            return false;
+        }
+        Map<String, JspCManifest.Entry> entries = JspCManifest.load(manifestFile).getEntries();
+        Path root = Paths.get(webAppSourceDirectory).toAbsolutePath().normalize();
+        Set<String> pages = jspFiles.stream()
+                .map(page -> root.relativize(Paths.get(page).toAbsolutePath().normalize()).toString())
+                .map(JspcMojo::toPageKey)
+                .collect(Collectors.toSet());
+        if (!pages.equals(entries.keySet().stream().map(JspcMojo::toPageKey).collect(Collectors.toSet()))) {
+            getLog().debug("Pages added or removed since the previous execution, compiling the stale pages");
+            return false;
+        }
+        for (JspCManifest.Entry entry : entries.values()) {
+            if (!getClassFile(entry.getServletName()).isFile()) {
+                getLog().debug("Class file missing for " + entry.getServletName() + ", compiling the stale pages");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toPageKey(String page) {
+        String key = page.replace('\\', '/');
+        return key.startsWith("/")? key.substring(1) : key;
+    }
+
+    private File getClassFile(String servletName) {
+        return new File(generatedClasses, servletName.replace('.', File.separatorChar) + ".class");
+    }
+
+    /**
+     * The results of an up to date execution, all the pages of the manifest
+     * are skipped.
+     */
+    private JspCResults createSkippedResults() throws IOException {
+        JspCResults skipped = new JspCResults();
+        for (Map.Entry<String, JspCManifest.Entry> entry : JspCManifest.load(getStateFile(JspCManifest.DEFAULT_NAME)).getEntries().entrySet()) {
+            skipped.addSkipped(entry.getKey(), entry.getValue().getServletName());
+        }
+        return skipped;
+    }
+
+    private boolean isModified(Path dir, long lastExecution, List<Path> excluded) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return false;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(p -> excluded.stream().noneMatch(p::startsWith))
+                    .anyMatch(p -> p.toFile().lastModified() > lastExecution);
+        }
+    }
+
+    private void saveState(String configuration, long start) throws IOException {
+        Path stateFile = getStateFile("jspc.state").toPath();
+        Files.write(stateFile, configuration.getBytes(StandardCharsets.UTF_8));
+        // use the start time, files modified during the execution are stale for the next one
+        stateFile.toFile().setLastModified(start);
+    }
+
     private List<String> getJspFiles(String webAppSourceDirectory)
             throws Exception {
         return FileUtils.getFileNames(new File(webAppSourceDirectory), includes, excludes, true);
@@ -17,23 +17,35 @@ package org.wildfly.jastow.jspc.plugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.logging.log4j.Level;
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.MatcherAssert;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.wildfly.jastow.jspc.JspC;
+import org.wildfly.jastow.jspc.JspCEngine;
 import org.wildfly.jastow.jspc.JspCResults;
 
 /**
@@ -94,6 +106,8 @@ public class JspCMojoTest extends AbstractMojoTestCase {
         setVariableValueToObject(mojo, "sourceVersion", "11");
         setVariableValueToObject(mojo, "targetVersion", "11");
         setVariableValueToObject(mojo, "keepSources", false);
+        setVariableValueToObject(mojo, "incremental", false);
+        setVariableValueToObject(mojo, "stateDirectory", tempDir + "/jspc");
 
         MavenProject project = Mockito.mock(MavenProject.class);
         setVariableValueToObject(mojo, "project", project);
@@ -176,4 +190,155 @@ public class JspCMojoTest extends AbstractMojoTestCase {
         Assert.assertTrue("web.xml file exists", Files.exists(Paths.get(tempDir, "web.xml")));
         Assert.assertTrue("web.xml is not empty", Files.size(Paths.get(tempDir, "web.xml")) > 0);
     }
+
+    @Test
+    public void testReport() throws Exception {
+        JspcMojo mojo = createDefaultMojo();
+        MavenProjectHelper helper = Mockito.mock(MavenProjectHelper.class);
+        setVariableValueToObject(mojo, "projectHelper", helper);
+        File report = new File(tempDir, "jspc-report.json");
+        setVariableValueToObject(mojo, "reportFile", report.getAbsolutePath());
+
+        mojo.execute();
+
+        Assert.assertFalse("Error executing", mojo.getResults().isError());
+        Assert.assertTrue("report exists", report.isFile());
+        String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+        MatcherAssert.assertThat(json, CoreMatchers.containsString("\"total\":15,\"errors\":0"));
+        Mockito.verify(helper).attachArtifact(Mockito.any(MavenProject.class), Mockito.eq("json"),
+                Mockito.eq("jspc-report"), Mockito.eq(report));
+    }
+
+    private JspcMojo createIncrementalMojo(Path webapp) throws Exception {
+        JspcMojo mojo = createDefaultMojo();
+        setVariableValueToObject(mojo, "webAppSourceDirectory", webapp.toString());
+        setVariableValueToObject(mojo, "generatedClasses", tempDir + "/classes");
+        setVariableValueToObject(mojo, "incremental", true);
+        return mojo;
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        Path source = Paths.get(getBasedir(), "../testapp/src/main/webapp");
+        Path webapp = Paths.get(tempDir, "webapp");
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                Files.copy(path, webapp.resolve(source.relativize(path).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+        JspcMojo mojo = createIncrementalMojo(webapp);
+        mojo.execute();
+        Assert.assertFalse("Not up to date", mojo.isUpToDate());
+        Assert.assertEquals("Executed over 15 files", 15, mojo.getResults().results());
+        Assert.assertEquals("No skipped files", 0, mojo.getResults().skipped());
+
+        // nothing modified, the execution is skipped
+        mojo = createIncrementalMojo(webapp);
+        mojo.execute();
+        Assert.assertTrue("Up to date", mojo.isUpToDate());
+        Assert.assertEquals("All the files skipped", 15, mojo.getResults().skipped());
+        Assert.assertFalse("No error", mojo.getResults().isError());
+
+        // a compiled page removed, the execution is not skipped
+        Path simpleClass = Paths.get(tempDir, "classes", "test", "mojo", "jsps", "simple_jsp.class");
+        Assert.assertTrue("Class file exists", Files.exists(simpleClass));
+        Files.delete(simpleClass);
+        mojo = createIncrementalMojo(webapp);
+        mojo.execute();
+        Assert.assertFalse("Not up to date", mojo.isUpToDate());
+        Assert.assertTrue("Class file compiled again", Files.exists(simpleClass));
+
+        // one page modified, only that page is compiled
+        Assert.assertTrue(webapp.resolve("simple.jsp").toFile().setLastModified(System.currentTimeMillis() + 2000L));
+        mojo = createIncrementalMojo(webapp);
+        mojo.execute();
+        Assert.assertFalse("Not up to date", mojo.isUpToDate());
+        Assert.assertEquals("Executed over 15 files", 15, mojo.getResults().results());
+        Assert.assertEquals("Skipped files", 14, mojo.getResults().skipped());
+        String webXml = new String(Files.readAllBytes(Paths.get(tempDir, "web.xml")), StandardCharsets.UTF_8);
+        MatcherAssert.assertThat(webXml, CoreMatchers.containsString("<url-pattern>/another-simple.jsp</url-pattern>"));
+
+        // one page added, only that page is compiled
+        Path added = webapp.resolve("added.jsp");
+        Files.copy(webapp.resolve("simple.jsp"), added);
+        Assert.assertTrue(added.toFile().setLastModified(System.currentTimeMillis() + 2000L));
+        mojo = createIncrementalMojo(webapp);
+        mojo.execute();
+        Assert.assertFalse("Not up to date", mojo.isUpToDate());
+        Assert.assertEquals("Executed over 16 files", 16, mojo.getResults().results());
+        Assert.assertEquals("Skipped files", 15, mojo.getResults().skipped());
+
+        // the page removed, it is dropped from the manifest
+        Files.delete(added);
+        Assert.assertTrue(webapp.toFile().setLastModified(0L));
+        mojo = createIncrementalMojo(webapp);
+        mojo.execute();
+        Assert.assertFalse("Not up to date", mojo.isUpToDate());
+        Assert.assertEquals("Executed over 15 files", 15, mojo.getResults().results());
+        Assert.assertEquals("All the files skipped", 15, mojo.getResults().skipped());
+
+        // configuration modified, all the pages are compiled
+        mojo = createIncrementalMojo(webapp);
+        setVariableValueToObject(mojo, "trimSpaces", false);
+        mojo.execute();
+        Assert.assertFalse("Not up to date", mojo.isUpToDate());
+        Assert.assertEquals("No skipped files", 0, mojo.getResults().skipped());
+    }
+
+    @Test
+    public void testReuseEngine() throws Exception {
+        MavenSession session = Mockito.mock(MavenSession.class);
+        Mockito.when(session.getRepositorySession()).thenReturn(new DefaultRepositorySystemSession());
+        JspcMojo mojo = createDefaultMojo();
+        setVariableValueToObject(mojo, "reuseEngine", true);
+        setVariableValueToObject(mojo, "session", session);
+        mojo.execute();
+        Assert.assertFalse("Error executing", mojo.getResults().isError());
+        JspCEngine engine = mojo.getJspC().getEngine();
+        Assert.assertNotNull("Engine assigned", engine);
+        Assert.assertNotNull("Shared class loader", engine.getSharedClassLoader());
+        Assert.assertNull("No thread budget in a sequential build", mojo.getJspC().getThreadBudget());
+        int misses = engine.getTldCache().getMisses();
+
+        // another module in the same parallel session uses the same engine and the TLDs are not parsed again
+        Mockito.when(session.isParallel()).thenReturn(true);
+        mojo = createDefaultMojo();
+        setVariableValueToObject(mojo, "reuseEngine", true);
+        setVariableValueToObject(mojo, "session", session);
+        setVariableValueToObject(mojo, "generatedClasses", tempDir + "/module2");
+        setVariableValueToObject(mojo, "inMemorySources", true);
+        mojo.execute();
+        Assert.assertFalse("Error executing", mojo.getResults().isError());
+        Assert.assertEquals("Executed over 15 files", 15, mojo.getResults().results());
+        Assert.assertSame("Same engine", engine, mojo.getJspC().getEngine());
+        Assert.assertEquals("No new TLD misses", misses, engine.getTldCache().getMisses());
+        Assert.assertTrue("TLD hits", engine.getTldCache().getHits() > 0);
+        Assert.assertEquals("One entry in the session", 1, JspcEngineCache.get(session).size());
+        Assert.assertSame("Thread budget of the session", JspcEngineCache.get(session).getThreadBudget(1), mojo.getJspC().getThreadBudget());
+        Assert.assertEquals("All permits released", Runtime.getRuntime().availableProcessors(), mojo.getJspC().getThreadBudget().availablePermits());
+    }
+
+    @Test
+    public void testEngineCacheClosedAtSessionEnd() throws Exception {
+        MavenSession session = Mockito.mock(MavenSession.class);
+        Mockito.when(session.getRepositorySession()).thenReturn(new DefaultRepositorySystemSession());
+        DefaultMavenExecutionRequest request = new DefaultMavenExecutionRequest();
+        Mockito.when(session.getRequest()).thenReturn(request);
+        Files.write(Paths.get(tempDir, "marker.txt"), "marker".getBytes(StandardCharsets.UTF_8));
+        List<URL> urls = Collections.singletonList(new File(tempDir).toURI().toURL());
+        try (URLClassLoader parent1 = new URLClassLoader(new URL[0]); URLClassLoader parent2 = new URLClassLoader(new URL[0])) {
+            JspcEngineCache cache = JspcEngineCache.get(session);
+            JspcEngineCache.Entry entry = cache.getEntry(urls, parent1, null);
+            // parents are compared by identity
+            Assert.assertSame("Same entry", entry, cache.getEntry(urls, parent1, null));
+            Assert.assertNotSame("Different parent", entry, cache.getEntry(urls, parent2, null));
+            Assert.assertEquals("Two entries", 2, cache.size());
+            Assert.assertNotNull("Resource found", entry.getClassLoader().getResource("marker.txt"));
+
+            // the end of the session closes the loaders
+            request.getExecutionListener().sessionEnded(null);
+            Assert.assertEquals("No entries", 0, cache.size());
+            Assert.assertNull("Loader closed", entry.getClassLoader().getResource("marker.txt"));
+        }
+    }
 }
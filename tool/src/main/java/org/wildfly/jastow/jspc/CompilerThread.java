@@ -15,7 +15,6 @@
  */
 package org.wildfly.jastow.jspc;
 
-import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
@@ -24,12 +23,13 @@ import org.apache.logging.log4j.Logger;
  */
 class CompilerThread extends Thread {
 
-    private final Logger log = LogManager.getLogger(JspC.class.getPackageName());
+    private final Logger log;
 
     private final JspC jspc;
 
     public CompilerThread(JspC jspc) {
         this.jspc = jspc;
+        this.log = jspc.getLog();
     }
 
     @Override
@@ -37,7 +37,7 @@ class CompilerThread extends Thread {
         String jsp = jspc.nextJsp();
         while (jsp != null) {
             log.trace("Starting compilation for: " + jsp);
-            jspc.compileJsp(jsp);
+            jspc.compileJspInBudget(jsp);
             jsp = jspc.nextJsp();
         }
         log.trace("Thread finishing...");
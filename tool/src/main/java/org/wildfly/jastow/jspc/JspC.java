@@ -18,10 +18,15 @@ package org.wildfly.jastow.jspc;
 import jakarta.servlet.descriptor.JspConfigDescriptor;
 import jakarta.servlet.descriptor.TaglibDescriptor;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Method;
 import java.net.JarURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -31,51 +36,63 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import org.apache.jasper.Constants;
 import org.apache.jasper.JasperException;
 import org.apache.jasper.compiler.JspRuntimeContext;
 import org.apache.jasper.deploy.TagLibraryInfo;
 import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.config.Configurator;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
  *
  * @author rmartinc
  */
-public class JspC {
+public class JspC implements Closeable {
 
-    private Logger log = LogManager.getLogger(JspC.class.getPackageName());
+    private final JspCLogger log = new JspCLogger(JspC.class.getPackageName());
 
     public enum WEBXML_LEVEL {INC_WEBXML, FRG_WEBXML, ALL_WEBXML, MERGE_WEBXML};
 
+    public static final int SUMMARY_SLOWEST_PAGES = 5;
+
     private final JspCServletContext ctx;
     private final JspCOptions options;
     private String uriRoot;
@@ -85,16 +102,52 @@ public class JspC {
     private String webxmlFile;
     private Charset webxmlEncoding = StandardCharsets.UTF_8;
     private ClassLoader loader;
+    private URLClassLoader batchLoader;
     private JspRuntimeContext rctxt;
     private JspCServletConfig config;
     private HashMap<String, TagLibraryInfo> jspTagLibraries;
     private List<String> pages = new ArrayList<>();
-    private Iterator<String> pagesIterator;
+    private final AtomicInteger nextPage = new AtomicInteger();
     private JspCResults results;
     private WEBXML_LEVEL webxmlLevel;
     private boolean failOnError = true;
     private boolean failFast = false;
     private int threadCount = (Runtime.getRuntime().availableProcessors() / 2) + 1;
+    private boolean incremental = false;
+    private String manifestFile = null;
+    private String whatDepends = null;
+    private JspCManifest previousManifest;
+    private JspCManifest manifest;
+    private Set<String> modifiedPages;
+    private String cacheDir = null;
+    private int cacheSize = 1024;
+    private JspCClassCache classCache;
+    private String tldCacheDir = null;
+    private JspCTldCache tldCache;
+    private int tldCacheHits;
+    private int tldCacheMisses;
+    private JspCEngine engine;
+    private ClassLoader parentClassLoader = null;
+    private String environmentKey;
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+    private boolean batchCompile = false;
+    private int batchShards = 1;
+    private JspCBatchCompiler batchCompiler;
+    private boolean pipeline = false;
+    private int compileThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int writeThreads = 1;
+    private int queueSize = 64;
+    private JspCPipeline jspcPipeline;
+    private boolean virtualThreads = false;
+    private boolean watch = false;
+    private int dieLevel = 1;
+    private final Map<String, String> servlets = new TreeMap<>();
+    private final Set<String> failedPages = new TreeSet<>();
+    private String reportFile = null;
+    private String outputJar = null;
+    private boolean inMemorySources = false;
+    private JspCOutputSink sink;
+    private volatile IOException sinkError;
 
     // getters
 
@@ -138,6 +191,97 @@ public class JspC {
         return threadCount;
     }
 
+    public List<String> getPages() {
+        return Collections.unmodifiableList(pages);
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public String getManifestFile() {
+        if (manifestFile == null) {
+            return new File(options.getOutputDir(), JspCManifest.DEFAULT_NAME).getAbsolutePath();
+        }
+        return manifestFile;
+    }
+
+    public String getWhatDepends() {
+        return whatDepends;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public String getTldCacheDir() {
+        return tldCacheDir;
+    }
+
+    public JspCEngine getEngine() {
+        return engine;
+    }
+
+    public ClassLoader getParentClassLoader() {
+        return parentClassLoader;
+    }
+
+    public Semaphore getThreadBudget() {
+        return options.getThreadBudget();
+    }
+
+    Logger getLog() {
+        return log;
+    }
+
+    public boolean isBatchCompile() {
+        return batchCompile;
+    }
+
+    public int getBatchShards() {
+        return batchShards;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    public String getOutputJar() {
+        return outputJar;
+    }
+
+    public boolean isInMemorySources() {
+        return inMemorySources;
+    }
+
+    public boolean isPipeline() {
+        return pipeline;
+    }
+
+    public int getCompileThreads() {
+        return compileThreads;
+    }
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
     public JspCOptions getOptions()  {
         return this.options;
     }
@@ -153,6 +297,7 @@ public class JspC {
     // setters
 
     public JspC setDieLevel(int dieLevel) {
+        this.dieLevel = dieLevel;
         if (results == null) {
             results = new JspCResults(dieLevel);
         } else {
@@ -177,9 +322,16 @@ public class JspC {
         return this;
     }
 
+    /**
+     * Assigns the level for the messages of this instance. The log4j
+     * configuration is not modified, so instances executed at the same time
+     * can use different levels.
+     *
+     * @param level The level
+     * @return this
+     */
     public JspC setDebugLevel(Level level) {
-        this.log = LogManager.getLogger(this.getClass().getPackage().getName());
-        Configurator.setLevel(this.log.getName(), level);
+        log.setLevel(level);
         return this;
     }
 
@@ -278,6 +430,130 @@ public class JspC {
         return this;
     }
 
+    public JspC setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    public JspC setManifestFile(String manifestFile) {
+        this.manifestFile = manifestFile;
+        return this;
+    }
+
+    public JspC setWhatDepends(String whatDepends) {
+        this.whatDepends = whatDepends;
+        return this;
+    }
+
+    public JspC setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+        return this;
+    }
+
+    public JspC setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public JspC setTldCacheDir(String tldCacheDir) {
+        this.tldCacheDir = tldCacheDir;
+        return this;
+    }
+
+    public JspC setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+        return this;
+    }
+
+    public JspC setOutputJar(String outputJar) {
+        this.outputJar = outputJar;
+        return this;
+    }
+
+    public JspC setInMemorySources(boolean inMemorySources) {
+        this.inMemorySources = inMemorySources;
+        return this;
+    }
+
+    /**
+     * Assigns the engine with the state shared with other executions. The
+     * TLD cache of the engine is used instead of the <em>tldCacheDir</em>.
+     *
+     * @param engine The shared engine
+     * @return this
+     */
+    public JspC setEngine(JspCEngine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Assigns the parent of the class loader created for the application.
+     * By default the context class loader of the thread that executes the
+     * JspC is used.
+     *
+     * @param parentClassLoader The parent class loader
+     * @return this
+     */
+    public JspC setParentClassLoader(ClassLoader parentClassLoader) {
+        this.parentClassLoader = parentClassLoader;
+        return this;
+    }
+
+    /**
+     * Assigns a semaphore shared by several executions in the same JVM. Every
+     * thread that compiles pages (or a batch shard) takes a permit while it
+     * is working, so the total number of compilation threads is limited by
+     * the permits of the semaphore.
+     *
+     * @param threadBudget The shared semaphore or null
+     * @return this
+     */
+    public JspC setThreadBudget(Semaphore threadBudget) {
+        this.options.setThreadBudget(threadBudget);
+        return this;
+    }
+
+    public JspC setBatchCompile(boolean batchCompile) {
+        this.batchCompile = batchCompile;
+        return this;
+    }
+
+    public JspC setBatchShards(int batchShards) {
+        this.batchShards = batchShards;
+        return this;
+    }
+
+    public JspC setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public JspC setWatch(boolean watch) {
+        this.watch = watch;
+        return this;
+    }
+
+    public JspC setPipeline(boolean pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
+    public JspC setCompileThreads(int compileThreads) {
+        this.compileThreads = compileThreads;
+        return this;
+    }
+
+    public JspC setWriteThreads(int writeThreads) {
+        this.writeThreads = writeThreads;
+        return this;
+    }
+
+    public JspC setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+
     // usage
 
     private void usage(String error) {
@@ -325,7 +601,36 @@ public class JspC {
                 .append("    -target <version>     Set the -target argument to the compiler (default 11)").append(nl)
                 .append("    -threadCount <count>  Number of threads to use for compilation.").append(nl)
                 .append("                          (\"2.0C\" means two threads per core)").append(nl)
-                .append("    -deletesources        Delete generated Java source files.").append(nl);
+                .append("    -virtualThreads       Use a virtual thread per page (java 21 or newer) and limit the").append(nl)
+                .append("                          java compilation to the number of cores (-threadCount is ignored)").append(nl)
+                .append("    -deletesources        Delete generated Java source files.").append(nl)
+                .append("    -inMemorySources      Generate the Java sources in a local temporary directory and compile").append(nl)
+                .append("                          them in memory, only the classes are written to the output directory").append(nl)
+                .append("    -incremental          Only compile the JSP pages whose inputs (JSP, includes, tag files,").append(nl)
+                .append("                          TLDs, web.xml) have changed since the previous execution").append(nl)
+                .append("    -manifest <file>      File to store the incremental information and dependency graph").append(nl)
+                .append("                          (default jspc.manifest inside the output directory)").append(nl)
+                .append("    -whatdepends <file>   Print the JSP pages that depend on the file (using the manifest").append(nl)
+                .append("                          of a previous execution) and exit").append(nl)
+                .append("    -watch                Keep running after the compilation and recompile the pages").append(nl)
+                .append("                          affected by the files modified in the webapp").append(nl)
+                .append("    -cache <dir>          Directory of the compiled classes cache shared between executions").append(nl)
+                .append("    -cacheSize <MB>       Maximum size of the cache in megabytes (default 1024)").append(nl)
+                .append("    -tldCache <dir>       Directory of the cache of TLD files parsed from jars").append(nl)
+                .append("    -report <file>        Write a JSON report with the results and the times of every page").append(nl)
+                .append("    -outputJar <file>     Write the compiled classes (and the java sources if kept and the").append(nl)
+                .append("                          web-fragment.xml) to a reproducible jar file").append(nl)
+                .append("    -batchCompile         Generate the java sources of all the pages in parallel and compile").append(nl)
+                .append("                          them later together in a single ECJ compilation").append(nl)
+                .append("    -batchShards <count>  Number of ECJ compilations (in parallel) used by -batchCompile").append(nl)
+                .append("                          (default 1)").append(nl)
+                .append("    -pipeline             Execute generation (-threadCount threads), java compilation and").append(nl)
+                .append("                          class writing in different stages connected by bounded queues").append(nl)
+                .append("    -compileThreads <count>").append(nl)
+                .append("                          Number of threads of the compile stage in -pipeline mode").append(nl)
+                .append("                          (default number of cores divided by 2)").append(nl)
+                .append("    -writeThreads <count> Number of threads of the write stage in -pipeline mode (default 1)").append(nl)
+                .append("    -queueSize <size>     Size of the queues between stages in -pipeline mode (default 64)").append(nl);
         throw new IllegalArgumentException(sb.toString());
     }
 
@@ -524,9 +829,83 @@ public class JspC {
                         usage(String.format("Invalid number of threads \"%s\"", args[i]));
                     }
                     break;
+                case "-virtualThreads":
+                    setVirtualThreads(true);
+                    break;
+                case "-watch":
+                    setWatch(true);
+                    break;
                 case "-deletesources":
                     setDeleteSources(true);
                     break;
+                case "-inMemorySources":
+                    setInMemorySources(true);
+                    break;
+                case "-incremental":
+                    setIncremental(true);
+                    break;
+                case "-manifest":
+                    setManifestFile(new File(getArgumentIndex(args[i], ++i, args)).getCanonicalPath());
+                    break;
+                case "-whatdepends":
+                    setWhatDepends(getArgumentIndex(args[i], ++i, args));
+                    break;
+                case "-cache":
+                    File cache = new File(getArgumentIndex(args[i], ++i, args));
+                    if (!cache.isDirectory() && !cache.mkdirs()) {
+                        usage(String.format("Invalid directory \"%s\" for option \"%s\"", cache, args[i - 1]));
+                    }
+                    setCacheDir(cache.getCanonicalPath());
+                    break;
+                case "-cacheSize":
+                    setCacheSize(parseInteger(args[i], ++i, args));
+                    if (cacheSize <= 0) {
+                        usage(String.format("Invalid cache size \"%s\"", args[i]));
+                    }
+                    break;
+                case "-tldCache":
+                    File tldCache = new File(getArgumentIndex(args[i], ++i, args));
+                    if (!tldCache.isDirectory() && !tldCache.mkdirs()) {
+                        usage(String.format("Invalid directory \"%s\" for option \"%s\"", tldCache, args[i - 1]));
+                    }
+                    setTldCacheDir(tldCache.getCanonicalPath());
+                    break;
+                case "-report":
+                    setReportFile(new File(getArgumentIndex(args[i], ++i, args)).getCanonicalPath());
+                    break;
+                case "-outputJar":
+                    setOutputJar(new File(getArgumentIndex(args[i], ++i, args)).getCanonicalPath());
+                    break;
+                case "-batchCompile":
+                    setBatchCompile(true);
+                    break;
+                case "-batchShards":
+                    setBatchShards(parseInteger(args[i], ++i, args));
+                    if (batchShards <= 0) {
+                        usage(String.format("Invalid number of shards \"%s\"", args[i]));
+                    }
+                    break;
+                case "-pipeline":
+                    setPipeline(true);
+                    break;
+                case "-compileThreads":
+                    setCompileThreads(parseInteger(args[i], ++i, args));
+                    if (compileThreads <= 0) {
+                        usage(String.format("Invalid number of threads \"%s\"", args[i]));
+                    }
+                    break;
+                case "-writeThreads":
+                    setWriteThreads(parseInteger(args[i], ++i, args));
+                    if (writeThreads <= 0) {
+                        usage(String.format("Invalid number of threads \"%s\"", args[i]));
+                    }
+                    break;
+                case "-queueSize":
+                    setQueueSize(parseInteger(args[i], ++i, args));
+                    if (queueSize <= 0) {
+                        usage(String.format("Invalid queue size \"%s\"", args[i]));
+                    }
+                    break;
                 default:
                     if (args[i].equals("--")) {
                         finished = true;
@@ -549,6 +928,12 @@ public class JspC {
                 }
             }
         }
+        if (batchCompile && pipeline) {
+            usage("Options -batchCompile and -pipeline cannot be used together");
+        }
+        if (watch && (batchCompile || pipeline || targetClassName != null)) {
+            usage("Option -watch cannot be used with -batchCompile, -pipeline or -c");
+        }
         if (uriRoot == null && pages.isEmpty()) {
             usage("No -webapp or JSP files passed");
         }
@@ -618,7 +1003,7 @@ public class JspC {
     // constructors
 
     public JspC() throws IOException {
-        ctx = new JspCServletContext();
+        ctx = new JspCServletContext(log);
         options = new JspCOptions(ctx);
         this.setDebugLevel(Level.WARN);
     }
@@ -631,86 +1016,196 @@ public class JspC {
 
     // methods to locate TLD inside jars and app
 
-    private void scanJar(URL url, Pattern pattern, HashMap<String, TagLibraryInfo> jspTagLibraries) throws IOException {
+    private List<JspCTldCache.Entry> scanJar(URL url, Pattern pattern) throws IOException, URISyntaxException {
         JarURLConnection conn = (JarURLConnection) url.openConnection();
+        File jar = null;
+        if (tldCache != null && conn.getJarFileURL().getProtocol().equals("file")) {
+            jar = new File(conn.getJarFileURL().toURI());
+            List<JspCTldCache.Entry> tlds = tldCache.lookup(jar, log);
+            if (tlds != null) {
+                return tlds;
+            }
+        }
+        List<JspCTldCache.Entry> tlds = new ArrayList<>();
         JarFile jarFile = conn.getJarFile();
         Enumeration<JarEntry> e = jarFile.entries();
         while (e.hasMoreElements()) {
             JarEntry entry = e.nextElement();
             if (pattern.matcher(entry.getName()).matches()) {
                 try {
-                    Utils.parseTldFile(jarFile.getName(), jarFile.getInputStream(entry), jspTagLibraries);
+                    tlds.add(new JspCTldCache.Entry(jarFile.getName(), Utils.parseTld(jarFile.getInputStream(entry))));
                 } catch (IOException|XMLStreamException ex) {
                     log.error("Error parsing TLD file from jsp file: " + jarFile.getName() + " " + entry.getName(), ex);
+                    // do not cache an incomplete jar
+                    jar = null;
                 }
             }
         }
+        if (jar != null) {
+            tldCache.store(jar, tlds, log);
+        }
+        return tlds;
     }
 
-    private void scanFilePath(URL url, HashMap<String, TagLibraryInfo> jspTagLibraries) throws IOException, URISyntaxException {
+    private List<JspCTldCache.Entry> scanFilePath(URL url) throws IOException, URISyntaxException {
+        List<JspCTldCache.Entry> tlds = new ArrayList<>();
         try (Stream<Path> paths = Files.walk(Paths.get(url.toURI()), 2)) {
             paths.filter(path -> path.endsWith(".tld"))
                     .forEach(path -> {
                         try {
-                            Utils.parseTldFile(path.toString(), Files.newInputStream(path), jspTagLibraries);
+                            tlds.add(new JspCTldCache.Entry(path.toString(), Utils.parseTld(Files.newInputStream(path))));
                         } catch (IOException | XMLStreamException ex) {
                             log.error("Error parsing TLD file from file : " + path, ex);
                         }
                     });
         }
+        return tlds;
+    }
+
+    private long getLocationSize(String location) {
+        try {
+            URL url = location.startsWith("/")? ctx.getResource(location) : new URL(location);
+            if (url != null && url.getProtocol().equals("jar")) {
+                url = ((JarURLConnection) url.openConnection()).getJarFileURL();
+            }
+            if (url != null && url.getProtocol().equals("file")) {
+                File file = new File(url.toURI());
+                return file.isFile()? file.length() : 0L;
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            log.debug("Error calculating the size of " + location, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * Wraps a TLD scan task to emit the JFR event of the location.
+     *
+     * @param location The location scanned (resource path or URL)
+     * @param task The task to wrap
+     * @return The task that emits the event
+     */
+    private Callable<List<JspCTldCache.Entry>> tldTask(String location, Callable<List<JspCTldCache.Entry>> task) {
+        return () -> {
+            JspCEvents.ScanTld event = new JspCEvents.ScanTld();
+            event.begin();
+            event.outcome = JspCEvents.OUTCOME_ERROR;
+            try {
+                List<JspCTldCache.Entry> tlds = task.call();
+                event.tlds = tlds.size();
+                event.outcome = JspCEvents.OUTCOME_SUCCESS;
+                return tlds;
+            } finally {
+                if (event.shouldCommit()) {
+                    event.location = location;
+                    event.size = getLocationSize(location);
+                }
+                event.commit();
+            }
+        };
     }
 
     private static final Pattern TLD_PATTERN_IN_JAR = Pattern.compile("META-INF/.*\\.tld");
 
-    private void scanJarsForTlds() throws IOException, URISyntaxException, XMLStreamException {
+    private void scanJarsForTlds(List<Callable<List<JspCTldCache.Entry>>> tasks) throws IOException {
         // locate all /META-INF directories in the classpath
         Enumeration<URL> e = loader.getResources("META-INF");
         while (e.hasMoreElements()) {
             URL metaInf = e.nextElement();
             if (metaInf.getProtocol().equals("file")) {
-                scanFilePath(metaInf, jspTagLibraries);
+                tasks.add(tldTask(metaInf.toString(), () -> scanFilePath(metaInf)));
             } else if (metaInf.getProtocol().equals("jar")) {
-                scanJar(metaInf, TLD_PATTERN_IN_JAR, jspTagLibraries);
+                tasks.add(tldTask(metaInf.toString(), () -> scanJar(metaInf, TLD_PATTERN_IN_JAR)));
             } else {
                 log.warn("Unmanaged protocol locating taglibs from url: " + metaInf);
             }
         }
     }
 
-    private void scanJspConfigForTlds() {
+    private void scanJspConfigForTlds(List<Callable<List<JspCTldCache.Entry>>> tasks) {
         JspConfigDescriptor desc = ctx.getJspConfigDescriptor();
         if (desc != null) {
             for (TaglibDescriptor taglib: desc.getTaglibs()) {
                 String resourcePath = taglib.getTaglibLocation();
-                try {
-                    URL url = ctx.getResource(resourcePath);
-                    Utils.parseTldFile(resourcePath, url.openStream(), jspTagLibraries);
-                } catch (IOException | XMLStreamException e) {
-                    log.warn("Error parsing TLD file from jsp-config from web.xml: " + resourcePath, e);
-                }
+                tasks.add(tldTask(resourcePath, () -> {
+                    try {
+                        URL url = ctx.getResource(resourcePath);
+                        return Collections.singletonList(new JspCTldCache.Entry(resourcePath, Utils.parseTld(url.openStream())));
+                    } catch (IOException | XMLStreamException e) {
+                        log.warn("Error parsing TLD file from jsp-config from web.xml: " + resourcePath, e);
+                        return Collections.emptyList();
+                    }
+                }));
             }
         }
     }
 
-    private void scanWebInfPathForTlds(String path) {
+    private void scanWebInfPathForTlds(String path, List<Callable<List<JspCTldCache.Entry>>> tasks) {
         Set<String> files = ctx.getResourcePaths(path);
         log.trace("files=" + files);
         for (String file : files) {
             if (file.endsWith("/")) {
-                scanWebInfPathForTlds(file);
+                scanWebInfPathForTlds(file, tasks);
             } else if (file.endsWith(".tld")) {
-                try {
-                    Utils.parseTldFile(file, ctx.getResourceAsStream(file), jspTagLibraries);
-                } catch (XMLStreamException e) {
-                    log.warn("Error parsing TLD file from WEB-INF directory: " + file, e);
+                tasks.add(tldTask(file, () -> {
+                    try {
+                        return Collections.singletonList(new JspCTldCache.Entry(file, Utils.parseTld(ctx.getResourceAsStream(file))));
+                    } catch (XMLStreamException e) {
+                        log.warn("Error parsing TLD file from WEB-INF directory: " + file, e);
+                        return Collections.emptyList();
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Locates all the TLD files (jsp-config in the web.xml, WEB-INF directory
+     * and META-INF in the jars) and parses them using a pool of threads. The
+     * taglibs are added to the context in the same order they are located,
+     * so the result does not depend on the threads.
+     *
+     * @throws IOException Some error reading the class loader
+     * @throws JasperException Some error executing the tasks
+     */
+    private void scanTlds() throws IOException, JasperException {
+        long start = System.currentTimeMillis();
+        List<Callable<List<JspCTldCache.Entry>>> tasks = new ArrayList<>();
+        scanJspConfigForTlds(tasks);
+        scanWebInfPathForTlds("/WEB-INF/", tasks);
+        scanJarsForTlds(tasks);
+        int threads = Math.max(1, Math.min(threadCount, tasks.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int parsed = 0;
+        try {
+            for (Future<List<JspCTldCache.Entry>> future : executor.invokeAll(tasks)) {
+                for (JspCTldCache.Entry tld : future.get()) {
+                    Utils.createTldInfo(tld.getLocation(), tld.getMetaData(), jspTagLibraries);
+                    parsed++;
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JasperException("Interrupted scanning TLD files", e);
+        } catch (ExecutionException e) {
+            throw new JasperException("Error scanning TLD files", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        results.addTime(JspCResults.Phase.TLD_SCAN, elapsed);
+        log.debug(String.format("Scanned %d locations and parsed %d TLD files using %d threads in %d ms",
+                tasks.size(), parsed, threads, elapsed));
+        if (tldCache != null) {
+            log.debug(String.format("TLD cache hits=%d misses=%d", tldCache.getHits(), tldCache.getMisses()));
         }
     }
 
     // the class loader from the app is added to normal class loader
 
     private ClassLoader setupClassLoader() throws IOException {
+        JspCEvents.SetupClassLoader event = new JspCEvents.SetupClassLoader();
+        event.begin();
         String optionsClasspath = options.getClassPath();
         StringBuilder classpath = new StringBuilder();
         List<URL> clUrls = new ArrayList<>();
@@ -758,37 +1253,159 @@ public class JspC {
         // construct the classloader
         options.setClassPath(classpath.toString());
         log.trace("URLs configured in class loader: " + clUrls);
-        return new URLClassLoader(clUrls.toArray(new URL[0]), Thread.currentThread().getContextClassLoader());
+        URLClassLoader classLoader = new URLClassLoader(clUrls.toArray(new URL[0]),
+                parentClassLoader != null? parentClassLoader : Thread.currentThread().getContextClassLoader());
+        if (event.shouldCommit()) {
+            event.urls = clUrls.size();
+            for (URL url : clUrls) {
+                try {
+                    File file = new File(url.toURI());
+                    event.size += file.isFile()? file.length() : 0L;
+                } catch (URISyntaxException e) {
+                    log.debug("Invalid URL in the class loader: " + url, e);
+                }
+            }
+        }
+        event.commit();
+        return classLoader;
     }
 
     // web.xml output methods
 
     private void writeWebXml() throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        long start = System.currentTimeMillis();
         if (webxmlLevel != null) {
-            switch(webxmlLevel) {
-                case ALL_WEBXML:
-                    writeAllWebXml();
-                    break;
-                case FRG_WEBXML:
-                    writeWebFragment();
-                    break;
-                case INC_WEBXML:
-                    writeWebInclude();
-                    break;
-                case MERGE_WEBXML:
-                    mergeIntoWebXml();
-                    break;
+            JspCEvents.WriteWebXml event = new JspCEvents.WriteWebXml();
+            event.begin();
+            event.outcome = JspCEvents.OUTCOME_ERROR;
+            try {
+                switch(webxmlLevel) {
+                    case ALL_WEBXML:
+                        writeAllWebXml();
+                        break;
+                    case FRG_WEBXML:
+                        writeWebFragment();
+                        break;
+                    case INC_WEBXML:
+                        writeWebInclude();
+                        break;
+                    case MERGE_WEBXML:
+                        mergeIntoWebXml();
+                        break;
+                }
+                event.outcome = JspCEvents.OUTCOME_SUCCESS;
+            } finally {
+                if (event.shouldCommit()) {
+                    event.level = webxmlLevel.name();
+                    event.file = webxmlFile;
+                    event.servlets = results.results();
+                    event.size = webxmlFile != null? new File(webxmlFile).length() : 0L;
+                }
+                event.commit();
             }
         }
+        results.addTime(JspCResults.Phase.WEB_XML, System.currentTimeMillis() - start);
+    }
+
+    private static final Set<String> MERGE_STOP_ELEMENTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "servlet-mapping", "session-config", "mime-mapping", "welcome-file-list", "error-page", "jsp-config",
+            "security-constraint", "login-config", "security-role", "env-entry", "ejb-ref", "ejb-local-ref")));
+
+    /**
+     * Locates the position to insert the generated servlets in the web.xml
+     * contents. A single StAX pass finds the first stop element inside the
+     * web-app (or the end of the web-app if there is none) and the position
+     * is moved to the start of its line if the element is the first thing in
+     * the line.
+     *
+     * @param content The web.xml contents
+     * @return The character position to insert the generated block
+     * @throws XMLStreamException Some error parsing the web.xml
+     */
+    private static int locateMergePosition(String content) throws XMLStreamException {
+        XMLStreamReader reader = Utils.createXmlStreamReader(new StringReader(content));
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (depth == 0 && !reader.getLocalName().equals("web-app")) {
+                        throw new IllegalStateException("Invalid web.xml to add mappings");
+                    }
+                    if (depth == 1 && MERGE_STOP_ELEMENTS.contains(reader.getLocalName())) {
+                        break;
+                    }
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 0) {
+                        break;
+                    }
+                }
+            }
+            // the location is just after the tag, go back to its start
+            int position = content.lastIndexOf('<', reader.getLocation().getCharacterOffset() - 1);
+            int lineStart = position;
+            while (lineStart > 0 && (content.charAt(lineStart - 1) == ' ' || content.charAt(lineStart - 1) == '\t')) {
+                lineStart--;
+            }
+            return lineStart > 0 && content.charAt(lineStart - 1) == '\n'? lineStart : position;
+        } finally {
+            reader.close();
+        }
     }
 
-    private void mergeIntoWebXml() throws IOException, ParserConfigurationException, SAXException, TransformerException {
-        // TODO: maybe we can do this better, but for the moment I have only this
-        // TODO: maybe split the method in several parts
+    /**
+     * Expands a root element written as an empty element (for example
+     * <em>&lt;web-app ... /&gt;</em>) into a start and an end tag, so the
+     * generated servlets can be inserted inside it.
+     *
+     * @param content The web.xml contents
+     * @return The contents with the root element expanded or the same contents
+     * @throws XMLStreamException Some error parsing the web.xml
+     */
+    private static String expandEmptyRoot(String content) throws XMLStreamException {
+        XMLStreamReader reader = Utils.createXmlStreamReader(new StringReader(content));
+        try {
+            while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip the prolog
+            }
+            if (!reader.isStartElement()) {
+                return content;
+            }
+            String prefix = reader.getPrefix();
+            String name = prefix == null || prefix.isEmpty()? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+            int offset = reader.getLocation().getCharacterOffset();
+            if (reader.next() != XMLStreamConstants.END_ELEMENT) {
+                return content;
+            }
+            int start = content.lastIndexOf("<" + name, offset - 1);
+            if (start < 0) {
+                return content;
+            }
+            // locate the end of the tag skipping the attribute values
+            char quote = 0;
+            int end = start;
+            while (end < content.length() && (quote != 0 || content.charAt(end) != '>')) {
+                char c = content.charAt(end);
+                if (quote == 0 && (c == '"' || c == '\'')) {
+                    quote = c;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                end++;
+            }
+            if (end >= content.length() || content.charAt(end - 1) != '/') {
+                return content;
+            }
+            return content.substring(0, end - 1) + ">" + System.lineSeparator() + "</" + name + ">" + content.substring(end + 1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void mergeIntoWebXml() throws IOException {
         File webXml = new File(this.uriRoot, "/WEB-INF/web.xml");
-        Set<String> stopElements = new HashSet(Arrays.asList(new String[]{"servlet-mapping", "session-config",
-            "mime-mapping", "welcome-file-list", "error-page", "jsp-config", "security-constraint",
-            "login-config", "security-role", "env-entry", "ejb-ref", "ejb-local-ref"}));
         if (!webXml.exists()) {
             // just write the file from scratch
             if (this.webxmlFile == null) {
@@ -796,95 +1413,64 @@ public class JspC {
                 this.webxmlFile = webXml.getAbsolutePath();
             }
             writeAllWebXml();
-        } else {
-            Document doc = Utils.readXmlIntoDocument(webXml);
-            if (!doc.getDocumentElement().getNodeName().equals("web-app")) {
-                throw new IllegalStateException("Invalid web.xml to add mappings");
-            }
-            // locate any element after the zone to insert
-            NodeList list = doc.getDocumentElement().getChildNodes();
-            Node selectedNode = null;
-            for (int i = 0; i < list.getLength(); i++) {
-                Node node = list.item(i);
-                if (node.getNodeType() == Node.ELEMENT_NODE && stopElements.contains(node.getNodeName())) {
-                    selectedNode = node;
-                    break;
-                }
-            }
-            // append all the generated data before the selected node
-            if (selectedNode != null) {
-                doc.getDocumentElement().insertBefore(doc.createTextNode("\n\n    "), selectedNode);
-                doc.getDocumentElement().insertBefore(doc.createComment("Automatically generated web include"), selectedNode);
-                doc.getDocumentElement().insertBefore(doc.createTextNode("\n    "), selectedNode);
-            } else {
-                doc.getDocumentElement().appendChild(doc.createTextNode("\n\n    "));
-                doc.getDocumentElement().appendChild(doc.createComment("Automatically generated web include"));
-                doc.getDocumentElement().appendChild(doc.createTextNode("\n    "));
-            }
-            for (JspCResults.ResultEntry entry : results.getResults()) {
-                Element servlet = doc.createElement("servlet");
-                Element servletName = doc.createElement("servlet-name");
-                servletName.setTextContent(entry.getServletName());
-                Element servletClass = doc.createElement("servlet-class");
-                servletClass.setTextContent(entry.getServletName());
-                servlet.appendChild(doc.createTextNode("\n        "));
-                servlet.appendChild(servletName);
-                servlet.appendChild(doc.createTextNode("\n        "));
-                servlet.appendChild(servletClass);
-                servlet.appendChild(doc.createTextNode("\n    "));
-                if (selectedNode != null) {
-                    doc.getDocumentElement().insertBefore(servlet, selectedNode);
-                    doc.getDocumentElement().insertBefore(doc.createTextNode("\n    "), selectedNode);
-                } else {
-                    doc.getDocumentElement().appendChild(servlet);
-                    doc.getDocumentElement().appendChild(doc.createTextNode("\n    "));
-                }
-            }
-            for (JspCResults.ResultEntry entry : results.getResults()) {
-                Element servletMapping = doc.createElement("servlet-mapping");
-                Element servletName = doc.createElement("servlet-name");
-                servletName.setTextContent(entry.getServletName());
-                Element urlPattern = doc.createElement("url-pattern");
-                urlPattern.setTextContent(entry.getJspUri());
-                servletMapping.appendChild(doc.createTextNode("\n        "));
-                servletMapping.appendChild(servletName);
-                servletMapping.appendChild(doc.createTextNode("\n        "));
-                servletMapping.appendChild(urlPattern);
-                servletMapping.appendChild(doc.createTextNode("\n    "));
-                if (selectedNode != null) {
-                    doc.getDocumentElement().insertBefore(servletMapping, selectedNode);
-                    doc.getDocumentElement().insertBefore(doc.createTextNode("\n    "), selectedNode);
-                } else {
-                    doc.getDocumentElement().appendChild(servletMapping);
-                    doc.getDocumentElement().appendChild(doc.createTextNode("\n    "));
-                }
-            }
-            if (selectedNode != null) {
-                doc.getDocumentElement().insertBefore(doc.createComment("End of web include"), selectedNode);
-                doc.getDocumentElement().insertBefore(doc.createTextNode("\n\n    "), selectedNode);
-            } else {
-                doc.getDocumentElement().appendChild(doc.createComment("End of web include"));
-                doc.getDocumentElement().appendChild(doc.createTextNode("\n\n    "));
+            return;
+        }
+        // read the original contents with its encoding
+        byte[] bytes = Files.readAllBytes(webXml.toPath());
+        String content;
+        int position;
+        try {
+            XMLStreamReader reader = Utils.createXmlStreamReader(new ByteArrayInputStream(bytes));
+            String encoding = reader.getEncoding();
+            reader.close();
+            content = new String(bytes, encoding == null? StandardCharsets.UTF_8 : Charset.forName(encoding));
+            if (content.startsWith("\uFEFF")) {
+                content = content.substring(1);
             }
-            if (webxmlFile == null || new File(webxmlFile).getCanonicalPath().equals(webXml.getCanonicalPath())) {
-                // overwriting the same web.xml in the app adding the bindings
-                // do a backup just in case and overwrite the web.xml in the app
-                webxmlFile = webXml.getAbsolutePath();
-                File backup = new File(webxmlFile + ".jspc-" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()));
-                webXml.renameTo(backup);
+            content = expandEmptyRoot(content);
+            position = locateMergePosition(content);
+        } catch (XMLStreamException e) {
+            throw new IOException("Error parsing the web.xml file: " + webXml, e);
+        }
+        // the original declaration is replaced with the output encoding
+        int start = content.startsWith("<?xml")? content.indexOf("?>") + 2 : 0;
+        if (start > 0 && content.startsWith("\n", start)) {
+            start++;
+        } else if (start > 0 && content.startsWith("\r\n", start)) {
+            start += 2;
+        }
+        if (webxmlFile == null || new File(webxmlFile).getCanonicalPath().equals(webXml.getCanonicalPath())) {
+            // overwriting the same web.xml in the app adding the bindings
+            // do a backup just in case and overwrite the web.xml in the app
+            webxmlFile = webXml.getAbsolutePath();
+            File backup = new File(webxmlFile + ".jspc-" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()));
+            webXml.renameTo(backup);
+        }
+        // write the original contents with the generated servlets injected
+        try (BufferedWriter writer = Utils.createXmlWriter(new FileOutputStream(webxmlFile), webxmlEncoding)) {
+            writer.write(String.format("<?xml version=\"1.0\" encoding=\"%s\"?>", webxmlEncoding.name()));
+            writer.newLine();
+            writer.write(content, start, position - start);
+            if (position > 0 && content.charAt(position - 1) != '\n') {
+                writer.newLine();
             }
-            // write the contents to web.xml
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, webxmlEncoding.name());
-            DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(webxmlFile);
-            transformer.transform(source, result);
+            writer.newLine();
+            writer.write("    <!-- Automatically generated web include -->");
+            writer.newLine();
+            writer.newLine();
+            // the servlet and mappings
+            writeEntries(writer);
+            // end web include
+            writer.newLine();
+            writer.write("    <!-- End of web include -->");
+            writer.newLine();
+            writer.newLine();
+            writer.write(content, position, content.length() - position);
         }
     }
 
     private void writeWebFragment() throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(webxmlFile), webxmlEncoding))) {
+        try (BufferedWriter writer = Utils.createXmlWriter(new FileOutputStream(webxmlFile), webxmlEncoding)) {
             writer.write(String.format("<?xml version=\"1.0\" encoding=\"%s\"?>", webxmlEncoding.name()));
             writer.newLine();
             writer.write("<web-fragment xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
@@ -908,7 +1494,7 @@ public class JspC {
     }
 
     private void writeWebInclude() throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(webxmlFile), webxmlEncoding))) {
+        try (BufferedWriter writer = Utils.createXmlWriter(new FileOutputStream(webxmlFile), webxmlEncoding)) {
             writer.write("<!-- Automatically generated web include -->");
             writer.newLine();
             writer.newLine();
@@ -922,7 +1508,7 @@ public class JspC {
     }
 
     private void writeAllWebXml() throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(webxmlFile), webxmlEncoding))) {
+        try (BufferedWriter writer = Utils.createXmlWriter(new FileOutputStream(webxmlFile), webxmlEncoding)) {
             writer.write(String.format("<?xml version=\"1.0\" encoding=\"%s\"?>", webxmlEncoding.name()));
             writer.newLine();
             writer.write("<web-app xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
@@ -944,11 +1530,14 @@ public class JspC {
     }
 
     private void writeEntries(BufferedWriter writer) throws IOException {
-        for (JspCResults.ResultEntry entry : results.getResults()) {
+        // sorted by page, the order of the results depends on the threads
+        List<JspCResults.ResultEntry> entries = new ArrayList<>(results.getResults());
+        entries.sort(Comparator.comparing(JspCResults.ResultEntry::getJspUri));
+        for (JspCResults.ResultEntry entry : entries) {
             writeServletEntry(writer, entry.getServletName());
         }
         writer.newLine();
-        for (JspCResults.ResultEntry entry : results.getResults()) {
+        for (JspCResults.ResultEntry entry : entries) {
             writeMappingEntry(writer, entry.getServletName(), entry.getJspUri());
         }
     }
@@ -957,11 +1546,11 @@ public class JspC {
         writer.write("    <servlet>");
         writer.newLine();
         writer.write("        <servlet-name>");
-        writer.write(servletName);
+        writer.write(Utils.escapeXml(servletName));
         writer.write("</servlet-name>");
         writer.newLine();
         writer.write("        <servlet-class>");
-        writer.write(servletName);
+        writer.write(Utils.escapeXml(servletName));
         writer.write("</servlet-class>");
         writer.newLine();
         writer.write("    </servlet>");
@@ -972,11 +1561,11 @@ public class JspC {
         writer.write("    <servlet-mapping>");
         writer.newLine();
         writer.write("        <servlet-name>");
-        writer.write(servletName);
+        writer.write(Utils.escapeXml(servletName));
         writer.write("</servlet-name>");
         writer.newLine();
         writer.write("        <url-pattern>");
-        writer.write(jspUri.replace('\\', '/'));
+        writer.write(Utils.escapeXml(jspUri.replace('\\', '/')));
         writer.write("</url-pattern>");
         writer.newLine();
         writer.write("    </servlet-mapping>");
@@ -985,15 +1574,13 @@ public class JspC {
 
     // real execute methods
 
-    public synchronized String nextJsp() {
-        if (pagesIterator == null) {
-            pagesIterator = pages.iterator();
-        }
-        if (pagesIterator.hasNext() && !(failFast && failOnError && results.isError())) {
-            return pagesIterator.next();
-        } else {
+    public String nextJsp() {
+        // lock-free, the list of pages is not modified during the execution
+        if (failFast && failOnError && results.isError()) {
             return null;
         }
+        int idx = nextPage.getAndIncrement();
+        return idx < pages.size()? pages.get(idx) : null;
     }
 
     private void prepareEnvironmentToCompile() throws JasperException, IOException, URISyntaxException, XMLStreamException {
@@ -1003,20 +1590,296 @@ public class JspC {
         } else if (results.total() > 0) {
             throw new JasperException("Already executed JspC instance");
         }
+        // in-memory sources, jastow generates the sources and the tag files in a local temporary directory
+        if (inMemorySources) {
+            options.setOutputDir(options.getScratchDir());
+            options.setScratchDir(Files.createTempDirectory("jspc").toFile());
+            log.debug("Generating the sources in " + options.getScratchDir());
+        }
         // load into the classpath application libs and classes
+        long start = System.currentTimeMillis();
         loader = setupClassLoader();
+        results.addTime(JspCResults.Phase.CLASS_LOADER, System.currentTimeMillis() - start);
         // setup context with missing things
         ctx.calculateJspConfigDescriptor();
         ctx.setClassLoader(loader);
+        if (engine != null) {
+            ctx.setJarEntries(engine.getJarEntries());
+        }
         // scan all possible TLD locations for taglibs and set them in the ctx for jastow
         jspTagLibraries = ctx.getJspTagLibraries();
-        scanJspConfigForTlds();
-        scanWebInfPathForTlds("/WEB-INF/");
-        scanJarsForTlds();
+        if (engine != null) {
+            tldCache = engine.getTldCache();
+        } else if (tldCacheDir != null) {
+            tldCache = new JspCTldCache(new File(tldCacheDir));
+        }
+        if (tldCache != null) {
+            // the cache of the engine is shared, the report only counts this execution
+            tldCacheHits = tldCache.getHits();
+            tldCacheMisses = tldCache.getMisses();
+        }
+        scanTlds();
         log.trace("JSP taglibs that have been found: " + jspTagLibraries);
         // finally setup the runtime and config
         rctxt = new JspRuntimeContext(ctx, options);
         config = new JspCServletConfig(ctx);
+        // load the previous manifest if incremental or the graph is requested
+        if (incremental || manifestFile != null || watch) {
+            prepareIncremental();
+        }
+        // prepare the class cache
+        if (cacheDir != null) {
+            prepareClassCache();
+        }
+        // prepare the batch compiler, the tag files are compiled in the output directory
+        // in-memory sources always use it, the pages are compiled inline in default mode
+        options.setInMemorySources(inMemorySources);
+        if (batchCompile || pipeline || inMemorySources) {
+            options.setDeferCompilation(true);
+            batchCompiler = createBatchCompiler();
+            if (pipeline) {
+                jspcPipeline = new JspCPipeline(batchCompiler, compileThreads, writeThreads, queueSize, this::completeUnit);
+            }
+        }
+    }
+
+    private JspCBatchCompiler createBatchCompiler() throws IOException {
+        // the classes of the shared loader of the engine are cached between executions
+        batchLoader = new URLClassLoader(new URL[]{options.getScratchDir().getCanonicalFile().toURI().toURL()}, loader);
+        return new JspCBatchCompiler(options, batchLoader, batchShards,
+                engine == null? null : engine.getNameEnvironment(loader), log);
+    }
+
+    private static void closeLoader(ClassLoader classLoader) throws IOException {
+        if (classLoader instanceof URLClassLoader) {
+            ((URLClassLoader) classLoader).close();
+        }
+    }
+
+    /**
+     * Closes the class loaders created by the execution (the one of the
+     * application and the one used by the batch compiler). The jars of the
+     * application are released, so the instance cannot be used to compile
+     * again after this call.
+     *
+     * @throws IOException Some error closing the loaders
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            closeLoader(batchLoader);
+        } finally {
+            batchLoader = null;
+            try {
+                closeLoader(loader);
+            } finally {
+                loader = null;
+            }
+        }
+    }
+
+    // class cache methods
+
+    private void prepareClassCache() {
+        classCache = new JspCClassCache(new File(cacheDir), cacheSize * 1024L * 1024L);
+        environmentKey = JspCClassCache.hash(options.getGenerationKey(), targetPackage,
+                digestResource("/WEB-INF/web.xml"), Utils.digestTagLibraries(jspTagLibraries));
+        log.debug("Using class cache " + cacheDir + " with environment key " + environmentKey);
+    }
+
+    private String digestResource(String resource) {
+        return digests.computeIfAbsent(resource, r -> {
+            try {
+                URL url = r.startsWith("/")? ctx.getResource(r) : new URL(r);
+                return url == null? "missing" : Utils.digest(url.openStream());
+            } catch (IOException e) {
+                return "missing";
+            }
+        });
+    }
+
+    private List<String> getGeneratedFiles(String servletName) {
+        String base = servletName.replace('.', '/');
+        String prefix = base.substring(0, base.lastIndexOf('/') + 1);
+        String simpleName = base.substring(prefix.length());
+        List<String> files = new ArrayList<>();
+        files.add(base + ".class");
+        File dir = new File(options.getOutputDir(), prefix);
+        String[] inner = dir.list((d, n) -> n.startsWith(simpleName + "$") && n.endsWith(".class"));
+        if (inner != null) {
+            for (String name : inner) {
+                files.add(prefix + name);
+            }
+        }
+        if (options.getKeepGenerated() && new File(options.getOutputDir(), base + ".java").exists()) {
+            files.add(base + ".java");
+        }
+        return files;
+    }
+
+    private JspCClassCache.Entry lookupClassCache(String pageKey) {
+        try {
+            return classCache.lookup(pageKey, this::digestResource, options.getOutputDir());
+        } catch (IOException e) {
+            log.warn("Error reading the class cache for key " + pageKey, e);
+            return null;
+        }
+    }
+
+    private void storeClassCache(String pageKey, Set<String> resources, String servletName) {
+        try {
+            classCache.store(pageKey, resources, this::digestResource, servletName,
+                    options.getOutputDir(), getGeneratedFiles(servletName));
+        } catch (IOException e) {
+            log.warn("Error storing the class cache for key " + pageKey, e);
+        }
+    }
+
+    // incremental methods
+
+    private String calculateConfiguration() {
+        return new StringBuilder(options.getGenerationKey())
+                .append(";package=").append(targetPackage)
+                .append(";className=").append(targetClassName)
+                .toString();
+    }
+
+    private void prepareIncremental() throws IOException {
+        String configuration = calculateConfiguration();
+        File file = new File(getManifestFile());
+        try {
+            previousManifest = JspCManifest.load(file);
+        } catch (IOException e) {
+            log.warn("Invalid manifest file, all the pages will be compiled: " + file, e);
+            previousManifest = new JspCManifest(null);
+        }
+        if (!configuration.equals(previousManifest.getConfiguration())) {
+            log.debug("Configuration has changed since previous execution, all the pages will be compiled");
+            previousManifest = new JspCManifest(configuration);
+        }
+        manifest = new JspCManifest(configuration);
+        if (incremental) {
+            calculateModifiedPages();
+        }
+    }
+
+    private void calculateModifiedPages() {
+        // check every resource only once and use the graph to locate the pages affected
+        Map<String, Long> current = new HashMap<>();
+        Set<String> modified = new HashSet<>();
+        for (JspCManifest.Entry entry : previousManifest.getEntries().values()) {
+            for (Map.Entry<String, Long> dep : entry.getDependencies().entrySet()) {
+                long lastModified = current.computeIfAbsent(dep.getKey(), this::getLastModified);
+                if (lastModified != dep.getValue()) {
+                    modified.add(dep.getKey());
+                }
+            }
+        }
+        modifiedPages = new JspCDependencyGraph(previousManifest).getDependents(modified);
+        log.debug("Resources modified since previous execution: " + modified + " pages affected: " + modifiedPages);
+    }
+
+    private String getResourceForFile(String file) throws IOException {
+        if (file.startsWith("jar:") || file.startsWith("file:")) {
+            return file;
+        }
+        File f = new File(file);
+        if (f.exists()) {
+            String path = f.getCanonicalPath();
+            if (uriRoot != null && path.startsWith(uriRoot + File.separator)) {
+                return path.substring(uriRoot.length()).replace('\\', '/');
+            }
+            return f.getCanonicalFile().toURI().toString();
+        }
+        // consider it a path inside the webapp
+        return file.startsWith("/")? file : "/" + file;
+    }
+
+    /**
+     * Returns the JSP pages that depend on the file passed. The dependency
+     * graph is obtained from the manifest saved by a previous execution.
+     *
+     * @param file The file (a path in the filesystem or inside the webapp)
+     * @return The list of pages that depend on the file
+     * @throws IOException Error reading the manifest
+     */
+    public Set<String> whatDepends(String file) throws IOException {
+        JspCDependencyGraph graph = new JspCDependencyGraph(JspCManifest.load(new File(getManifestFile())));
+        return graph.getDependents(Collections.singleton(getResourceForFile(file)));
+    }
+
+    private File getClassFile(String servletName) {
+        return new File(options.getOutputDir(), servletName.replace('.', File.separatorChar) + ".class");
+    }
+
+    private long getLastModified(String resource) {
+        try {
+            URL url = resource.startsWith("/")? ctx.getResource(resource) : new URL(resource);
+            return Utils.lastModified(url);
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    private String getTldResource(String uri) {
+        TagLibraryInfo tld = jspTagLibraries.get(uri);
+        if (tld == null || tld.getPath() == null) {
+            return null;
+        }
+        File file = new File(tld.getPath());
+        if (file.isAbsolute() && file.exists()) {
+            return file.toURI().toString();
+        }
+        return tld.getPath();
+    }
+
+    private JspCManifest.Entry checkUpToDate(String jspUri) {
+        JspCManifest.Entry entry = previousManifest.get(jspUri);
+        if (entry == null || modifiedPages.contains(jspUri) || !getClassFile(entry.getServletName()).exists()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void addClassDependencies(String servletName, Set<String> resources) {
+        // approximation for beans and tags: classes referenced by the servlet that are in WEB-INF/classes
+        File classFile = getClassFile(servletName);
+        try (InputStream is = new FileInputStream(classFile)) {
+            for (String className : Utils.getReferencedClasses(is)) {
+                String resource = "/WEB-INF/classes/" + className + ".class";
+                if (ctx.getResource(resource) != null) {
+                    resources.add(resource);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Error reading the referenced classes of " + classFile, e);
+        }
+    }
+
+    private Map<String, Long> calculateDependencies(Set<String> resources) {
+        Map<String, Long> dependencies = new HashMap<>();
+        for (String resource : resources) {
+            dependencies.put(resource, getLastModified(resource));
+        }
+        return dependencies;
+    }
+
+    private Set<String> calculateResources(String jspUri, String servletName, JspCServletWrapper jsw) {
+        Set<String> resources = new HashSet<>();
+        resources.add(jspUri);
+        resources.add("/WEB-INF/web.xml");
+        if (jsw.getJspEngineContext().getCompiler() instanceof JspCCompiler) {
+            JspCCompiler compiler = (JspCCompiler) jsw.getJspEngineContext().getCompiler();
+            resources.addAll(compiler.getDependants().keySet());
+            for (String uri : compiler.getTaglibs()) {
+                String tld = getTldResource(uri);
+                if (tld != null) {
+                    resources.add(tld);
+                }
+            }
+        }
+        addClassDependencies(servletName, resources);
+        return resources;
     }
 
     public JspCResults execute() throws JasperException, IOException, ParserConfigurationException, SAXException, TransformerException, URISyntaxException, XMLStreamException {
@@ -1031,14 +1894,289 @@ public class JspC {
         if (pages.isEmpty()) {
             throw new JasperException("No JSP files passed or discovered for compilation");
         }
+        if (batchCompile && pipeline) {
+            throw new JasperException("Batch and pipeline modes cannot be used together");
+        }
+        if (watch) {
+            checkWatch();
+        }
         // OK prepare and start
         log.debug("JSP to compile: " + pages);
         prepareEnvironmentToCompile();
+        sink = outputJar != null? new JspCJarSink(new File(outputJar)) : null;
+        sinkError = null;
+        try {
+            if (reportFile == null) {
+                compileAll();
+            } else {
+                // stream the results to the report while the pages are finished
+                try (JspCReport report = new JspCReport(new File(reportFile))) {
+                    report.start(threadCount, virtualThreads? "virtual" : pipeline? "pipeline" : batchCompile? "batch" : "default", results);
+                    results.setListener(report::add);
+                    compileAll();
+                    results.setListener(null);
+                    report.finish(results, tldCache, tldCacheHits, tldCacheMisses, ctx.getResourceCache());
+                }
+            }
+            if (inMemorySources) {
+                copyTagFiles();
+            }
+            if (sink != null) {
+                closeSink();
+            }
+        } finally {
+            if (inMemorySources) {
+                removeGenerationDir();
+            }
+        }
+        if (watch) {
+            updateServlets(Collections.emptySet());
+        }
+        return results;
+    }
+
+    private void compileAll() throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        if (jspcPipeline != null) {
+            log.debug(String.format("Pipeline with %d compile threads, %d write threads and queues of size %d",
+                    compileThreads, writeThreads, queueSize));
+            jspcPipeline.start();
+        }
+        // schedule the most expensive pages first if several threads
+        if (threadCount > 1 || jspcPipeline != null || virtualThreads) {
+            sortPagesByCost();
+        }
         // execute the first JSP without threads because of the class name issue
         if (this.targetClassName != null) {
             compileJsp(this.nextJsp());
         }
         // create the threads and execute them
+        ExecutorService executor = virtualThreads? createVirtualThreadExecutor() : null;
+        if (executor != null) {
+            executeInVirtualThreads(executor);
+        } else {
+            executeInCompilerThreads();
+        }
+        // wait for the pipeline or compile all the generated sources in batch mode
+        if (jspcPipeline != null) {
+            jspcPipeline.finish();
+        } else if (batchCompile) {
+            compileBatch();
+        }
+        // save the incremental information
+        if (manifest != null) {
+            manifest.save(new File(getManifestFile()));
+        }
+        // clean the class cache if too big
+        if (classCache != null) {
+            int removed = classCache.evict();
+            log.debug(String.format("Class cache hits=%d misses=%d evicted=%d", results.getCacheHits(), results.getCacheMisses(), removed));
+        }
+        JspCResourceCache resourceCache = ctx.getResourceCache();
+        log.debug(String.format("Resource cache hits=%d misses=%d", resourceCache.getHits(), resourceCache.getMisses()));
+        // write the XML if not error or forced
+        if (!results.isError() || !failOnError) {
+            writeWebXml();
+        }
+    }
+
+    // watch methods
+
+    private void checkWatch() throws IOException, JasperException {
+        if (batchCompile || pipeline || inMemorySources || targetClassName != null || outputJar != null) {
+            throw new JasperException("Watch mode cannot be used with batch, pipeline, in-memory sources, target class name or output jar");
+        }
+        if (webxmlLevel == WEBXML_LEVEL.MERGE_WEBXML && (webxmlFile == null
+                || new File(webxmlFile).getCanonicalPath().equals(new File(uriRoot, "WEB-INF/web.xml").getCanonicalPath()))) {
+            throw new JasperException("Watch mode cannot merge the mappings into the web.xml of the application");
+        }
+    }
+
+    private boolean updateServlets(Set<String> deletedPages) {
+        Map<String, String> previous = new TreeMap<>(servlets);
+        failedPages.clear();
+        for (String jspUri : deletedPages) {
+            servlets.remove(jspUri);
+        }
+        for (JspCResults.ResultEntry entry : results.getResults()) {
+            servlets.put(entry.getJspUri(), entry.getServletName());
+        }
+        for (JspCResults.ResultEntry entry : results.getErrors()) {
+            servlets.remove(entry.getJspUri());
+            failedPages.add(entry.getJspUri());
+        }
+        return !previous.equals(servlets);
+    }
+
+    /**
+     * Writes the web XML file with the servlets passed instead of the ones
+     * in the results. Used by the watch mode to write all the servlets and
+     * not only the ones compiled in the cycle (and by the benchmarks).
+     *
+     * @param servlets The map of JSP URIs and servlet names
+     * @throws IOException Some error
+     * @throws ParserConfigurationException Some error
+     * @throws SAXException Some error
+     * @throws TransformerException Some error
+     */
+    void writeWebXml(Map<String, String> servlets) throws IOException, ParserConfigurationException, SAXException, TransformerException {
+        JspCResults current = results;
+        results = new JspCResults(dieLevel);
+        try {
+            for (Map.Entry<String, String> servlet : servlets.entrySet()) {
+                results.addSuccess(servlet.getKey(), servlet.getValue());
+            }
+            writeWebXml();
+            if (current != null) {
+                current.addTime(JspCResults.Phase.WEB_XML, results.getTime(JspCResults.Phase.WEB_XML));
+            }
+        } finally {
+            results = current;
+        }
+    }
+
+    private void reloadClassLoader() throws IOException, JasperException {
+        ctx.calculateJspConfigDescriptor();
+        long start = System.currentTimeMillis();
+        ClassLoader oldLoader = loader;
+        URLClassLoader oldBatchLoader = batchLoader;
+        loader = setupClassLoader();
+        results.addTime(JspCResults.Phase.CLASS_LOADER, System.currentTimeMillis() - start);
+        ctx.setClassLoader(loader);
+        if (batchCompiler != null) {
+            // the classes of the application are cached in the environment
+            batchCompiler = createBatchCompiler();
+        }
+        // release the jars of the previous loaders, they are not used anymore
+        try {
+            closeLoader(oldBatchLoader);
+        } finally {
+            closeLoader(oldLoader);
+        }
+        jspTagLibraries.clear();
+        scanTlds();
+    }
+
+    /**
+     * Compiles again the pages affected by the files modified (watch mode).
+     * The dependency graph of the current execution is used to locate the
+     * pages, and new pages and pages that failed previously are also
+     * compiled. If a file inside <em>WEB-INF/lib</em>,
+     * <em>WEB-INF/classes</em> or the <em>web.xml</em> is modified the class
+     * loader and the TLDs are loaded again. The web.xml output is only
+     * written if the servlets have changed.
+     *
+     * @param files The files created, modified or deleted
+     * @return The results of the pages compiled
+     * @throws JasperException Some error
+     * @throws IOException Some error
+     * @throws ParserConfigurationException Some error writing the web.xml
+     * @throws SAXException Some error writing the web.xml
+     * @throws TransformerException Some error writing the web.xml
+     */
+    public JspCResults recompile(Collection<File> files) throws JasperException, IOException, ParserConfigurationException, SAXException, TransformerException {
+        if (!watch || manifest == null) {
+            throw new JasperException("The JspC should be executed in watch mode before recompiling");
+        }
+        Set<String> resources = new HashSet<>();
+        Set<String> newPages = new HashSet<>();
+        Set<String> deletedPages = new HashSet<>();
+        boolean reload = false;
+        for (File file : files) {
+            String path = file.getCanonicalPath();
+            if (path.startsWith(uriRoot + File.separator)) {
+                String resource = path.substring(uriRoot.length()).replace('\\', '/');
+                resources.add(resource);
+                reload = reload || resource.startsWith("/WEB-INF/lib/") || resource.startsWith("/WEB-INF/classes/")
+                        || resource.equals("/WEB-INF/web.xml");
+                if (resource.endsWith(".jsp") || resource.endsWith(".jspx")) {
+                    (file.exists()? newPages : deletedPages).add(resource);
+                }
+            }
+            resources.add(file.getCanonicalFile().toURI().toString());
+        }
+        results = new JspCResults(dieLevel);
+        if (reload) {
+            reloadClassLoader();
+        } else {
+            // the resources are cached, take a new snapshot
+            ctx.resetResourceCache();
+        }
+        Set<String> affected = new TreeSet<>(new JspCDependencyGraph(manifest).getDependents(resources));
+        affected.addAll(newPages);
+        affected.addAll(failedPages);
+        affected.removeAll(deletedPages);
+        for (String jspUri : deletedPages) {
+            manifest.remove(jspUri);
+        }
+        log.debug("Files modified: " + resources + " pages affected: " + affected);
+        // compile the affected pages with the same runtime context
+        modifiedPages = affected;
+        pages = new ArrayList<>(affected);
+        nextPage.set(0);
+        if (!pages.isEmpty()) {
+            executeInCompilerThreads();
+        }
+        manifest.save(new File(getManifestFile()));
+        if (updateServlets(deletedPages) && (!results.isError() || !failOnError)) {
+            writeWebXml(servlets);
+        }
+        return results;
+    }
+
+    // thread methods
+
+    private ExecutorService createVirtualThreadExecutor() {
+        try {
+            // use reflection because the tool is compiled for java 11
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Virtual threads are not available in this JVM, using " + threadCount + " normal threads");
+            log.debug("Error creating the virtual thread executor", e);
+            return null;
+        }
+    }
+
+    private void executeInVirtualThreads(ExecutorService executor) {
+        int permits = Runtime.getRuntime().availableProcessors();
+        options.setCompileSemaphore(new Semaphore(permits));
+        log.debug(String.format("Compilation will be executed with a virtual thread per page (%d pages) "
+                + "and %d concurrent java compilations", pages.size(), permits));
+        try {
+            for (int i = 0; i < pages.size(); i++) {
+                executor.execute(() -> {
+                    String jsp = nextJsp();
+                    if (jsp != null) {
+                        compileJspInBudget(jsp);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.warn("Interruped waiting for virtual threads", e);
+            }
+            options.setCompileSemaphore(null);
+        }
+    }
+
+    void compileJspInBudget(String jsp) {
+        Semaphore budget = options.getThreadBudget();
+        if (budget == null) {
+            compileJsp(jsp);
+            return;
+        }
+        budget.acquireUninterruptibly();
+        try {
+            compileJsp(jsp);
+        } finally {
+            budget.release();
+        }
+    }
+
+    private void executeInCompilerThreads() {
         log.debug(String.format("Compilation will be executed with %d threads", threadCount));
         CompilerThread[] compilers = new CompilerThread[threadCount];
         for (int i = 0; i < threadCount; i++) {
@@ -1053,27 +2191,249 @@ public class JspC {
                 log.warn("Interruped waiting for thread " + i, e);
             }
         }
-        // write the XML if not error or forced
-        if (!results.isError() || !failOnError) {
-            writeWebXml();
+    }
+
+    // scheduling methods
+
+    private long getPageSize(String jspUri) {
+        // pages inside jars are not considered (length returns 0)
+        return new File(uriRoot, jspUri).length();
+    }
+
+    /**
+     * Sorts the pages using the longest processing time first rule. The cost
+     * of every page is the duration saved in the manifest by the previous
+     * execution. Pages without a previous duration are estimated using the
+     * size of the JSP file and the milliseconds per byte of the pages with
+     * duration (or just the size if there is no previous information). If
+     * the target class name is set the first page is not moved.
+     */
+    private void sortPagesByCost() throws IOException {
+        Map<String, Long> durations = new HashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        long totalDuration = 0, totalSize = 0;
+        for (String page : pages) {
+            String jspUri = toJspUri(page);
+            long size = getPageSize(jspUri);
+            sizes.put(page, size);
+            JspCManifest.Entry entry = previousManifest != null? previousManifest.get(jspUri) : null;
+            if (entry != null && entry.getDuration() >= 0) {
+                durations.put(page, entry.getDuration());
+                totalDuration += entry.getDuration();
+                totalSize += size;
+            }
+        }
+        double ratio = totalSize > 0 && totalDuration > 0? (double) totalDuration / totalSize : 1.0;
+        Map<String, Double> costs = new HashMap<>();
+        for (String page : pages) {
+            Long duration = durations.get(page);
+            costs.put(page, duration != null? duration : sizes.get(page) * ratio);
+        }
+        List<String> sorted = new ArrayList<>(pages);
+        int first = this.targetClassName != null? 1 : 0;
+        sorted.subList(first, sorted.size()).sort((p1, p2) -> Double.compare(costs.get(p2), costs.get(p1)));
+        pages = sorted;
+        log.debug("JSP pages sorted by cost: " + pages);
+    }
+
+    private void compileBatch() {
+        log.debug(String.format("Compiling %d generated pages in batch mode", batchCompiler.getUnits().size()));
+        batchCompiler.compile();
+        for (JspCBatchCompiler.Unit unit : batchCompiler.getUnits()) {
+            completeUnit(unit);
         }
-        return results;
+    }
+
+    private void compileUnit(JspCBatchCompiler.Unit unit) throws InterruptedException {
+        Semaphore semaphore = options.getCompileSemaphore();
+        if (semaphore != null) {
+            semaphore.acquire();
+        }
+        try {
+            batchCompiler.compile(Collections.singletonList(unit));
+        } finally {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+        }
+        batchCompiler.write(unit);
+        completeUnit(unit);
+    }
+
+    private void completeUnit(JspCBatchCompiler.Unit unit) {
+        if (unit.getError() != null) {
+            log.warn("Error in file: " + unit.getJsp(), unit.getError());
+            this.results.addError(unit.getJspUri(), unit.getError());
+        } else {
+            Map<JspCResults.Phase, Long> times = new EnumMap<>(JspCResults.Phase.class);
+            times.put(JspCResults.Phase.GENERATE, unit.getDuration());
+            times.put(JspCResults.Phase.QUEUE, unit.getQueueTime());
+            times.put(JspCResults.Phase.COMPILE, unit.getCompileTime());
+            times.put(JspCResults.Phase.WRITE, unit.getWriteTime());
+            addCompiled(unit.getJsp(), unit.getJspUri(), unit.getServletName(), unit.getPageKey(),
+                    unit.getServletWrapper(), times);
+        }
+    }
+
+    private void addCompiled(String jsp, String jspUri, String servletName, String pageKey, JspCServletWrapper jsw,
+            Map<JspCResults.Phase, Long> times) {
+        if (manifest != null || classCache != null) {
+            Set<String> resources = calculateResources(jspUri, servletName, jsw);
+            if (manifest != null) {
+                // the time waiting in the queues is not a cost of the page
+                long duration = times.values().stream().mapToLong(Long::longValue).sum()
+                        - times.getOrDefault(JspCResults.Phase.QUEUE, 0L);
+                manifest.put(jspUri, new JspCManifest.Entry(servletName, calculateDependencies(resources), duration));
+            }
+            if (classCache != null) {
+                storeClassCache(pageKey, resources, servletName);
+            }
+        }
+        addToSink(servletName);
+        long sourceSize = jsw.getJspEngineContext().getCompiler() instanceof JspCCompiler?
+                ((JspCCompiler) jsw.getJspEngineContext().getCompiler()).getSourceSize() : 0L;
+        this.results.addSuccess(jspUri, servletName, times, sourceSize, getClassSize(servletName));
+        log.info("Built file: " + jsp);
+    }
+
+    private long getClassSize(String servletName) {
+        return new File(options.getOutputDir(), servletName.replace('.', File.separatorChar) + ".class").length();
+    }
+
+    // output sink methods
+
+    private void addToSink(String name, File file) {
+        try {
+            sink.add(name, file);
+        } catch (IOException e) {
+            // called by the compiler threads, the error is thrown at the end
+            log.warn("Error adding file to the output: " + file, e);
+            sinkError = e;
+        }
+    }
+
+    private void addToSink(String servletName) {
+        if (sink != null) {
+            for (String name : getGeneratedFiles(servletName)) {
+                File file = new File(options.getOutputDir(), name);
+                if (file.isFile()) {
+                    addToSink(name, file);
+                }
+            }
+        }
+    }
+
+    private void copyTagFiles() throws IOException {
+        // the tag files are compiled by jastow in the temporary directory, copy the classes to the output
+        Path scratch = options.getScratchDir().toPath();
+        Path tags = scratch.resolve(Constants.TAG_FILE_PACKAGE_NAME.replace('.', '/'));
+        if (Files.isDirectory(tags)) {
+            try (Stream<Path> paths = Files.walk(tags)) {
+                for (Path p : paths.filter(Files::isRegularFile)
+                        .filter(p -> p.toString().endsWith(".class") || (options.getKeepGenerated() && p.toString().endsWith(".java")))
+                        .collect(Collectors.toList())) {
+                    Path target = options.getOutputDir().toPath().resolve(scratch.relativize(p).toString());
+                    Files.createDirectories(target.getParent());
+                    Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private void removeGenerationDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(options.getScratchDir().toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } finally {
+            options.setScratchDir(options.getOutputDir());
+            options.setOutputDir(null);
+        }
+    }
+
+    private void closeSink() throws IOException {
+        // the tag files are compiled by jastow when needed, add all of them at the end
+        Path tags = options.getOutputDir().toPath().resolve(Constants.TAG_FILE_PACKAGE_NAME.replace('.', '/'));
+        if (Files.isDirectory(tags)) {
+            try (Stream<Path> paths = Files.walk(tags)) {
+                paths.filter(Files::isRegularFile)
+                        .filter(p -> p.toString().endsWith(".class") || (options.getKeepGenerated() && p.toString().endsWith(".java")))
+                        .forEach(p -> {
+                            String name = options.getOutputDir().toPath().relativize(p).toString().replace(File.separatorChar, '/');
+                            if (!sink.contains(name)) {
+                                addToSink(name, p.toFile());
+                            }
+                        });
+            }
+        }
+        if (webxmlLevel == WEBXML_LEVEL.FRG_WEBXML && webxmlFile != null && new File(webxmlFile).isFile()) {
+            addToSink("META-INF/web-fragment.xml", new File(webxmlFile));
+        }
+        if (sinkError != null) {
+            throw sinkError;
+        }
+        sink.close();
+        sink = null;
+    }
+
+    private String toJspUri(String jsp) throws IOException {
+        String jspUri = jsp;
+        // the jsp should be under uriRoot
+        File fjsp = new File(jsp);
+        String absPath = fjsp.getCanonicalPath();
+        if (absPath.startsWith(uriRoot)) {
+            // given JSP files directly the uriRoot should be removed
+            jspUri = absPath.substring(uriRoot.length());
+        }
+        return jspUri.replace('\\', '/');
     }
 
     public void compileJsp(String jsp) {
         log.trace("jsp=" + jsp);
+        long start = System.currentTimeMillis();
         String jspUri = jsp;
         ClassLoader originalClassLoader = null;
+        JspCEvents.CompileJsp event = new JspCEvents.CompileJsp();
+        event.begin();
+        event.outcome = JspCEvents.OUTCOME_ERROR;
         try {
-            // the jsp should be under uriRoot
-            File fjsp = new File(jsp);
-            String absPath = fjsp.getCanonicalPath();
-            if (absPath.startsWith(uriRoot)) {
-                // given JSP files directly the uriRoot should be removed
-                jspUri = absPath.substring(uriRoot.length());
-            }
-            jspUri = jspUri.replace('\\', '/');
+            jspUri = toJspUri(jsp);
             log.trace("final JSP to compile: " + jspUri);
+            // skip the page if not modified in incremental mode
+            if (incremental) {
+                JspCManifest.Entry entry = checkUpToDate(jspUri);
+                if (entry != null) {
+                    targetClassName = null; // only the first class
+                    manifest.put(jspUri, entry);
+                    addToSink(entry.getServletName());
+                    this.results.addSkipped(jspUri, entry.getServletName());
+                    event.servletName = entry.getServletName();
+                    event.outcome = JspCEvents.OUTCOME_SKIPPED;
+                    log.info("Skipped up-to-date file: " + jsp);
+                    return;
+                }
+            }
+            // locate the page in the class cache
+            String pageKey = null;
+            if (classCache != null) {
+                pageKey = JspCClassCache.hash(environmentKey, jspUri, targetClassName, digestResource(jspUri));
+                JspCClassCache.Entry entry = lookupClassCache(pageKey);
+                if (entry != null) {
+                    targetClassName = null; // only the first class
+                    long duration = System.currentTimeMillis() - start;
+                    if (manifest != null) {
+                        manifest.put(jspUri, new JspCManifest.Entry(entry.getServletName(),
+                                calculateDependencies(entry.getResources()), duration));
+                    }
+                    this.results.addCacheHit();
+                    addToSink(entry.getServletName());
+                    this.results.addSuccess(jspUri, entry.getServletName(),
+                            Collections.singletonMap(JspCResults.Phase.WRITE, duration), 0L, getClassSize(entry.getServletName()));
+                    event.servletName = entry.getServletName();
+                    event.outcome = JspCEvents.OUTCOME_CACHED;
+                    log.info("Copied from cache file: " + jsp);
+                    return;
+                }
+                this.results.addCacheMiss();
+            }
             // generate the servlet compiler for jastow
             JspCServletWrapper jsw = new JspCServletWrapper(config, options, jspUri, rctxt);
             // assign the package name and class
@@ -1084,6 +2444,10 @@ public class JspC {
             if (targetPackage != null) {
                 jsw.setServletPackageName(targetPackage);
             }
+            if (incremental || watch) {
+                // the page is modified, remove the class to force jastow to compile it
+                new File(jsw.getJspEngineContext().getClassFileName()).delete();
+            }
             // assign the class loaders
             originalClassLoader = Thread.currentThread().getContextClassLoader();
             Thread.currentThread().setContextClassLoader(loader);
@@ -1092,17 +2456,54 @@ public class JspC {
             jsw.compile();
             String servletName = ("".equals(jsw.getServletPackageName()))?
                     jsw.getServletClassName() : jsw.getServletPackageName() + '.' + jsw.getServletClassName();
-            // add the results to the list
-            this.results.addSuccess(jspUri, servletName);
-
-            log.info("Built file: " + jsp);
+            event.servletName = servletName;
+            if (event.shouldCommit() && jsw.getJspEngineContext().getCompiler() instanceof JspCCompiler) {
+                event.sourceSize = ((JspCCompiler) jsw.getJspEngineContext().getCompiler()).getSourceSize();
+            }
+            if (batchCompiler != null && jsw.getJspEngineContext().getCompiler() instanceof JspCCompiler
+                    && ((JspCCompiler) jsw.getJspEngineContext().getCompiler()).isDeferred()) {
+                // the java file will be compiled later by the batch or the pipeline
+                JspCBatchCompiler.Unit unit = new JspCBatchCompiler.Unit(jsp, jspUri, pageKey, servletName, jsw,
+                        System.currentTimeMillis() - start);
+                if (jspcPipeline != null) {
+                    jspcPipeline.submit(unit);
+                } else if (batchCompile) {
+                    batchCompiler.add(unit);
+                } else {
+                    // in-memory source in default mode, compile it now in this thread
+                    compileUnit(unit);
+                    event.outcome = unit.getError() == null? JspCEvents.OUTCOME_COMPILED : JspCEvents.OUTCOME_ERROR;
+                    return;
+                }
+                event.outcome = JspCEvents.OUTCOME_DEFERRED;
+                log.debug("Generated file: " + jsp);
+                return;
+            }
+            // add the results to the list, jastow compiles and writes the class in the same step
+            Map<JspCResults.Phase, Long> times = new EnumMap<>(JspCResults.Phase.class);
+            long total = System.currentTimeMillis() - start;
+            if (jsw.getJspEngineContext().getCompiler() instanceof JspCCompiler) {
+                JspCCompiler compiler = (JspCCompiler) jsw.getJspEngineContext().getCompiler();
+                times.put(JspCResults.Phase.QUEUE, compiler.getWaitTime());
+                times.put(JspCResults.Phase.COMPILE, compiler.getCompileTime());
+                total -= compiler.getWaitTime() + compiler.getCompileTime();
+            }
+            times.put(JspCResults.Phase.GENERATE, total);
+            addCompiled(jsp, jspUri, servletName, pageKey, jsw, times);
+            event.outcome = JspCEvents.OUTCOME_COMPILED;
+            if (event.shouldCommit()) {
+                event.classSize = getClassSize(servletName);
+            }
         } catch (Throwable e) {
             log.warn("Error in file: " + jsp, e);
             this.results.addError(jspUri, e);
+            event.outcome = JspCEvents.OUTCOME_ERROR;
         } finally {
             if (originalClassLoader != null) {
                 Thread.currentThread().setContextClassLoader(originalClassLoader);
             }
+            event.jspUri = jspUri;
+            event.commit();
         }
     }
 
@@ -1110,9 +2511,34 @@ public class JspC {
 
     public static void main(String... args) throws Exception {
         JspC jspc = new JspC(args);
+        // the command line owns the JVM, the level is also applied to the rest of classes of the package
+        Configurator.setLevel(JspC.class.getPackageName(), jspc.getDebugLevel());
+        if (jspc.getWhatDepends() != null) {
+            Set<String> dependents = jspc.whatDepends(jspc.getWhatDepends());
+            for (String page : dependents) {
+                System.out.println(page);
+            }
+            System.out.println(String.format("[%d] pages depend on \"%s\"", dependents.size(), jspc.getWhatDepends()));
+            System.exit(0);
+        }
         JspCResults results = jspc.execute();
         System.out.println(String.format("Generation completed for [%d] files with [%d] errors in [%d] milliseconds",
                 results.total(), results.errors(), results.getTime()));
+        if (results.skipped() > 0) {
+            System.out.println(String.format("Skipped [%d] up-to-date files", results.skipped()));
+        }
+        if (jspc.getCacheDir() != null) {
+            System.out.println(String.format("Class cache hits [%d] and misses [%d]", results.getCacheHits(), results.getCacheMisses()));
+        }
+        for (String line : results.getSummary(SUMMARY_SLOWEST_PAGES)) {
+            System.out.println(line);
+        }
+        if (jspc.isWatch()) {
+            try (JspCWatcher watcher = new JspCWatcher(jspc, JspCWatcher.DEFAULT_DEBOUNCE)) {
+                System.out.println(String.format("Watching for changes in [%s]", jspc.getUriRoot()));
+                watcher.run();
+            }
+        }
         System.exit(results.getErrorCode());
     }
 
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import org.apache.jasper.JasperException;
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.compiler.JavacErrorDetail;
+import org.apache.jasper.compiler.SmapUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jdt.core.compiler.IProblem;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+
+/**
+ * <p>Second phase of the batch mode. The java files generated (in parallel)
+ * by jastow for all the pages are compiled together using one ECJ
+ * compilation, or several if the units are split in shards. All the
+ * compilations share the same name environment, so the classpath is only
+ * read once. The compilation problems are mapped back to the JSP page of
+ * every unit like jastow does.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCBatchCompiler {
+
+    /**
+     * A page whose java compilation was deferred to the batch phase.
+     */
+    public static class Unit implements ICompilationUnit {
+
+        private final String jsp;
+        private final String jspUri;
+        private final String pageKey;
+        private final String servletName;
+        private final JspCServletWrapper jsw;
+        private final JspCCompiler compiler;
+        private final String javaFileName;
+        private final long duration;
+        private long queued;
+        private long queueTime;
+        private long compileTime;
+        private long writeTime;
+        private final List<JavacErrorDetail> problems = new ArrayList<>();
+        private final Map<String, byte[]> classFiles = new LinkedHashMap<>();
+        private Throwable error;
+
+        public Unit(String jsp, String jspUri, String pageKey, String servletName, JspCServletWrapper jsw, long duration) {
+            this.jsp = jsp;
+            this.jspUri = jspUri;
+            this.pageKey = pageKey;
+            this.servletName = servletName;
+            this.jsw = jsw;
+            this.compiler = (JspCCompiler) jsw.getJspEngineContext().getCompiler();
+            this.javaFileName = compiler.getContext().getServletJavaFileName();
+            this.duration = duration;
+            this.queued = System.currentTimeMillis();
+        }
+
+        public String getJsp() {
+            return jsp;
+        }
+
+        public String getJspUri() {
+            return jspUri;
+        }
+
+        public String getPageKey() {
+            return pageKey;
+        }
+
+        public String getServletName() {
+            return servletName;
+        }
+
+        public JspCServletWrapper getServletWrapper() {
+            return jsw;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Marks the unit as failed, the first error assigned is kept.
+         *
+         * @param e The error
+         */
+        void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        /**
+         * The time spent generating the java file of the page.
+         *
+         * @return The duration in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * The time waiting to be compiled and written.
+         *
+         * @return The duration in milliseconds
+         */
+        public long getQueueTime() {
+            return queueTime;
+        }
+
+        /**
+         * The time compiling the unit. If several units are compiled
+         * together the time is split between them.
+         *
+         * @return The duration in milliseconds
+         */
+        public long getCompileTime() {
+            return compileTime;
+        }
+
+        /**
+         * The time writing the classes and finishing the unit.
+         *
+         * @return The duration in milliseconds
+         */
+        public long getWriteTime() {
+            return writeTime;
+        }
+
+        @Override
+        public char[] getFileName() {
+            return javaFileName.toCharArray();
+        }
+
+        @Override
+        public char[] getContents() {
+            char[] source = compiler.getSource();
+            if (source != null) {
+                return source;
+            }
+            try {
+                String encoding = compiler.getContext().getOptions().getJavaEncoding();
+                return Files.readString(new File(javaFileName).toPath(), Charset.forName(encoding)).toCharArray();
+            } catch (IOException e) {
+                error = e;
+                return new char[0];
+            }
+        }
+
+        @Override
+        public char[] getMainTypeName() {
+            int dot = servletName.lastIndexOf('.');
+            return servletName.substring(dot + 1).toCharArray();
+        }
+
+        @Override
+        public char[][] getPackageName() {
+            int dot = servletName.lastIndexOf('.');
+            if (dot < 0) {
+                return new char[0][];
+            }
+            String[] names = servletName.substring(0, dot).split("\\.");
+            char[][] result = new char[names.length][];
+            for (int i = 0; i < names.length; i++) {
+                result[i] = names[i].toCharArray();
+            }
+            return result;
+        }
+    }
+
+    private final Logger log;
+    private final JspCOptions options;
+    private final JspCNameEnvironment environment;
+    private final int shards;
+    private final List<Unit> units = Collections.synchronizedList(new ArrayList<>());
+
+    public JspCBatchCompiler(JspCOptions options, ClassLoader loader, int shards) {
+        this(options, loader, shards, null);
+    }
+
+    public JspCBatchCompiler(JspCOptions options, ClassLoader loader, int shards, JspCNameEnvironment parent) {
+        this(options, loader, shards, parent, LogManager.getLogger(JspC.class.getPackageName()));
+    }
+
+    public JspCBatchCompiler(JspCOptions options, ClassLoader loader, int shards, JspCNameEnvironment parent, Logger log) {
+        this.log = log;
+        this.options = options;
+        this.environment = new JspCNameEnvironment(loader, parent);
+        this.shards = shards;
+    }
+
+    Logger getLog() {
+        return log;
+    }
+
+    JspCOptions getOptions() {
+        return options;
+    }
+
+    public void add(Unit unit) {
+        units.add(unit);
+    }
+
+    public List<Unit> getUnits() {
+        return Collections.unmodifiableList(units);
+    }
+
+    private static String version(String version) {
+        return version != null && CompilerOptions.versionToJdkLevel(version) != 0? version : CompilerOptions.VERSION_11;
+    }
+
+    private Map<String, String> getSettings() {
+        // same settings used by jastow in the JDTCompiler
+        Map<String, String> settings = new HashMap<>();
+        settings.put(CompilerOptions.OPTION_LineNumberAttribute, CompilerOptions.GENERATE);
+        settings.put(CompilerOptions.OPTION_SourceFileAttribute, CompilerOptions.GENERATE);
+        settings.put(CompilerOptions.OPTION_ReportDeprecation, CompilerOptions.IGNORE);
+        if (options.getJavaEncoding() != null) {
+            settings.put(CompilerOptions.OPTION_Encoding, options.getJavaEncoding());
+        }
+        if (options.getClassDebugInfo()) {
+            settings.put(CompilerOptions.OPTION_LocalVariableAttribute, CompilerOptions.GENERATE);
+        }
+        settings.put(CompilerOptions.OPTION_Source, version(options.getCompilerSourceVM()));
+        settings.put(CompilerOptions.OPTION_TargetPlatform, version(options.getCompilerTargetVM()));
+        settings.put(CompilerOptions.OPTION_Compliance, version(options.getCompilerTargetVM()));
+        return settings;
+    }
+
+    private void writeClassFiles(Unit unit) throws IOException {
+        for (Map.Entry<String, byte[]> classFile : unit.classFiles.entrySet()) {
+            File file = new File(options.getOutputDir().getAbsoluteFile(), classFile.getKey());
+            file.getParentFile().mkdirs();
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+                os.write(classFile.getValue());
+            }
+        }
+        unit.classFiles.clear();
+    }
+
+    private String toOutput(String fileName) {
+        // with in-memory sources jastow works in a temporary directory, the files go to the output directory
+        String scratch = options.getScratchDir().getAbsolutePath();
+        if (options.getOutputDir().equals(options.getScratchDir()) || !fileName.startsWith(scratch)) {
+            return fileName;
+        }
+        return new File(options.getOutputDir().getAbsoluteFile(), fileName.substring(scratch.length())).getPath();
+    }
+
+    private void acceptResult(Map<String, Unit> files, CompilationResult result) {
+        Unit unit = files.get(new String(result.getFileName()));
+        if (unit == null) {
+            // not a unit of this shard
+            return;
+        }
+        try {
+            if (result.hasProblems()) {
+                for (IProblem problem : result.getProblems()) {
+                    if (problem.isError()) {
+                        unit.problems.add(unit.compiler.createJavacError(unit.javaFileName,
+                                problem.getMessage(), problem.getSourceLineNumber()));
+                    }
+                }
+            }
+            if (unit.problems.isEmpty()) {
+                // the class files are reused by ECJ, copy the bytes
+                for (ClassFile classFile : result.getClassFiles()) {
+                    StringBuilder name = new StringBuilder();
+                    for (char[] part : classFile.getCompoundName()) {
+                        if (name.length() > 0) {
+                            name.append(File.separatorChar);
+                        }
+                        name.append(part);
+                    }
+                    unit.classFiles.put(name.append(".class").toString(), classFile.getBytes().clone());
+                }
+            }
+        } catch (JasperException e) {
+            unit.error = e;
+        }
+    }
+
+    /**
+     * Writes the classes of a compiled unit to the output directory and
+     * finishes the page like jastow does (the java file is deleted if not
+     * kept, the smap is installed and the errors are raised). After the call
+     * the unit has the error assigned if something failed.
+     *
+     * @param unit The unit to write
+     */
+    public void write(Unit unit) {
+        long start = System.currentTimeMillis();
+        unit.queueTime += start - unit.queued;
+        if (unit.error != null) {
+            return;
+        }
+        try {
+            writeClassFiles(unit);
+            JspCompilationContext ctxt = unit.compiler.getContext();
+            if (ctxt.keepGenerated() && options.isInMemorySources()) {
+                File javaFile = new File(toOutput(unit.javaFileName));
+                javaFile.getParentFile().mkdirs();
+                Files.writeString(javaFile.toPath(), new String(unit.compiler.getSource()),
+                        Charset.forName(options.getJavaEncoding()));
+            }
+            unit.compiler.clearSource();
+            if (!ctxt.keepGenerated() && !options.isInMemorySources()) {
+                File javaFile = new File(unit.javaFileName);
+                if (!javaFile.delete()) {
+                    throw new JasperException("Cannot delete file " + javaFile.getAbsolutePath());
+                }
+            }
+            if (!unit.problems.isEmpty()) {
+                unit.compiler.getDispatcher().javacError(unit.problems.toArray(new JavacErrorDetail[0]));
+            }
+            if (!options.isSmapSuppressed()) {
+                String[] smap = unit.compiler.getSmap();
+                if (smap != null) {
+                    smap = smap.clone();
+                    for (int i = 0; i < smap.length; i += 2) {
+                        smap[i] = toOutput(smap[i]);
+                    }
+                }
+                SmapUtil.installSmap(smap);
+            }
+            File classFile = new File(toOutput(ctxt.getClassFileName()));
+            Long lastModified = ctxt.getLastModified(ctxt.getJspFile());
+            if (classFile.exists() && lastModified != null && lastModified >= 0) {
+                classFile.setLastModified(lastModified);
+            }
+        } catch (Exception e) {
+            unit.error = e;
+        } finally {
+            unit.writeTime = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Compiles the units passed in one ECJ compilation. The classes are
+     * kept in memory until the unit is written.
+     *
+     * @param shard The units to compile together
+     */
+    public void compile(List<Unit> shard) {
+        long start = System.currentTimeMillis();
+        Map<String, Unit> classes = new HashMap<>();
+        Map<String, Unit> files = new HashMap<>();
+        for (Unit unit : shard) {
+            unit.queueTime += start - unit.queued;
+            classes.put(unit.servletName, unit);
+            files.put(unit.javaFileName, unit);
+        }
+        ICompilerRequestor requestor = result -> acceptResult(files, result);
+        try {
+            Compiler compiler = new Compiler(environment.create(classes),
+                    DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+                    new CompilerOptions(getSettings()), requestor,
+                    new DefaultProblemFactory(Locale.getDefault()));
+            compiler.compile(shard.toArray(new ICompilationUnit[0]));
+        } catch (RuntimeException e) {
+            for (Unit unit : shard) {
+                if (unit.error == null) {
+                    unit.error = e;
+                }
+            }
+        }
+        // the units are compiled together, split the time between them
+        long end = System.currentTimeMillis();
+        for (Unit unit : shard) {
+            unit.compileTime = (end - start) / shard.size();
+            unit.queued = end;
+        }
+    }
+
+    private void compileAndWrite(List<Unit> shard) {
+        // the shards run after the generation, the budget shared with other executions is taken
+        Semaphore budget = options.getThreadBudget();
+        if (budget != null) {
+            budget.acquireUninterruptibly();
+        }
+        try {
+            compile(shard);
+            for (Unit unit : shard) {
+                write(unit);
+            }
+        } finally {
+            if (budget != null) {
+                budget.release();
+            }
+        }
+    }
+
+    /**
+     * Compiles all the deferred units. The units are split in the number of
+     * shards configured and every shard is compiled in its own thread. After
+     * the call every unit has the error assigned if the compilation failed.
+     */
+    public void compile() {
+        int count = Math.max(1, Math.min(shards, units.size()));
+        List<List<Unit>> split = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            split.add(new ArrayList<>());
+        }
+        for (int i = 0; i < units.size(); i++) {
+            split.get(i % count).add(units.get(i));
+        }
+        log.debug(String.format("Batch compilation of %d pages in %d shards", units.size(), count));
+        if (count == 1) {
+            compileAndWrite(split.get(0));
+            return;
+        }
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            List<Unit> shard = split.get(i);
+            threads[i] = new Thread(() -> compileAndWrite(shard), "jspc-batch-" + i);
+            threads[i].start();
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                log.warn("Interruped waiting for batch thread " + i, e);
+            }
+        }
+    }
+}
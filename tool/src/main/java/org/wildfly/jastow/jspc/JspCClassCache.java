@@ -0,0 +1,272 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>Content addressed cache for the compiled classes. Every page is
+ * stored using two levels of keys:</p>
+ *
+ * <ul>
+ * <li>The page key, a hash of the JSP source and the global configuration
+ * (code generation options, TLD metadata, web.xml, jastow version,...).
+ * The resources used by the page in the last compilation (includes, tag
+ * files,...) are saved in the <em>deps</em> file inside the page key
+ * directory.</li>
+ * <li>The content key, a hash of the page key and the content of all the
+ * resources saved in the <em>deps</em> file. The directory contains the
+ * compiled files (and the java file if kept) and the servlet name.</li>
+ * </ul>
+ *
+ * <p>The cache is bounded in size and entries are evicted using the last
+ * modified time of the content directory (it is updated in every hit).</p>
+ *
+ * @author rmartinc
+ */
+public class JspCClassCache {
+
+    private static final String DEPS_FILE = "deps";
+    private static final String SERVLET_FILE = "servlet";
+    private static final String FILES_DIR = "files";
+
+    public static class Entry {
+
+        private final String servletName;
+        private final Set<String> resources;
+
+        public Entry(String servletName, Set<String> resources) {
+            this.servletName = servletName;
+            this.resources = resources;
+        }
+
+        public String getServletName() {
+            return servletName;
+        }
+
+        public Set<String> getResources() {
+            return resources;
+        }
+    }
+
+    private final File directory;
+    private final long maxSize;
+
+    public JspCClassCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public static String hash(String... values) {
+        MessageDigest md = Utils.createDigest();
+        for (String value : values) {
+            md.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        return Utils.toHex(md.digest());
+    }
+
+    private static String contentKey(String pageKey, Collection<String> resources, Function<String, String> digester) {
+        List<String> values = new ArrayList<>();
+        values.add(pageKey);
+        for (String resource : new TreeSet<>(resources)) {
+            values.add(resource);
+            values.add(digester.apply(resource));
+        }
+        return hash(values.toArray(new String[0]));
+    }
+
+    private static Set<String> readLines(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return reader.lines().filter(l -> !l.isEmpty()).collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    private static void writeLines(Path file, Collection<String> lines) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Looks for the page in the cache. If found the files are copied to the
+     * output directory.
+     *
+     * @param pageKey The key of the page
+     * @param digester The function that returns the hash of a resource
+     * @param outputDir The output directory
+     * @return The entry found or null
+     * @throws IOException Some error copying the files
+     */
+    public Entry lookup(String pageKey, Function<String, String> digester, File outputDir) throws IOException {
+        Path pageDir = directory.toPath().resolve(pageKey);
+        Path depsFile = pageDir.resolve(DEPS_FILE);
+        if (!Files.isRegularFile(depsFile)) {
+            return null;
+        }
+        Set<String> resources = readLines(depsFile);
+        Path contentDir = pageDir.resolve(contentKey(pageKey, resources, digester));
+        Path servletFile = contentDir.resolve(SERVLET_FILE);
+        if (!Files.isRegularFile(servletFile)) {
+            return null;
+        }
+        String servletName = Files.readString(servletFile, StandardCharsets.UTF_8).trim();
+        Path filesDir = contentDir.resolve(FILES_DIR);
+        try (Stream<Path> paths = Files.walk(filesDir)) {
+            for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                Path target = outputDir.toPath().resolve(filesDir.relativize(path).toString());
+                Files.createDirectories(target.getParent());
+                Files.copy(path, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        // update the time for the LRU
+        contentDir.toFile().setLastModified(System.currentTimeMillis());
+        return new Entry(servletName, resources);
+    }
+
+    /**
+     * Stores the compiled page in the cache.
+     *
+     * @param pageKey The key of the page
+     * @param resources The resources used by the page
+     * @param digester The function that returns the hash of a resource
+     * @param servletName The servlet name
+     * @param outputDir The output directory
+     * @param files The files generated for the page relative to the output dir
+     * @throws IOException Some error copying the files
+     */
+    public void store(String pageKey, Collection<String> resources, Function<String, String> digester,
+            String servletName, File outputDir, Collection<String> files) throws IOException {
+        Path pageDir = directory.toPath().resolve(pageKey);
+        Path contentDir = pageDir.resolve(contentKey(pageKey, resources, digester));
+        Files.createDirectories(pageDir);
+        if (!Files.exists(contentDir)) {
+            // prepare everything in a temporary directory and move it
+            Path tmp = Files.createTempDirectory(pageDir, "tmp");
+            try {
+                Path filesDir = tmp.resolve(FILES_DIR);
+                for (String file : files) {
+                    Path target = filesDir.resolve(file);
+                    Files.createDirectories(target.getParent());
+                    Files.copy(outputDir.toPath().resolve(file), target);
+                }
+                writeLines(tmp.resolve(SERVLET_FILE), List.of(servletName));
+                Files.move(tmp, contentDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | AtomicMoveNotSupportedException e) {
+                // another process stored the same content
+            } finally {
+                delete(tmp);
+            }
+        }
+        Path depsTmp = Files.createTempFile(pageDir, DEPS_FILE, ".tmp");
+        writeLines(depsTmp, new TreeSet<>(resources));
+        Files.move(depsTmp, pageDir.resolve(DEPS_FILE), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache size is under
+     * the maximum size.
+     *
+     * @return The number of entries removed
+     * @throws IOException Some error reading or deleting the entries
+     */
+    public int evict() throws IOException {
+        if (!directory.isDirectory()) {
+            return 0;
+        }
+        List<Path> entries = new ArrayList<>();
+        File[] pages = directory.listFiles(File::isDirectory);
+        if (pages != null) {
+            for (File page : pages) {
+                File[] contents = page.listFiles(f -> f.isDirectory() && !f.getName().startsWith("tmp"));
+                if (contents != null) {
+                    for (File content : contents) {
+                        entries.add(content.toPath());
+                    }
+                }
+            }
+        }
+        long total = 0;
+        List<long[]> info = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            long size = size(entries.get(i));
+            total += size;
+            info.add(new long[]{i, entries.get(i).toFile().lastModified(), size});
+        }
+        int removed = 0;
+        if (total > maxSize) {
+            info.sort(Comparator.comparingLong(l -> l[1]));
+            for (long[] entry : info) {
+                if (total <= maxSize) {
+                    break;
+                }
+                Path dir = entries.get((int) entry[0]);
+                delete(dir);
+                total -= entry[2];
+                removed++;
+                File[] left = dir.getParent().toFile().listFiles(File::isDirectory);
+                if (left == null || left.length == 0) {
+                    delete(dir.getParent());
+                }
+            }
+        }
+        return removed;
+    }
+}
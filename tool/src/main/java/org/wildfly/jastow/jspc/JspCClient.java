@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Thin launcher that sends the compilation to a running
+ * {@link JspCDaemon}. If the daemon is not running or it cannot execute
+ * the request the compilation is done in-process calling the normal
+ * <em>JspC.main</em>.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCClient {
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final Pattern ERROR_CODE = Pattern.compile("\"errorCode\":(\\d+)");
+
+    private JspCClient() {
+    }
+
+    /**
+     * Sends a request to the daemon. The token is read from the token file
+     * of the daemon in the working directory.
+     *
+     * @param port The local port of the daemon
+     * @param cwd The working directory
+     * @param args The JspC arguments
+     * @return The JSON response of the daemon
+     * @throws IOException If the daemon is not running or some error happens
+     */
+    public static String send(int port, String cwd, String... args) throws IOException {
+        File tokenFile = JspCDaemon.getTokenFile(new File(cwd), port);
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+        return send(port, token, cwd, args);
+    }
+
+    /**
+     * Sends a request to the daemon using the token passed.
+     *
+     * @param port The local port of the daemon
+     * @param token The token of the daemon
+     * @param cwd The working directory
+     * @param args The JspC arguments
+     * @return The JSON response of the daemon
+     * @throws IOException If the daemon is not running or some error happens
+     */
+    public static String send(int port, String token, String cwd, String[] args) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            JspCDaemon.writeString(out, token);
+            JspCDaemon.writeString(out, cwd);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                JspCDaemon.writeString(out, arg);
+            }
+            out.flush();
+            return JspCDaemon.readString(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+        }
+    }
+
+    /**
+     * Returns the error code of a successful response.
+     *
+     * @param response The JSON response
+     * @return The error code or -1 if the daemon failed to execute the request
+     */
+    public static int getErrorCode(String response) {
+        Matcher m = ERROR_CODE.matcher(response);
+        return response.startsWith("{\"failure\":") || !m.find()? -1 : Integer.parseInt(m.group(1));
+    }
+
+    public static void main(String... args) throws Exception {
+        int port = JspCDaemon.DEFAULT_PORT;
+        if (args.length > 1 && "-port".equals(args[0])) {
+            port = Integer.parseInt(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        try {
+            String response = send(port, System.getProperty("user.dir"), args);
+            int errorCode = getErrorCode(response);
+            if (errorCode >= 0) {
+                System.out.println(response);
+                System.exit(errorCode);
+            }
+            System.err.println("The daemon cannot execute the request, compiling in-process: " + response);
+        } catch (IOException e) {
+            // daemon not running, just compile in this JVM
+        }
+        JspC.main(args);
+    }
+}
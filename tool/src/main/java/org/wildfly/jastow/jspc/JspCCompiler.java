@@ -0,0 +1,236 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import jakarta.servlet.jsp.tagext.TagLibraryInfo;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import org.apache.jasper.JasperException;
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.compiler.ErrorDispatcher;
+import org.apache.jasper.compiler.JDTCompiler;
+import org.apache.jasper.compiler.JavacErrorDetail;
+
+/**
+ * <p>Compiler used by JspC. It is the normal jastow JDT compiler but the
+ * information about the page (files included, tag files, taglibs used,...)
+ * is retrieved before jastow cleans it. The class is instantiated by jastow
+ * using the name returned by <em>JspCOptions.getCompilerClassName()</em>.</p>
+ *
+ * <p>In batch and pipeline modes the java compilation of the pages (not tag
+ * files) is deferred. The information needed to compile the page later (the nodes
+ * for the error mapping, the error dispatcher and the smap) is saved
+ * because jastow cleans it after the generation.</p>
+ *
+ * <p>If the options use in-memory sources, the java file of a deferred
+ * page is read just after jastow writes it and it is deleted at that
+ * moment if the sources are not kept. The later compilation uses the
+ * source in memory.</p>
+ *
+ * <p>If the options have a compile semaphore the java compilation is
+ * limited by it (the generation is not). The time waiting for the semaphore
+ * and the time compiling the java file are saved for the results.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCCompiler extends JDTCompiler {
+
+    private Map<String, Long> dependants = Collections.emptyMap();
+    private Set<String> taglibs = Collections.emptySet();
+    private boolean deferred = false;
+    private String[] smap;
+    private Object nodes;
+    private ErrorDispatcher dispatcher;
+    private long compileTime;
+    private long waitTime;
+    private long sourceSize;
+    private char[] source;
+
+    public Map<String, Long> getDependants() {
+        return dependants;
+    }
+
+    public Set<String> getTaglibs() {
+        return taglibs;
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    public String[] getSmap() {
+        return smap;
+    }
+
+    public ErrorDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public JspCompilationContext getContext() {
+        return ctxt;
+    }
+
+    /**
+     * The time spent compiling the java file and writing the class.
+     *
+     * @return The duration in milliseconds
+     */
+    public long getCompileTime() {
+        return compileTime;
+    }
+
+    /**
+     * The time waiting for the compile semaphore.
+     *
+     * @return The duration in milliseconds
+     */
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * The size of the java file generated.
+     *
+     * @return The size in bytes
+     */
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    /**
+     * The java source generated if kept in memory.
+     *
+     * @return The source or null if not in memory
+     */
+    public char[] getSource() {
+        return source;
+    }
+
+    /**
+     * Releases the source in memory once compiled.
+     */
+    public void clearSource() {
+        source = null;
+    }
+
+    private void readSource() throws IOException, JasperException {
+        File javaFile = new File(ctxt.getServletJavaFileName());
+        source = Files.readString(javaFile.toPath(), Charset.forName(ctxt.getOptions().getJavaEncoding())).toCharArray();
+        // the source is removed from the temporary directory, it is written to the output if kept
+        if (!javaFile.delete()) {
+            throw new JasperException("Cannot delete file " + javaFile.getAbsolutePath());
+        }
+    }
+
+    @Override
+    protected void generateClass(String[] smap) throws FileNotFoundException, JasperException, Exception {
+        retrievePageInfo();
+        sourceSize = new File(ctxt.getServletJavaFileName()).length();
+        if (options instanceof JspCOptions && ((JspCOptions) options).isDeferCompilation()
+                && !ctxt.isTagFile() && !ctxt.isPrototypeMode()) {
+            // the java file is compiled later with all the other pages
+            this.deferred = true;
+            this.smap = smap;
+            this.nodes = pageNodes;
+            this.dispatcher = errDispatcher;
+            if (((JspCOptions) options).isInMemorySources()) {
+                readSource();
+            }
+            return;
+        }
+        Semaphore semaphore = options instanceof JspCOptions? ((JspCOptions) options).getCompileSemaphore() : null;
+        long start = System.currentTimeMillis();
+        if (semaphore == null) {
+            super.generateClass(smap);
+            compileTime = System.currentTimeMillis() - start;
+            return;
+        }
+        semaphore.acquire();
+        long acquired = System.currentTimeMillis();
+        waitTime = acquired - start;
+        try {
+            super.generateClass(smap);
+        } finally {
+            semaphore.release();
+        }
+        compileTime = System.currentTimeMillis() - acquired;
+    }
+
+    /**
+     * Creates the error detail for a java compilation problem of a deferred
+     * page. The java line is mapped to the JSP using the nodes saved.
+     *
+     * @param fileName The java file name
+     * @param message The message of the problem
+     * @param line The line in the java file
+     * @return The error detail mapped to the JSP page
+     * @throws JasperException Some error creating the detail
+     */
+    public JavacErrorDetail createJavacError(String fileName, String message, int line) throws JasperException {
+        try {
+            // Node is not public in jastow, use reflection to pass the nodes
+            Method method = ErrorDispatcher.class.getMethod("createJavacError", String.class,
+                    Class.forName("org.apache.jasper.compiler.Node$Nodes"), StringBuilder.class, int.class,
+                    JspCompilationContext.class);
+            return (JavacErrorDetail) method.invoke(null, fileName, nodes, new StringBuilder(message), line, ctxt);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof JasperException) {
+                throw (JasperException) e.getCause();
+            }
+            throw new JasperException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new JasperException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void retrievePageInfo() throws ReflectiveOperationException {
+        // PageInfo is not public in jastow, use reflection to get the information
+        Object info = this.pageInfo;
+        if (info == null) {
+            return;
+        }
+        Method method = info.getClass().getMethod("getDependants");
+        method.setAccessible(true);
+        Map<String, Long> deps = (Map<String, Long>) method.invoke(info);
+        if (deps != null) {
+            dependants = new HashMap<>(deps);
+        }
+        method = info.getClass().getMethod("getTaglibs");
+        method.setAccessible(true);
+        Collection<TagLibraryInfo> libs = (Collection<TagLibraryInfo>) method.invoke(info);
+        if (libs != null) {
+            taglibs = new HashSet<>();
+            for (TagLibraryInfo lib : libs) {
+                if (lib.getURI() != null) {
+                    taglibs.add(lib.getURI());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+
+/**
+ * <p>Daemon that keeps a warm JVM to execute the JspC several times. The
+ * daemon listens in a local (loopback) TCP port and every connection is a
+ * compilation request. The client sends the token of the daemon, its
+ * working directory, the number of JspC arguments and the arguments. Every
+ * string is sent as its length followed by the UTF-8 bytes, so any value
+ * (empty or with new lines) can be passed. The daemon executes a new
+ * <em>JspC</em> with those arguments and replies with the results in JSON
+ * format (or a JSON object with a <em>failure</em> message if the request
+ * cannot be executed). All the
+ * executions share the same {@link JspCEngine}, so the TLDs and the
+ * resources of the jars are only read once. Requests are executed one by
+ * one.</p>
+ *
+ * <p>The token is a random value generated at startup and written to the
+ * file {@link #getTokenFile(File, int)} in the working directory, only
+ * readable by the owner. Requests without the token are rejected, so only
+ * the same user can use the daemon. As the arguments can contain relative
+ * paths, only clients executed in the same working directory than the
+ * daemon are accepted.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCDaemon implements Closeable {
+
+    public static final int DEFAULT_PORT = 7999;
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+    private static final int MAX_ARGUMENTS = 100_000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+    private final JspCLogger log = new JspCLogger(JspC.class.getPackageName());
+    private final JspCEngine engine;
+    private final ServerSocket server;
+    private final String token;
+    private final Path tokenFile;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private Thread thread;
+
+    /**
+     * Creates the daemon listening in the loopback address.
+     *
+     * @param port The port (0 for a random port)
+     * @param engine The engine shared by all the executions
+     * @throws IOException If the port cannot be bound
+     */
+    public JspCDaemon(int port, JspCEngine engine) throws IOException {
+        this.engine = engine;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        this.token = String.format("%064x", new BigInteger(1, random));
+        try {
+            this.tokenFile = writeTokenFile(getTokenFile(new File(System.getProperty("user.dir")), getPort()).toPath(), token);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The file with the token of the daemon listening in the port.
+     *
+     * @param dir The working directory of the daemon
+     * @param port The port of the daemon
+     * @return The token file
+     */
+    public static File getTokenFile(File dir, int port) {
+        return new File(dir, ".jspc-daemon-" + port + ".token");
+    }
+
+    private static Path writeTokenFile(Path file, String token) throws IOException {
+        Files.deleteIfExists(file);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } else {
+            Files.createFile(file);
+            File f = file.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        Files.write(file, token.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Assigns the maximum time waiting for the data of a request. The
+     * requests are executed one by one, so a client that does not send
+     * anything would block the daemon.
+     *
+     * @param readTimeout The timeout in milliseconds
+     * @return The same daemon
+     */
+    public JspCDaemon setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    public JspCEngine getEngine() {
+        return engine;
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "jspc-daemon");
+        thread.start();
+    }
+
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+        } finally {
+            Files.deleteIfExists(tokenFile);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private void run() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                // requests are served one by one, a silent client cannot block the daemon
+                socket.setSoTimeout(readTimeout);
+                handle(socket);
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.warn("Error processing daemon request", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        String response;
+        if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII), readString(in).getBytes(StandardCharsets.US_ASCII))) {
+            log.warn("Daemon request rejected, invalid token");
+            response = failure("Invalid token");
+        } else {
+            String cwd = readString(in);
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ARGUMENTS) {
+                throw new IOException("Invalid number of arguments: " + count);
+            }
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = readString(in);
+            }
+            response = execute(cwd, args);
+        }
+        writeString(out, response);
+        out.flush();
+    }
+
+    private static String failure(String message) {
+        StringBuilder sb = new StringBuilder("{\"failure\":");
+        Utils.appendJson(sb, message);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Executes a compilation request.
+     *
+     * @param cwd The working directory of the client
+     * @param args The JspC arguments
+     * @return The JSON response
+     */
+    public String execute(String cwd, String... args) {
+        try {
+            if (cwd == null || !new File(cwd).getCanonicalFile().equals(new File(System.getProperty("user.dir")).getCanonicalFile())) {
+                return failure("The daemon is running in a different directory: " + System.getProperty("user.dir"));
+            }
+            try (JspC jspc = new JspC(args).setEngine(engine)) {
+                if (jspc.getWhatDepends() != null) {
+                    return failure("Option -whatdepends is not supported by the daemon");
+                }
+                JspCResults results = jspc.execute();
+                jspc.getLog().info(String.format("Daemon request completed for [%d] files with [%d] errors in [%d] milliseconds",
+                        results.total(), results.errors(), results.getTime()));
+                return results.toJson();
+            }
+        } catch (Exception e) {
+            log.debug("Error executing daemon request", e);
+            return failure(e.getMessage());
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        int port = DEFAULT_PORT;
+        File tldCache = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-tldCache".equals(args[i]) && i + 1 < args.length) {
+                tldCache = new File(args[++i]);
+            } else {
+                throw new IllegalArgumentException(String.format("Usage: jspc-daemon [-port <port>] [-tldCache <dir>]%n"
+                        + "    -port <port>          Local port to listen (default %d)%n"
+                        + "    -tldCache <dir>       Directory of the cache of TLD files parsed from jars", DEFAULT_PORT));
+            }
+        }
+        try (JspCDaemon daemon = new JspCDaemon(port, new JspCEngine(tldCache))) {
+            System.out.println(String.format("JspC daemon listening in port [%d]", daemon.getPort()));
+            daemon.start();
+            daemon.join();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>Dependency graph between the JSP pages and the resources used to
+ * generate them (static includes, tag files, TLDs, classes inside
+ * <em>WEB-INF/classes</em>,...). The graph is constructed from the
+ * information saved in the manifest and it is used to know the pages that
+ * are affected by a modification in any resource.</p>
+ *
+ * <p>Resources inside a jar (<em>jar:file:/lib.jar!/META-INF/tags/a.tag</em>)
+ * are also linked to the jar file itself, so a page depends on the jar too.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCDependencyGraph {
+
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+
+    public JspCDependencyGraph() {
+    }
+
+    public JspCDependencyGraph(JspCManifest manifest) {
+        for (Map.Entry<String, JspCManifest.Entry> e : manifest.getEntries().entrySet()) {
+            addPage(e.getKey(), e.getValue().getDependencies().keySet());
+        }
+    }
+
+    private void addEdge(String jspUri, String resource) {
+        dependencies.computeIfAbsent(jspUri, k -> new HashSet<>()).add(resource);
+        dependents.computeIfAbsent(resource, k -> new HashSet<>()).add(jspUri);
+    }
+
+    public final void addPage(String jspUri, Collection<String> resources) {
+        dependencies.computeIfAbsent(jspUri, k -> new HashSet<>());
+        for (String resource : resources) {
+            if (!resource.equals(jspUri)) {
+                addEdge(jspUri, resource);
+            }
+            if (resource.startsWith("jar:")) {
+                int idx = resource.indexOf("!/");
+                if (idx > 0) {
+                    addEdge(jspUri, resource.substring("jar:".length(), idx));
+                }
+            }
+        }
+    }
+
+    public Set<String> getPages() {
+        return Collections.unmodifiableSet(dependencies.keySet());
+    }
+
+    public Set<String> getDependencies(String jspUri) {
+        Set<String> res = dependencies.get(jspUri);
+        return res == null? Collections.emptySet() : Collections.unmodifiableSet(res);
+    }
+
+    /**
+     * Returns all the pages that depend on the resources passed, directly or
+     * transitively. If a resource is a page itself it is also returned.
+     *
+     * @param resources The resources modified
+     * @return The sorted list of pages affected
+     */
+    public Set<String> getDependents(Collection<String> resources) {
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>(resources);
+        while (!queue.isEmpty()) {
+            String resource = queue.poll();
+            if (visited.add(resource)) {
+                Set<String> pages = dependents.get(resource);
+                if (pages != null) {
+                    queue.addAll(pages);
+                }
+            }
+        }
+        Set<String> result = new TreeSet<>();
+        for (String resource : visited) {
+            if (dependencies.containsKey(resource)) {
+                result.add(resource);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>State shared between several executions of the JspC in the same JVM
+ * (daemon mode). A <em>JspC</em> instance can only be executed once, but if
+ * an engine is assigned the TLD files parsed from the jars and the
+ * resources read from the jars are reused by all the executions. If a
+ * shared class loader is passed (a loader that is an ancestor of the
+ * class loader of all the executions, for example the provided libraries
+ * in a maven build) the classes read from it by the java compiler are also
+ * cached in the engine. The engine is thread safe.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCEngine {
+
+    private final JspCTldCache tldCache;
+    private final Map<String, List<String>> jarEntries = new ConcurrentHashMap<>();
+    private final JspCNameEnvironment nameEnvironment;
+
+    /**
+     * Creates an engine that only keeps the state in memory.
+     */
+    public JspCEngine() {
+        this(null);
+    }
+
+    /**
+     * Creates the engine.
+     *
+     * @param tldCacheDir The directory of the TLD cache or null to keep
+     *        the TLDs only in memory
+     */
+    public JspCEngine(File tldCacheDir) {
+        this(tldCacheDir, null);
+    }
+
+    /**
+     * Creates the engine with a shared class loader.
+     *
+     * @param tldCacheDir The directory of the TLD cache or null to keep
+     *        the TLDs only in memory
+     * @param sharedClassLoader The class loader that is the parent of the
+     *        loaders of all the executions or null
+     */
+    public JspCEngine(File tldCacheDir, ClassLoader sharedClassLoader) {
+        this.tldCache = new JspCTldCache(tldCacheDir);
+        this.nameEnvironment = sharedClassLoader == null? null : new JspCNameEnvironment(sharedClassLoader);
+    }
+
+    public JspCTldCache getTldCache() {
+        return tldCache;
+    }
+
+    public Map<String, List<String>> getJarEntries() {
+        return jarEntries;
+    }
+
+    public ClassLoader getSharedClassLoader() {
+        return nameEnvironment == null? null : nameEnvironment.getClassLoader();
+    }
+
+    /**
+     * Returns the environment with the classes of the shared class loader
+     * if the loader passed is a descendant of it.
+     *
+     * @param loader The class loader of the execution
+     * @return The shared environment or null
+     */
+    public JspCNameEnvironment getNameEnvironment(ClassLoader loader) {
+        if (nameEnvironment != null) {
+            for (ClassLoader cl = loader; cl != null; cl = cl.getParent()) {
+                if (cl == nameEnvironment.getClassLoader()) {
+                    return nameEnvironment;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>JDK Flight Recorder events emitted by the JspC. The events are only
+ * committed if a recording is running and the event is enabled, the thread
+ * that executed the operation is recorded by JFR itself. The values that
+ * need extra work (like file sizes) are only calculated when the event is
+ * going to be committed.</p>
+ *
+ * @author rmartinc
+ */
+public final class JspCEvents {
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_COMPILED = "compiled";
+    public static final String OUTCOME_SKIPPED = "skipped";
+    public static final String OUTCOME_CACHED = "cached";
+    public static final String OUTCOME_DEFERRED = "deferred";
+    public static final String OUTCOME_ERROR = "error";
+
+    private JspCEvents() {
+    }
+
+    /**
+     * Compilation of a JSP page. In batch and pipeline modes the event only
+     * covers the generation (outcome <em>deferred</em>).
+     */
+    @Name("org.wildfly.jastow.jspc.CompileJsp")
+    @Label("Compile JSP")
+    @Category({"JspC"})
+    @Description("Compilation of a JSP page")
+    public static class CompileJsp extends Event {
+        @Label("JSP URI")
+        public String jspUri;
+
+        @Label("Servlet Name")
+        public String servletName;
+
+        @Label("Outcome")
+        @Description("compiled, skipped, cached, deferred or error")
+        public String outcome;
+
+        @Label("Source Size")
+        @DataAmount
+        public long sourceSize;
+
+        @Label("Class Size")
+        @DataAmount
+        public long classSize;
+    }
+
+    /**
+     * Scan of a TLD location (a jar, a directory or a TLD file).
+     */
+    @Name("org.wildfly.jastow.jspc.ScanTld")
+    @Label("Scan TLD")
+    @Category({"JspC"})
+    @Description("Scan and parse of the TLD files of a location")
+    public static class ScanTld extends Event {
+        @Label("Location")
+        public String location;
+
+        @Label("TLD Files")
+        public int tlds;
+
+        @Label("Location Size")
+        @DataAmount
+        public long size;
+
+        @Label("Outcome")
+        @Description("success or error")
+        public String outcome;
+    }
+
+    /**
+     * Creation of the class loader of the application.
+     */
+    @Name("org.wildfly.jastow.jspc.SetupClassLoader")
+    @Label("Setup Class Loader")
+    @Category({"JspC"})
+    @Description("Creation of the class loader with the application classes and jars")
+    public static class SetupClassLoader extends Event {
+        @Label("URLs")
+        public int urls;
+
+        @Label("Jars Size")
+        @DataAmount
+        public long size;
+    }
+
+    /**
+     * Write of the web XML file with the servlets.
+     */
+    @Name("org.wildfly.jastow.jspc.WriteWebXml")
+    @Label("Write Web XML")
+    @Category({"JspC"})
+    @Description("Write of the web XML file with the compiled servlets")
+    public static class WriteWebXml extends Event {
+        @Label("Level")
+        public String level;
+
+        @Label("File")
+        public String file;
+
+        @Label("Servlets")
+        public int servlets;
+
+        @Label("File Size")
+        @DataAmount
+        public long size;
+
+        @Label("Outcome")
+        @Description("success or error")
+        public String outcome;
+    }
+}
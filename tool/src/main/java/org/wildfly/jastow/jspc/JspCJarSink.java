@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * <p>Output sink that creates a jar file (for example to be placed in the
+ * <em>WEB-INF/lib</em> of the application). The files are read when the
+ * pages are finished, only the names are kept sorted in memory and the
+ * files are streamed from disk into the jar at close (so they should not
+ * be removed before). The entries (directories included) are sorted by name and all of
+ * them use the same timestamp, so the same inputs always produce the same
+ * jar. The generation time written by jastow in the header of the java
+ * sources is also replaced by the same timestamp. The timestamp is taken
+ * from the <em>SOURCE_DATE_EPOCH</em> environment variable if defined
+ * (like reproducible builds do) or it is {@link #DEFAULT_TIMESTAMP}.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCJarSink implements JspCOutputSink {
+
+    public static final Instant DEFAULT_TIMESTAMP = Instant.parse("1980-01-01T12:00:00Z");
+    private static final int HEADER_SIZE = 1024;
+    private static final byte[] GENERATED_AT = " * Generated at: ".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTimeFormatter GENERATED_AT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss z", Locale.ROOT)
+            .withZone(ZoneOffset.UTC);
+
+    private final File jar;
+    private final long timestamp;
+    private final Map<String, File> entries = new ConcurrentSkipListMap<>();
+
+    /**
+     * Creates the sink with the default timestamp.
+     *
+     * @param jar The jar file to create
+     */
+    public JspCJarSink(File jar) {
+        this(jar, getDefaultTimestamp());
+    }
+
+    /**
+     * Creates the sink.
+     *
+     * @param jar The jar file to create
+     * @param timestamp The time assigned to all the entries
+     */
+    public JspCJarSink(File jar, Instant timestamp) {
+        this.jar = jar;
+        this.timestamp = timestamp.toEpochMilli();
+    }
+
+    private static Instant getDefaultTimestamp() {
+        String epoch = System.getenv("SOURCE_DATE_EPOCH");
+        if (epoch != null && !epoch.isEmpty()) {
+            try {
+                return Instant.ofEpochSecond(Long.parseLong(epoch.trim()));
+            } catch (NumberFormatException e) {
+                // invalid value, use the default
+            }
+        }
+        return DEFAULT_TIMESTAMP;
+    }
+
+    public File getJar() {
+        return jar;
+    }
+
+    // replaces the generation time in the header of the java sources written by jastow
+    private byte[] normalizeSource(byte[] bytes) {
+        int start = indexOf(bytes, GENERATED_AT, bytes.length);
+        if (start < 0) {
+            return bytes;
+        }
+        start += GENERATED_AT.length;
+        int end = start;
+        while (end < bytes.length && bytes[end] != '\n' && bytes[end] != '\r') {
+            end++;
+        }
+        byte[] time = GENERATED_AT_FORMAT.format(Instant.ofEpochMilli(timestamp)).getBytes(StandardCharsets.US_ASCII);
+        byte[] result = new byte[bytes.length - (end - start) + time.length];
+        System.arraycopy(bytes, 0, result, 0, start);
+        System.arraycopy(time, 0, result, start, time.length);
+        System.arraycopy(bytes, end, result, start + time.length, bytes.length - end);
+        return result;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] search, int limit) {
+        for (int i = 0; i + search.length <= limit; i++) {
+            int j = 0;
+            while (j < search.length && bytes[i + j] == search[j]) {
+                j++;
+            }
+            if (j == search.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void add(String name, File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("File to add to the jar does not exist: " + file);
+        }
+        entries.put(name, file);
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    private JarEntry createEntry(String name) {
+        JarEntry entry = new JarEntry(name);
+        // the zip time is local, use the UTC date to write the same bytes in any time zone
+        entry.setTimeLocal(LocalDateTime.ofEpochSecond(Math.floorDiv(timestamp, 1000L),
+                (int) Math.floorMod(timestamp, 1000L) * 1_000_000, ZoneOffset.UTC));
+        return entry;
+    }
+
+    private void write(String name, File file, OutputStream out) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            if (name.endsWith(".java")) {
+                // only the header is read in memory to normalize it
+                out.write(normalizeSource(in.readNBytes(HEADER_SIZE)));
+            }
+            in.transferTo(out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // all the parent directories are also added as entries
+        NavigableSet<String> names = new TreeSet<>(entries.keySet());
+        for (String name : entries.keySet()) {
+            for (int idx = name.indexOf('/'); idx >= 0; idx = name.indexOf('/', idx + 1)) {
+                names.add(name.substring(0, idx + 1));
+            }
+        }
+        File parent = jar.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(jar.toPath()));
+                JarOutputStream out = new JarOutputStream(os)) {
+            for (String name : names) {
+                out.putNextEntry(createEntry(name));
+                File file = entries.get(name);
+                if (file != null) {
+                    write(name, file, out);
+                }
+                out.closeEntry();
+            }
+        }
+        entries.clear();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.spi.ExtendedLogger;
+import org.apache.logging.log4j.spi.ExtendedLoggerWrapper;
+
+/**
+ * <p>Logger used by a <em>JspC</em> instance. The level assigned to the
+ * instance is only applied to the messages logged through this wrapper,
+ * the configuration of log4j is not modified, so several instances with
+ * different levels can be executed at the same time in the same JVM. If no
+ * level is assigned the configured level of the logger is used.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCLogger extends ExtendedLoggerWrapper {
+
+    private static final long serialVersionUID = 1L;
+
+    private volatile Level threshold;
+
+    public JspCLogger(String name) {
+        this((ExtendedLogger) LogManager.getLogger(name));
+    }
+
+    public JspCLogger(ExtendedLogger logger) {
+        super(logger, logger.getName(), logger.getMessageFactory());
+    }
+
+    /**
+     * Assigns the level for this instance.
+     *
+     * @param threshold The level or null to use the configured one
+     */
+    public void setLevel(Level threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Level getLevel() {
+        Level current = threshold;
+        return current == null? super.getLevel() : current;
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, Message message, Throwable t) {
+        return threshold == null? super.isEnabled(level, marker, message, t) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, CharSequence message, Throwable t) {
+        return threshold == null? super.isEnabled(level, marker, message, t) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, Object message, Throwable t) {
+        return threshold == null? super.isEnabled(level, marker, message, t) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message) {
+        return threshold == null? super.isEnabled(level, marker, message) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object... params) {
+        return threshold == null? super.isEnabled(level, marker, message, params) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0) {
+        return threshold == null? super.isEnabled(level, marker, message, p0) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3, Object p4) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3, p4) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3, p4, p5) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3, p4, p5, p6) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3, p4, p5, p6, p7) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3, p4, p5, p6, p7, p8) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Object p0, Object p1, Object p2, Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        return threshold == null? super.isEnabled(level, marker, message, p0, p1, p2, p3, p4, p5, p6, p7, p8, p9) : level.isMoreSpecificThan(threshold);
+    }
+
+    @Override
+    public boolean isEnabled(Level level, Marker marker, String message, Throwable t) {
+        return threshold == null? super.isEnabled(level, marker, message, t) : level.isMoreSpecificThan(threshold);
+    }
+}
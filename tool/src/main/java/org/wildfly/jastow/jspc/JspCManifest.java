@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Manifest used by the incremental mode. For every compiled JSP page the
+ * servlet name and all the inputs used to generate it (the JSP itself, static
+ * includes, tag files, TLDs, web.xml,...) are saved with their last
+ * modification time. The manifest also saves the options used to generate
+ * the code, if they change all the pages are considered modified. The
+ * time spent compiling every page is also saved to schedule the biggest
+ * pages first in the next execution.</p>
+ *
+ * <p>The file is a simple text file with tab separated lines:</p>
+ * <pre>
+ * config  &lt;options&gt;
+ * page    &lt;jspUri&gt;    &lt;servletName&gt;  [&lt;duration&gt;]
+ * dep     &lt;resource&gt;  &lt;lastModified&gt;
+ * </pre>
+ *
+ * @author rmartinc
+ */
+public class JspCManifest {
+
+    public static final String DEFAULT_NAME = "jspc.manifest";
+
+    public static class Entry {
+
+        private final String servletName;
+        private final Map<String, Long> dependencies;
+        private final long duration;
+
+        public Entry(String servletName, Map<String, Long> dependencies) {
+            this(servletName, dependencies, -1L);
+        }
+
+        public Entry(String servletName, Map<String, Long> dependencies, long duration) {
+            this.servletName = servletName;
+            this.dependencies = Collections.unmodifiableMap(new TreeMap<>(dependencies));
+            this.duration = duration;
+        }
+
+        public String getServletName() {
+            return servletName;
+        }
+
+        public Map<String, Long> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * The time in milliseconds spent compiling the page or -1 if unknown.
+         *
+         * @return The duration of the compilation
+         */
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    private final String configuration;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public JspCManifest(String configuration) {
+        this.configuration = configuration;
+    }
+
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    public Entry get(String jspUri) {
+        return entries.get(jspUri);
+    }
+
+    public void put(String jspUri, Entry entry) {
+        entries.put(jspUri, entry);
+    }
+
+    public void remove(String jspUri) {
+        entries.remove(jspUri);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public static JspCManifest load(File file) throws IOException {
+        if (!file.isFile()) {
+            return new JspCManifest(null);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            JspCManifest manifest = null;
+            String jspUri = null;
+            String servletName = null;
+            long duration = -1L;
+            Map<String, Long> dependencies = new TreeMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (manifest == null) {
+                    if (!"config".equals(fields[0])) {
+                        throw new IOException("Invalid manifest file: " + file);
+                    }
+                    manifest = new JspCManifest(fields.length > 1? fields[1] : "");
+                } else if ("page".equals(fields[0]) && (fields.length == 3 || fields.length == 4)) {
+                    if (jspUri != null) {
+                        manifest.put(jspUri, new Entry(servletName, dependencies, duration));
+                    }
+                    jspUri = fields[1];
+                    servletName = fields[2];
+                    duration = fields.length == 4? parseLong(fields[3], file) : -1L;
+                    dependencies = new TreeMap<>();
+                } else if ("dep".equals(fields[0]) && fields.length == 3 && jspUri != null) {
+                    dependencies.put(fields[1], parseLong(fields[2], file));
+                } else {
+                    throw new IOException("Invalid manifest file: " + file);
+                }
+            }
+            if (manifest == null) {
+                return new JspCManifest(null);
+            }
+            if (jspUri != null) {
+                manifest.put(jspUri, new Entry(servletName, dependencies, duration));
+            }
+            return manifest;
+        }
+    }
+
+    private static long parseLong(String value, File file) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest file: " + file, e);
+        }
+    }
+
+    public void save(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("# JspC incremental manifest");
+            writer.newLine();
+            writer.write("config\t");
+            writer.write(configuration == null? "" : configuration);
+            writer.newLine();
+            for (Map.Entry<String, Entry> page : new TreeMap<>(entries).entrySet()) {
+                writer.write("page\t");
+                writer.write(page.getKey());
+                writer.write('\t');
+                writer.write(page.getValue().getServletName());
+                if (page.getValue().getDuration() >= 0) {
+                    writer.write('\t');
+                    writer.write(Long.toString(page.getValue().getDuration()));
+                }
+                writer.newLine();
+                for (Map.Entry<String, Long> dep : page.getValue().getDependencies().entrySet()) {
+                    writer.write("dep\t");
+                    writer.write(dep.getKey());
+                    writer.write('\t');
+                    writer.write(Long.toString(dep.getValue()));
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
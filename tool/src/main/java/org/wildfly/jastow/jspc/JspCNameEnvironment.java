@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+/**
+ * <p>Name environment for the batch compilation. It follows the same rules
+ * that the environment created by jastow for every page but the binary
+ * classes read from the class loader are cached, so the classpath is only
+ * read once for all the pages. The environment is thread safe and the
+ * same cache is shared by all the compilation shards. A parent environment
+ * can be passed for a class loader that is an ancestor of the loader, the
+ * classes found in the parent are cached there (so the cache can be shared
+ * by several executions whose loaders have the same parent).</p>
+ *
+ * @author rmartinc
+ */
+public class JspCNameEnvironment {
+
+    private final ClassLoader loader;
+    private final JspCNameEnvironment parent;
+    private final Map<String, Optional<byte[]>> classes = new ConcurrentHashMap<>();
+
+    public JspCNameEnvironment(ClassLoader loader) {
+        this(loader, null);
+    }
+
+    public JspCNameEnvironment(ClassLoader loader, JspCNameEnvironment parent) {
+        this.loader = loader;
+        this.parent = parent;
+    }
+
+    public ClassLoader getClassLoader() {
+        return loader;
+    }
+
+    private byte[] getClassBytes(String className) {
+        // the loader delegates to the parent first, so the class is the same
+        byte[] bytes = parent == null? null : parent.getClassBytes(className);
+        if (bytes != null) {
+            return bytes;
+        }
+        return classes.computeIfAbsent(className, name -> {
+            try (InputStream is = loader.getResourceAsStream(name.replace('.', '/') + ".class")) {
+                return is == null? Optional.empty() : Optional.of(is.readAllBytes());
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * Creates the environment for a compilation with the units passed as
+     * sources. The binary cache is shared between all the environments.
+     *
+     * @param units The source units of the compilation by class name
+     * @return The environment to pass to ECJ
+     */
+    public INameEnvironment create(Map<String, ? extends ICompilationUnit> units) {
+        return new Environment(Collections.unmodifiableMap(units));
+    }
+
+    private class Environment implements INameEnvironment {
+
+        private final Map<String, ? extends ICompilationUnit> units;
+
+        private Environment(Map<String, ? extends ICompilationUnit> units) {
+            this.units = units;
+        }
+
+        @Override
+        public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < compoundTypeName.length; i++) {
+                if (i > 0) {
+                    result.append('.');
+                }
+                result.append(compoundTypeName[i]);
+            }
+            return findType(result.toString());
+        }
+
+        @Override
+        public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+            StringBuilder result = new StringBuilder();
+            if (packageName != null) {
+                for (char[] name : packageName) {
+                    result.append(name).append('.');
+                }
+            }
+            result.append(typeName);
+            return findType(result.toString());
+        }
+
+        private NameEnvironmentAnswer findType(String className) {
+            ICompilationUnit unit = units.get(className);
+            if (unit != null) {
+                return new NameEnvironmentAnswer(unit, null);
+            }
+            byte[] bytes = getClassBytes(className);
+            if (bytes != null) {
+                try {
+                    ClassFileReader reader = new ClassFileReader(bytes,
+                            (className.replace('.', '/') + ".class").toCharArray(), true);
+                    return new NameEnvironmentAnswer(reader, null);
+                } catch (ClassFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private boolean isPackage(String result) {
+            if (units.containsKey(result)) {
+                return false;
+            }
+            return getClassBytes(result) == null;
+        }
+
+        @Override
+        public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+            StringBuilder result = new StringBuilder();
+            if (parentPackageName != null) {
+                for (char[] name : parentPackageName) {
+                    result.append(name).append('.');
+                }
+            }
+            String parent = result.length() > 0? result.substring(0, result.length() - 1) : "";
+            if (Character.isUpperCase(packageName[0]) && !parent.isEmpty() && !isPackage(parent)) {
+                return false;
+            }
+            result.append(packageName);
+            return isPackage(result.toString());
+        }
+
+        @Override
+        public void cleanup() {
+            // the cache is kept for the other shards
+        }
+    }
+}
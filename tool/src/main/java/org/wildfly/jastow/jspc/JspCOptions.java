@@ -18,6 +18,8 @@ package org.wildfly.jastow.jspc;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import org.apache.jasper.JspCompilationContext;
 import org.apache.jasper.Options;
 import org.apache.jasper.compiler.JspConfig;
 import org.apache.jasper.compiler.TagPluginManager;
@@ -52,6 +54,11 @@ public class JspCOptions implements Options {
     protected final Map<String, TagLibraryInfo> cache = new HashMap<>();
     private boolean optimizeJSPScriptlets = false;
     private boolean keepGenerated = true;
+    private boolean deferCompilation = false;
+    private boolean inMemorySources = false;
+    private File outputDir = null;
+    private Semaphore compileSemaphore = null;
+    private Semaphore threadBudget = null;
     
     public JspCOptions(JspCServletContext ctx) {
         jspConfig = new JspConfig(ctx);
@@ -164,6 +171,22 @@ public class JspCOptions implements Options {
         return this;
     }
 
+    /**
+     * The directory where the classes of the pages are written. It is the
+     * scratch directory except with in-memory sources, where jastow
+     * generates everything in a local temporary directory.
+     *
+     * @return The output directory
+     */
+    public File getOutputDir() {
+        return outputDir != null? outputDir : scratchDir;
+    }
+
+    public JspCOptions setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+        return this;
+    }
+
     @Override
     public String getClassPath() {
         return this.classPath;
@@ -206,7 +229,7 @@ public class JspCOptions implements Options {
 
     @Override
     public String getCompilerClassName() {
-        return null;
+        return JspCCompiler.class.getName();
     }
 
     @Override
@@ -313,4 +336,66 @@ public class JspCOptions implements Options {
         this.optimizeJSPScriptlets = optimizeJSPScriptlets;
         return this;
     }
+
+    public boolean isDeferCompilation() {
+        return deferCompilation;
+    }
+
+    public JspCOptions setDeferCompilation(boolean deferCompilation) {
+        this.deferCompilation = deferCompilation;
+        return this;
+    }
+
+    public boolean isInMemorySources() {
+        return inMemorySources;
+    }
+
+    public JspCOptions setInMemorySources(boolean inMemorySources) {
+        this.inMemorySources = inMemorySources;
+        return this;
+    }
+
+    public Semaphore getCompileSemaphore() {
+        return compileSemaphore;
+    }
+
+    public JspCOptions setCompileSemaphore(Semaphore compileSemaphore) {
+        this.compileSemaphore = compileSemaphore;
+        return this;
+    }
+
+    public Semaphore getThreadBudget() {
+        return threadBudget;
+    }
+
+    public JspCOptions setThreadBudget(Semaphore threadBudget) {
+        this.threadBudget = threadBudget;
+        return this;
+    }
+
+    /**
+     * Returns a key with all the options that modify the generated code
+     * (including the jastow version). If the key changes the pages should
+     * be generated again.
+     *
+     * @return The key for the code generation options
+     */
+    public String getGenerationKey() {
+        return new StringBuilder()
+                .append("jastow=").append(JspCompilationContext.class.getPackage().getImplementationVersion())
+                .append(";source=").append(compilerSourceVM)
+                .append(";target=").append(compilerTargetVM)
+                .append(";javaEncoding=").append(javaEncoding)
+                .append(";mappedFile=").append(mappedFile)
+                .append(";trimSpaces=").append(trimSpaces)
+                .append(";xpoweredBy=").append(xpoweredBy)
+                .append(";classDebugInfo=").append(classDebugInfo)
+                .append(";smapSuppressed=").append(smapSuppressed)
+                .append(";poolingEnabled=").append(poolingEnabled)
+                .append(";genStringAsCharArray=").append(genStringAsCharArray)
+                .append(";errorOnUseBeanInvalidClassAttribute=").append(errorOnUseBeanInvalidClassAttribute)
+                .append(";optimizeJSPScriptlets=").append(optimizeJSPScriptlets)
+                .append(";keepGenerated=").append(keepGenerated)
+                .toString();
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>Destination of the files generated by the JspC. The pages are still
+ * generated and compiled in the output (scratch) directory, jastow needs
+ * the classes there to install the smap and to load the tag files, but
+ * the files of every page are passed to the sink when the page is
+ * finished. The sink is closed at the end of the execution.</p>
+ *
+ * @author rmartinc
+ */
+public interface JspCOutputSink extends Closeable {
+
+    /**
+     * Adds a generated file to the sink. The method is called by several
+     * threads at the same time.
+     *
+     * @param name The name of the entry (path relative to the output directory using '/')
+     * @param file The file in the output directory
+     * @throws IOException Some error adding the file
+     */
+    void add(String name, File file) throws IOException;
+
+    /**
+     * Checks if an entry was already added.
+     *
+     * @param name The name of the entry
+     * @return true if added
+     */
+    boolean contains(String name);
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Pipeline execution of the compilation. The pages are parsed and the
+ * java sources generated by the normal compiler threads (first stage), the
+ * generated units are passed using a bounded queue to the compile stage,
+ * that compiles them with ECJ (several units available in the queue are
+ * compiled together), and the compiled units are passed using another
+ * bounded queue to the write stage, that writes the class files and
+ * finishes the page. Every stage has its own number of threads and, as the
+ * queues are bounded, a slow stage blocks the previous one.</p>
+ *
+ * <p>The listener is called for every submitted unit. A failure compiling
+ * or writing marks the affected units as errors, and an interrupted stage
+ * thread keeps draining its queue marking the remaining units as errors,
+ * so the generation threads never block waiting for a dead stage.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCPipeline {
+
+    private static final int MAX_UNITS_PER_COMPILATION = 16;
+    private static final long POLL_MILLIS = 50L;
+
+    private final Logger log;
+    private final JspCBatchCompiler compiler;
+    private final BlockingQueue<JspCBatchCompiler.Unit> compileQueue;
+    private final BlockingQueue<JspCBatchCompiler.Unit> writeQueue;
+    private final Consumer<JspCBatchCompiler.Unit> listener;
+    private final Thread[] compileThreads;
+    private final Thread[] writeThreads;
+    private volatile boolean generationFinished = false;
+    private volatile boolean compilationFinished = false;
+
+    /**
+     * Creates the pipeline.
+     *
+     * @param compiler The compiler used to compile and write the units
+     * @param compileThreads The number of threads of the compile stage
+     * @param writeThreads The number of threads of the write stage
+     * @param queueSize The size of the queues between stages
+     * @param listener The listener called when a unit is finished (the unit
+     *        has the error assigned if something failed)
+     */
+    public JspCPipeline(JspCBatchCompiler compiler, int compileThreads, int writeThreads, int queueSize,
+            Consumer<JspCBatchCompiler.Unit> listener) {
+        this.compiler = compiler;
+        this.log = compiler.getLog();
+        this.compileQueue = new ArrayBlockingQueue<>(queueSize);
+        this.writeQueue = new ArrayBlockingQueue<>(queueSize);
+        this.listener = listener;
+        this.compileThreads = new Thread[compileThreads];
+        this.writeThreads = new Thread[writeThreads];
+    }
+
+    public void start() {
+        for (int i = 0; i < compileThreads.length; i++) {
+            compileThreads[i] = new Thread(this::compileStage, "jspc-compile-" + i);
+            compileThreads[i].start();
+        }
+        for (int i = 0; i < writeThreads.length; i++) {
+            writeThreads[i] = new Thread(this::writeStage, "jspc-write-" + i);
+            writeThreads[i].start();
+        }
+    }
+
+    /**
+     * Adds a generated unit to the pipeline. The method blocks if the
+     * compile stage queue is full. If a thread budget is configured the
+     * caller (a generation thread) holds one of its permits, the permit is
+     * released while waiting so the compile stage can take it.
+     *
+     * @param unit The unit to compile
+     * @throws InterruptedException If interrupted waiting
+     */
+    public void submit(JspCBatchCompiler.Unit unit) throws InterruptedException {
+        if (compileQueue.offer(unit)) {
+            return;
+        }
+        Semaphore budget = compiler.getOptions().getThreadBudget();
+        if (budget == null) {
+            compileQueue.put(unit);
+            return;
+        }
+        budget.release();
+        try {
+            compileQueue.put(unit);
+        } finally {
+            budget.acquireUninterruptibly();
+        }
+    }
+
+    /**
+     * Called when all the pages have been generated. The method waits for
+     * the other stages to finish all the pending units.
+     */
+    public void finish() {
+        generationFinished = true;
+        join(compileThreads);
+        compilationFinished = true;
+        join(writeThreads);
+    }
+
+    private void join(Thread[] threads) {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                log.warn("Interruped waiting for thread " + thread.getName(), e);
+            }
+        }
+    }
+
+    private void compileStage() {
+        // once interrupted the thread keeps consuming the queue, so the
+        // generation threads never block, but the units are marked as errors
+        InterruptedException cancelled = null;
+        while (true) {
+            List<JspCBatchCompiler.Unit> units = new ArrayList<>();
+            try {
+                JspCBatchCompiler.Unit unit = compileQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (unit == null) {
+                    if (generationFinished && compileQueue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                // compile together all the units that are already waiting
+                units.add(unit);
+                compileQueue.drainTo(units, MAX_UNITS_PER_COMPILATION - 1);
+                if (cancelled != null) {
+                    complete(units, cancelled);
+                    continue;
+                }
+                log.trace(String.format("Compiling %d units in %s", units.size(), Thread.currentThread().getName()));
+                compile(units);
+                while (!units.isEmpty()) {
+                    writeQueue.put(units.get(0));
+                    units.remove(0);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Compile stage interrupted, the pending units are marked as errors", e);
+                cancelled = e;
+                complete(units, e);
+            }
+        }
+        if (cancelled != null) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compile(List<JspCBatchCompiler.Unit> units) throws InterruptedException {
+        // the compilation is limited by the thread budget shared with other executions
+        Semaphore budget = compiler.getOptions().getThreadBudget();
+        if (budget != null) {
+            budget.acquire();
+        }
+        try {
+            compiler.compile(units);
+        } catch (Throwable e) {
+            log.error("Error compiling the units in " + Thread.currentThread().getName(), e);
+            for (JspCBatchCompiler.Unit unit : units) {
+                unit.fail(e);
+            }
+        } finally {
+            if (budget != null) {
+                budget.release();
+            }
+        }
+    }
+
+    private void writeStage() {
+        InterruptedException cancelled = null;
+        while (true) {
+            JspCBatchCompiler.Unit unit;
+            try {
+                unit = writeQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.warn("Write stage interrupted, the pending units are marked as errors", e);
+                cancelled = e;
+                continue;
+            }
+            if (unit == null) {
+                if (compilationFinished && writeQueue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            if (cancelled != null) {
+                unit.fail(cancelled);
+            } else {
+                try {
+                    compiler.write(unit);
+                } catch (Throwable e) {
+                    unit.fail(e);
+                }
+            }
+            complete(unit);
+        }
+        if (cancelled != null) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void complete(List<JspCBatchCompiler.Unit> units, Throwable e) {
+        for (JspCBatchCompiler.Unit unit : units) {
+            unit.fail(e);
+            complete(unit);
+        }
+    }
+
+    private void complete(JspCBatchCompiler.Unit unit) {
+        // the listener is always called, an error there cannot stop the stage
+        try {
+            listener.accept(unit);
+        } catch (Throwable e) {
+            log.error("Error completing the unit " + unit.getJspUri(), e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * <p>JSON report of the execution. The document is streamed to the file
+ * while the pages are finished, so the pages already compiled are in the
+ * file if the execution is long or it is aborted. The document is only
+ * complete (valid JSON) after <em>finish</em> is called. The environment
+ * information (threads, mode and setup times) is written at the beginning,
+ * every result is added to the <em>results</em> array when received, and
+ * the totals, the web XML time, the cache counters and the phase
+ * statistics are written at the end.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCReport implements Closeable {
+
+    private final Writer writer;
+    private boolean first = true;
+    private IOException error;
+
+    /**
+     * Creates the report file (the parent directories are also created).
+     *
+     * @param file The file of the report
+     * @throws IOException Some error creating the file
+     */
+    public JspCReport(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    private void write(StringBuilder sb) {
+        if (error != null) {
+            return;
+        }
+        try {
+            writer.write(sb.toString());
+            writer.flush();
+        } catch (IOException e) {
+            // the results are added by the compiler threads, the error is thrown at the end
+            error = e;
+        }
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses > 0? (double) hits / (hits + misses) : 0.0;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    /**
+     * Writes the environment of the execution and opens the results array.
+     *
+     * @param threadCount The number of threads used
+     * @param mode The compilation mode (default, batch, pipeline or virtual)
+     * @param results The results with the setup times already added
+     */
+    public synchronized void start(int threadCount, String mode, JspCResults results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"threadCount\":").append(threadCount)
+                .append(",\"mode\":");
+        Utils.appendJson(sb, mode);
+        sb.append(",\"setup\":{\"classLoader\":").append(results.getTime(JspCResults.Phase.CLASS_LOADER))
+                .append(",\"tldScan\":").append(results.getTime(JspCResults.Phase.TLD_SCAN))
+                .append("},\"results\":[\n");
+        write(sb);
+    }
+
+    /**
+     * Adds a result to the report. It can be called by several threads.
+     *
+     * @param entry The result to add
+     */
+    public synchronized void add(JspCResults.ResultEntry entry) {
+        StringBuilder sb = new StringBuilder();
+        if (!first) {
+            sb.append(",\n");
+        }
+        first = false;
+        JspCResults.appendJson(sb, entry);
+        write(sb);
+    }
+
+    /**
+     * Writes the totals and closes the JSON document.
+     *
+     * @param results The final results
+     * @param tldCache The TLD cache used (can be null)
+     * @param tldCacheHits The hits of the TLD cache when the execution started
+     * @param tldCacheMisses The misses of the TLD cache when the execution started
+     * @param resourceCache The resource cache of the context (can be null)
+     * @throws IOException If some error happened writing the report
+     */
+    public synchronized void finish(JspCResults results, JspCTldCache tldCache, int tldCacheHits, int tldCacheMisses,
+            JspCResourceCache resourceCache) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n],\"total\":").append(results.total())
+                .append(",\"errors\":").append(results.errors())
+                .append(",\"skipped\":").append(results.skipped())
+                .append(",\"time\":").append(results.getTime())
+                .append(",\"errorCode\":").append(results.getErrorCode())
+                .append(",\"webXml\":").append(results.getTime(JspCResults.Phase.WEB_XML))
+                .append(",\"cache\":{\"hits\":").append(results.getCacheHits())
+                .append(",\"misses\":").append(results.getCacheMisses())
+                .append(",\"hitRate\":").append(format(rate(results.getCacheHits(), results.getCacheMisses())))
+                .append('}');
+        if (tldCache != null) {
+            // the cache can be shared by several executions, only report this one
+            int hits = tldCache.getHits() - tldCacheHits;
+            int misses = tldCache.getMisses() - tldCacheMisses;
+            sb.append(",\"tldCache\":{\"hits\":").append(hits)
+                    .append(",\"misses\":").append(misses)
+                    .append(",\"hitRate\":").append(format(rate(hits, misses)))
+                    .append('}');
+        }
+        if (resourceCache != null) {
+            sb.append(",\"resourceCache\":{\"hits\":").append(resourceCache.getHits())
+                    .append(",\"misses\":").append(resourceCache.getMisses())
+                    .append(",\"hitRate\":").append(format(rate(resourceCache.getHits(), resourceCache.getMisses())))
+                    .append('}');
+        }
+        sb.append(",\"phases\":{");
+        String sep = "";
+        for (JspCResults.Phase phase : JspCResults.Phase.values()) {
+            if (phase.isPage()) {
+                JspCResults.Statistics stats = results.getStatistics(phase);
+                sb.append(sep).append('"').append(phase.name().toLowerCase(Locale.ROOT))
+                        .append("\":{\"total\":").append(stats.getTotal())
+                        .append(",\"p50\":").append(stats.getP50())
+                        .append(",\"p95\":").append(stats.getP95())
+                        .append(",\"max\":").append(stats.getMax())
+                        .append('}');
+                sep = ",";
+            }
+        }
+        sb.append("}}\n");
+        write(sb);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Cache of the resources returned by the servlet context. The web
+ * application directory is walked once and the paths found are kept in
+ * memory with the resource index of the class loader. Every lookup is
+ * resolved against those two structures, so checking the existence of a
+ * resource never opens a file, and the result (found or not found) is
+ * cached by path. The cache is a snapshot of the application when it is
+ * created, files added later are not seen.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCResourceCache {
+
+    private final Logger log;
+    private final File uriRoot;
+    private final URL rootUrl;
+    private final JspCResourceIndex index;
+    private final Set<String> localPaths = new HashSet<>();
+    private final Map<String, Optional<URL>> resources = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates the cache walking the application directory.
+     *
+     * @param uriRoot The web application directory
+     * @param index The index of the class loader resources (can be null)
+     * @throws MalformedURLException If the directory cannot be converted to URL
+     */
+    public JspCResourceCache(File uriRoot, JspCResourceIndex index) throws MalformedURLException {
+        this(uriRoot, index, LogManager.getLogger(JspC.class.getPackageName()));
+    }
+
+    /**
+     * Creates the cache walking the application directory and using the
+     * logger passed.
+     *
+     * @param uriRoot The web application directory
+     * @param index The index of the class loader resources (can be null)
+     * @param log The logger to use
+     * @throws MalformedURLException If the directory cannot be converted to URL
+     */
+    public JspCResourceCache(File uriRoot, JspCResourceIndex index, Logger log) throws MalformedURLException {
+        this.log = log;
+        this.uriRoot = uriRoot.getAbsoluteFile();
+        this.rootUrl = this.uriRoot.toURI().toURL();
+        this.index = index;
+        walk();
+    }
+
+    private void walk() {
+        Path base = uriRoot.toPath();
+        try {
+            Files.walkFileTree(base, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    localPaths.add(toPath(base, dir) + "/");
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    localPaths.add(toPath(base, file));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    log.debug("Error walking file: " + file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.debug("Error walking the application directory: " + uriRoot, e);
+        }
+    }
+
+    private static String toPath(Path base, Path path) {
+        String relative = base.relativize(path).toString().replace(File.separatorChar, '/');
+        return relative.isEmpty()? "" : "/" + relative;
+    }
+
+    private boolean existsLocally(String path) {
+        if (path.contains("/./") || path.contains("/../") || path.contains("//")
+                || path.endsWith("/.") || path.endsWith("/..")) {
+            // not normalized path, just ask the file system
+            return new File(uriRoot, path.substring(1)).exists();
+        }
+        return localPaths.contains(path) || (!path.endsWith("/") && localPaths.contains(path + "/"));
+    }
+
+    private Optional<URL> resolve(String path) {
+        misses.incrementAndGet();
+        try {
+            if (existsLocally(path)) {
+                return Optional.of(new URL(rootUrl, path.substring(1)));
+            }
+        } catch (MalformedURLException e) {
+            log.debug("Invalid local path: " + path, e);
+        }
+        return index == null? Optional.empty() : Optional.ofNullable(index.getResource(path));
+    }
+
+    /**
+     * Returns the URL of the resource, first looking in the application
+     * directory and then in the <em>META-INF/resources</em> of the class
+     * loader.
+     *
+     * @param path The path of the resource (starting with slash)
+     * @return The URL or null if the resource does not exist
+     */
+    public URL getResource(String path) {
+        Optional<URL> url = resources.get(path);
+        if (url != null) {
+            hits.incrementAndGet();
+        } else {
+            url = resources.computeIfAbsent(path, this::resolve);
+        }
+        return url.orElse(null);
+    }
+
+    /**
+     * The local paths found in the application directory. The directories
+     * end with slash.
+     *
+     * @return The local paths
+     */
+    public Set<String> getLocalPaths() {
+        return Collections.unmodifiableSet(localPaths);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Index of the <em>META-INF/resources</em> contents of the class loader.
+ * All the jars and directories are read only once and the index keeps the
+ * children of every directory (the same paths returned by
+ * <em>getResourcePaths</em>) and the URL of every resource (the first one
+ * in the class loader order, like <em>getResource</em> does). The index is
+ * immutable once created so it can be used by several threads. The entries
+ * read from every jar can be kept in a map shared between executions, the
+ * jar is not opened again if its size and last modified time are the
+ * same.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCResourceIndex {
+
+    private static final String RESOURCES = "META-INF/resources";
+
+    private final Logger log;
+    private final Map<String, Set<String>> children = new HashMap<>();
+    private final Map<String, URL> resources = new HashMap<>();
+    private final Map<String, List<String>> jarEntries;
+
+    /**
+     * Creates the index reading all the <em>META-INF/resources</em> locations
+     * of the class loader.
+     *
+     * @param loader The class loader to index
+     */
+    public JspCResourceIndex(ClassLoader loader) {
+        this(loader, null);
+    }
+
+    /**
+     * Creates the index reading all the <em>META-INF/resources</em> locations
+     * of the class loader and using the jar entries passed.
+     *
+     * @param loader The class loader to index
+     * @param jarEntries The resources of the jars already read (can be null)
+     */
+    public JspCResourceIndex(ClassLoader loader, Map<String, List<String>> jarEntries) {
+        this(loader, jarEntries, LogManager.getLogger(JspC.class.getPackageName()));
+    }
+
+    /**
+     * Creates the index using the logger passed.
+     *
+     * @param loader The class loader to index
+     * @param jarEntries The resources of the jars already read (can be null)
+     * @param log The logger to use
+     */
+    public JspCResourceIndex(ClassLoader loader, Map<String, List<String>> jarEntries, Logger log) {
+        this.log = log;
+        this.jarEntries = jarEntries;
+        try {
+            Enumeration<URL> e = loader.getResources(RESOURCES);
+            Set<URL> jars = new LinkedHashSet<>();
+            while (e.hasMoreElements()) {
+                URL url = e.nextElement();
+                log.trace("indexing loader url=" + url);
+                if (url.getProtocol().equals("file")) {
+                    indexDirectory(url);
+                } else if (url.getProtocol().equals("jar")) {
+                    URL jar = ((JarURLConnection) url.openConnection()).getJarFileURL();
+                    if (jars.add(jar)) {
+                        indexJar(jar);
+                    }
+                } else {
+                    log.warn("Unmanaged protocol calculating resource paths from class loader: " + url);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Error loading resources from class loader", e);
+        }
+    }
+
+    private void add(String path, URL url) {
+        resources.putIfAbsent(path, url);
+        // add the path to the parent and all the parents to their parents
+        String child = path;
+        while (child.length() > 1) {
+            int sep = child.lastIndexOf('/', child.length() - 2);
+            String parent = child.substring(0, sep + 1);
+            if (!children.computeIfAbsent(parent, k -> new LinkedHashSet<>()).add(child)) {
+                break;
+            }
+            child = parent;
+        }
+    }
+
+    private void indexDirectory(URL url) {
+        try {
+            Path base = Paths.get(url.toURI());
+            try (Stream<Path> paths = Files.walk(base)) {
+                paths.filter(path -> !path.equals(base)).forEach(path -> {
+                    String name = "/" + base.relativize(path).toString().replace(File.separatorChar, '/');
+                    if (Files.isDirectory(path)) {
+                        name += "/";
+                    }
+                    try {
+                        add(name, path.toUri().toURL());
+                    } catch (MalformedURLException e) {
+                        log.debug("Invalid path in directory: " + path, e);
+                    }
+                });
+            }
+        } catch (IOException | URISyntaxException e) {
+            log.debug("Error adding paths from directory: " + url, e);
+        }
+    }
+
+    private List<String> readJar(File file) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(file)) {
+            Enumeration<JarEntry> e = jarFile.entries();
+            while (e.hasMoreElements()) {
+                JarEntry entry = e.nextElement();
+                if (entry.getName().startsWith(RESOURCES + "/") && entry.getName().length() > RESOURCES.length() + 1) {
+                    names.add(entry.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private void indexJar(URL jar) {
+        try {
+            File file = new File(jar.toURI());
+            List<String> names;
+            if (jarEntries == null) {
+                names = readJar(file);
+            } else {
+                String key = file.getAbsolutePath() + File.pathSeparator + file.length() + File.pathSeparator + file.lastModified();
+                names = jarEntries.get(key);
+                if (names == null) {
+                    names = readJar(file);
+                    jarEntries.put(key, names);
+                }
+            }
+            String prefix = "jar:" + jar.toExternalForm() + "!/";
+            for (String name : names) {
+                add(name.substring(RESOURCES.length()), new URL(prefix + name));
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            log.debug("Error adding paths from jar file: " + jar, e);
+        }
+    }
+
+    /**
+     * Returns the children of the directory passed.
+     *
+     * @param path The directory path (ending with slash)
+     * @return The files and directories (ending with slash) inside the directory
+     */
+    public Set<String> getChildren(String path) {
+        Set<String> result = children.get(path);
+        return result == null? Collections.emptySet() : Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Returns the URL of the resource.
+     *
+     * @param path The path of the resource
+     * @return The URL of the resource or null if not found
+     */
+    public URL getResource(String path) {
+        return resources.get(path);
+    }
+
+    /**
+     * The number of resources in the index.
+     *
+     * @return The number of resources
+     */
+    public int size() {
+        return resources.size();
+    }
+}
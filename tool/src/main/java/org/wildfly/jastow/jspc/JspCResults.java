@@ -17,7 +17,15 @@ package org.wildfly.jastow.jspc;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -25,22 +33,119 @@ import java.util.List;
  */
 public class JspCResults {
 
+    /**
+     * The phases of the execution. The page phases are measured for every
+     * page (the parsing of the page is included in the generation), the
+     * other ones for the whole execution.
+     */
+    public enum Phase {
+        CLASS_LOADER(false),
+        TLD_SCAN(false),
+        GENERATE(true),
+        QUEUE(true),
+        COMPILE(true),
+        WRITE(true),
+        WEB_XML(false);
+
+        private final boolean page;
+
+        private Phase(boolean page) {
+            this.page = page;
+        }
+
+        public boolean isPage() {
+            return page;
+        }
+    }
+
+    /**
+     * Aggregated statistics of the durations of the pages.
+     */
+    public static class Statistics {
+
+        private final int count;
+        private final long total;
+        private final long p50;
+        private final long p95;
+        private final long max;
+
+        private Statistics(List<Long> durations) {
+            List<Long> sorted = new ArrayList<>(durations);
+            Collections.sort(sorted);
+            this.count = sorted.size();
+            this.total = sorted.stream().mapToLong(Long::longValue).sum();
+            this.p50 = percentile(sorted, 50);
+            this.p95 = percentile(sorted, 95);
+            this.max = count > 0? sorted.get(count - 1) : 0L;
+        }
+
+        private static long percentile(List<Long> sorted, int percentile) {
+            // nearest-rank method
+            if (sorted.isEmpty()) {
+                return 0L;
+            }
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+            return sorted.get(Math.max(0, rank - 1));
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
     public static class ResultEntry {
 
         private final String jspUri;
         private final String servletName;
         private final Throwable error;
+        private final boolean skipped;
+        private final Map<Phase, Long> times;
+        private final long sourceSize;
+        private final long classSize;
 
         public ResultEntry(String jspUri, String servletName) {
+            this(jspUri, servletName, false);
+        }
+
+        public ResultEntry(String jspUri, String servletName, boolean skipped) {
+            this(jspUri, servletName, skipped, Collections.emptyMap(), 0L, 0L);
+        }
+
+        public ResultEntry(String jspUri, String servletName, boolean skipped, Map<Phase, Long> times,
+                long sourceSize, long classSize) {
             this.jspUri = jspUri;
             this.servletName = servletName;
             this.error = null;
+            this.skipped = skipped;
+            this.times = times.isEmpty()? Collections.emptyMap() : new EnumMap<>(times);
+            this.sourceSize = sourceSize;
+            this.classSize = classSize;
         }
 
         public ResultEntry(String jspUri, Throwable error) {
             this.jspUri = jspUri;
             this.error = error;
             this.servletName = null;
+            this.skipped = false;
+            this.times = Collections.emptyMap();
+            this.sourceSize = 0L;
+            this.classSize = 0L;
         }
 
         public String getJspUri() {
@@ -58,12 +163,58 @@ public class JspCResults {
         public boolean isError() {
             return error != null;
         }
+
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * The time spent in a phase by the page.
+         *
+         * @param phase The page phase
+         * @return The duration in milliseconds (0 if not measured)
+         */
+        public long getTime(Phase phase) {
+            return times.getOrDefault(phase, 0L);
+        }
+
+        /**
+         * The time spent in all the phases by the page.
+         *
+         * @return The duration in milliseconds
+         */
+        public long getTime() {
+            return times.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        /**
+         * The size of the java source generated for the page.
+         *
+         * @return The size in bytes (0 if not generated)
+         */
+        public long getSourceSize() {
+            return sourceSize;
+        }
+
+        /**
+         * The size of the class file of the page (inner classes not included).
+         *
+         * @return The size in bytes (0 if not known)
+         */
+        public long getClassSize() {
+            return classSize;
+        }
     }
 
     private final List<ResultEntry> results;
     private final List<ResultEntry> errors;
+    private volatile boolean error = false;
     private int errorCode;
     private final long startTime;
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final AtomicInteger cacheMisses = new AtomicInteger();
+    private final Map<Phase, AtomicLong> phaseTimes = new EnumMap<>(Phase.class);
+    private volatile Consumer<ResultEntry> listener;
 
     public JspCResults() {
         this(1);
@@ -74,14 +225,51 @@ public class JspCResults {
         this.errors = Collections.synchronizedList(new ArrayList<>());
         this.errorCode = errorCode;
         this.startTime = System.currentTimeMillis();
+        for (Phase phase : Phase.values()) {
+            phaseTimes.put(phase, new AtomicLong());
+        }
+    }
+
+    /**
+     * Assigns a listener that is called every time a result is added. The
+     * listener is called by the thread that adds the result.
+     *
+     * @param listener The listener or null to remove it
+     */
+    public void setListener(Consumer<ResultEntry> listener) {
+        this.listener = listener;
+    }
+
+    private void notify(ResultEntry entry) {
+        Consumer<ResultEntry> l = this.listener;
+        if (l != null) {
+            l.accept(entry);
+        }
     }
 
     public void addSuccess(String jspUri, String servletName) {
-        this.results.add(new ResultEntry(jspUri, servletName));
+        ResultEntry entry = new ResultEntry(jspUri, servletName);
+        this.results.add(entry);
+        notify(entry);
+    }
+
+    public void addSuccess(String jspUri, String servletName, Map<Phase, Long> times, long sourceSize, long classSize) {
+        ResultEntry entry = new ResultEntry(jspUri, servletName, false, times, sourceSize, classSize);
+        this.results.add(entry);
+        notify(entry);
+    }
+
+    public void addSkipped(String jspUri, String servletName) {
+        ResultEntry entry = new ResultEntry(jspUri, servletName, true);
+        this.results.add(entry);
+        notify(entry);
     }
 
     public void addError(String jspUri, Throwable e) {
-        this.errors.add(new ResultEntry(jspUri, e));
+        ResultEntry entry = new ResultEntry(jspUri, e);
+        this.errors.add(entry);
+        this.error = true;
+        notify(entry);
     }
 
     public List<ResultEntry> getResults() {
@@ -100,12 +288,35 @@ public class JspCResults {
         return this.errors.size();
     }
 
+    public int skipped() {
+        synchronized (this.results) {
+            return (int) this.results.stream().filter(ResultEntry::isSkipped).count();
+        }
+    }
+
     public int total() {
         return this.results() + this.errors();
     }
     
     public boolean isError() {
-        return this.errors() > 0;
+        // volatile flag to not lock the list, it is checked by every thread
+        return this.error;
+    }
+
+    public void addCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void addCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    public int getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public int getCacheMisses() {
+        return cacheMisses.get();
     }
 
     public void setErrorCode(int errorCode) {
@@ -119,4 +330,147 @@ public class JspCResults {
     public long getTime() {
         return System.currentTimeMillis() - startTime;
     }
+
+    /**
+     * Adds time to a phase of the execution. The page phases are calculated
+     * from the results and should not be added here.
+     *
+     * @param phase The phase
+     * @param millis The duration in milliseconds
+     */
+    public void addTime(Phase phase, long millis) {
+        phaseTimes.get(phase).addAndGet(millis);
+    }
+
+    private List<ResultEntry> getCompiledResults() {
+        synchronized (this.results) {
+            return this.results.stream().filter(e -> !e.isSkipped()).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The time spent in a phase. For the page phases it is the sum of the
+     * times of all the pages (the pages are processed in parallel, so it
+     * can be bigger than the execution time).
+     *
+     * @param phase The phase
+     * @return The duration in milliseconds
+     */
+    public long getTime(Phase phase) {
+        if (phase.isPage()) {
+            return getCompiledResults().stream().mapToLong(e -> e.getTime(phase)).sum();
+        }
+        return phaseTimes.get(phase).get();
+    }
+
+    /**
+     * The statistics of a page phase for all the pages compiled (skipped
+     * pages are not counted).
+     *
+     * @param phase The page phase
+     * @return The statistics
+     */
+    public Statistics getStatistics(Phase phase) {
+        return new Statistics(getCompiledResults().stream().map(e -> e.getTime(phase)).collect(Collectors.toList()));
+    }
+
+    /**
+     * The statistics of the total time of all the pages compiled (skipped
+     * pages are not counted).
+     *
+     * @return The statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(getCompiledResults().stream().map(e -> e.getTime()).collect(Collectors.toList()));
+    }
+
+    /**
+     * Returns the pages that spent more time.
+     *
+     * @param n The maximum number of pages to return
+     * @return The slowest pages sorted by time
+     */
+    public List<ResultEntry> getSlowest(int n) {
+        return getCompiledResults().stream()
+                .sorted(Comparator.comparingLong((ResultEntry e) -> e.getTime()).reversed())
+                .limit(n)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns a table with the time spent in every phase and the slowest
+     * pages, one line per element.
+     *
+     * @param slowest The number of slowest pages to add
+     * @return The lines of the summary
+     */
+    public List<String> getSummary(int slowest) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-14s %10s %8s %8s %8s", "Phase", "Total(ms)", "p50", "p95", "max"));
+        for (Phase phase : Phase.values()) {
+            String name = phase.name().toLowerCase(Locale.ROOT).replace('_', '-');
+            if (phase.isPage()) {
+                Statistics stats = getStatistics(phase);
+                lines.add(String.format("%-14s %10d %8d %8d %8d", name, stats.getTotal(), stats.getP50(), stats.getP95(), stats.getMax()));
+            } else {
+                lines.add(String.format("%-14s %10d %8s %8s %8s", name, getTime(phase), "-", "-", "-"));
+            }
+        }
+        Statistics stats = getStatistics();
+        lines.add(String.format("%-14s %10d %8d %8d %8d", "pages", stats.getTotal(), stats.getP50(), stats.getP95(), stats.getMax()));
+        List<ResultEntry> entries = getSlowest(slowest);
+        if (!entries.isEmpty()) {
+            lines.add("Slowest pages:");
+        }
+        for (ResultEntry entry : entries) {
+            lines.add(String.format("%8d ms %s (generate=%d queue=%d compile=%d write=%d)", entry.getTime(), entry.getJspUri(),
+                    entry.getTime(Phase.GENERATE), entry.getTime(Phase.QUEUE), entry.getTime(Phase.COMPILE), entry.getTime(Phase.WRITE)));
+        }
+        return lines;
+    }
+
+    static void appendJson(StringBuilder sb, ResultEntry entry) {
+        sb.append("{\"jspUri\":");
+        Utils.appendJson(sb, entry.getJspUri());
+        sb.append(",\"servletName\":");
+        Utils.appendJson(sb, entry.getServletName());
+        sb.append(",\"skipped\":").append(entry.isSkipped());
+        sb.append(",\"error\":");
+        Utils.appendJson(sb, entry.isError()? String.valueOf(entry.getError().getMessage()) : null);
+        sb.append(",\"time\":").append(entry.getTime());
+        for (Phase phase : Phase.values()) {
+            if (phase.isPage()) {
+                sb.append(",\"").append(phase.name().toLowerCase(Locale.ROOT)).append("\":").append(entry.getTime(phase));
+            }
+        }
+        sb.append(",\"sourceSize\":").append(entry.getSourceSize());
+        sb.append(",\"classSize\":").append(entry.getClassSize());
+        sb.append('}');
+    }
+
+    /**
+     * Returns the results as a JSON object in one line.
+     *
+     * @return The JSON representation of the results
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"total\":").append(total())
+                .append(",\"errors\":").append(errors())
+                .append(",\"skipped\":").append(skipped())
+                .append(",\"time\":").append(getTime())
+                .append(",\"errorCode\":").append(getErrorCode())
+                .append(",\"cacheHits\":").append(getCacheHits())
+                .append(",\"cacheMisses\":").append(getCacheMisses())
+                .append(",\"results\":[");
+        List<ResultEntry> entries = new ArrayList<>(getResults());
+        entries.addAll(getErrors());
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendJson(sb, entries.get(i));
+        }
+        return sb.append("]}").toString();
+    }
 }
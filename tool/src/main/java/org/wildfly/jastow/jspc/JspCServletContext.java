@@ -30,7 +30,6 @@ import jakarta.servlet.descriptor.TaglibDescriptor;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -49,8 +48,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.stream.Collectors;
 import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLInputFactory;
@@ -77,25 +74,108 @@ import org.jboss.metadata.web.spec.WebMetaData;
  */
 public class JspCServletContext implements ServletContext {
 
-    private final Logger log = LogManager.getLogger(JspC.class.getPackageName());
+    private final Logger log;
 
     private final Map<String,String> initParams = new ConcurrentHashMap<>();
     private final Map<String,Object> attrs = new HashMap<>();
     private File uriRoot;
     private JspConfigDescriptor jspConfigDescriptor;
     private ClassLoader loader;
+    private volatile JspCResourceIndex resourceIndex;
+    private volatile JspCResourceCache resourceCache;
+    private Map<String, List<String>> jarEntries;
 
     public JspCServletContext() {
+        this(LogManager.getLogger(JspC.class.getPackageName()));
+    }
+
+    /**
+     * Creates the context logging with the logger of the JspC instance.
+     *
+     * @param log The logger to use
+     */
+    public JspCServletContext(Logger log) {
+        this.log = log;
         HashMap<String, TagLibraryInfo> jspTagLibraries = new HashMap<>();
         attrs.put(Constants.JSP_TAG_LIBRARIES, jspTagLibraries);
     }
 
     public void setUriRoot(String uriRoot) {
         this.uriRoot = new File(uriRoot);
+        this.resourceCache = null;
     }
 
     public void setClassLoader(ClassLoader loader) {
         this.loader = loader;
+        this.resourceIndex = null;
+        this.resourceCache = null;
+    }
+
+    /**
+     * Assigns the map that keeps the resources read from the jars between
+     * executions.
+     *
+     * @param jarEntries The shared map of resources by jar
+     */
+    public void setJarEntries(Map<String, List<String>> jarEntries) {
+        this.jarEntries = jarEntries;
+        this.resourceIndex = null;
+        this.resourceCache = null;
+    }
+
+    /**
+     * The index of the META-INF/resources of the class loader. It is created
+     * the first time is needed.
+     *
+     * @return The index or null if no class loader is assigned
+     */
+    public JspCResourceIndex getResourceIndex() {
+        JspCResourceIndex index = resourceIndex;
+        if (index == null && loader != null) {
+            synchronized (this) {
+                index = resourceIndex;
+                if (index == null) {
+                    long start = System.currentTimeMillis();
+                    index = new JspCResourceIndex(loader, jarEntries, log);
+                    resourceIndex = index;
+                    log.debug(String.format("Indexed %d resources from class loader in %d ms",
+                            index.size(), System.currentTimeMillis() - start));
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Discards the resource cache, the next lookup walks the application
+     * directory again.
+     */
+    public void resetResourceCache() {
+        this.resourceCache = null;
+    }
+
+    /**
+     * The cache used to resolve the resources. It is created the first time
+     * is needed walking the application directory.
+     *
+     * @return The cache
+     * @throws MalformedURLException If the application directory is invalid
+     */
+    public JspCResourceCache getResourceCache() throws MalformedURLException {
+        JspCResourceCache cache = resourceCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = resourceCache;
+                if (cache == null) {
+                    long start = System.currentTimeMillis();
+                    cache = new JspCResourceCache(uriRoot, getResourceIndex(), log);
+                    resourceCache = cache;
+                    log.debug(String.format("Walked %d local resources in %d ms",
+                            cache.getLocalPaths().size(), System.currentTimeMillis() - start));
+                }
+            }
+        }
+        return cache;
     }
 
     public HashMap<String, TagLibraryInfo> getJspTagLibraries() {
@@ -151,38 +231,6 @@ public class JspCServletContext implements ServletContext {
         }
     }
 
-    private void appendPathsInJar(String path, URL url, Set<String> paths) {
-        try {
-            JarURLConnection conn = (JarURLConnection) url.openConnection();
-            try (JarFile jarFile = conn.getJarFile()) {
-                Enumeration<JarEntry> e = jarFile.entries();
-                while (e.hasMoreElements()) {
-                    JarEntry entry = e.nextElement();
-                    if (entry.getName().startsWith("META-INF/resources" + path)) {
-                        String realPath = entry.getName().substring(("META-INF/resources" + path).length() - 1);
-                        if (realPath.length() > 1) {
-                            int sep = realPath.indexOf("/", 1);
-                            if (sep < 0) {
-                                // this is a file
-                                paths.add(realPath);
-                            } else {
-                                // it's a directory, include the "/"
-                                realPath = realPath.substring(0, sep + 1);
-                                if (!paths.contains(realPath)) {
-                                    paths.add(realPath);
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                log.debug("Error adding paths from jar file: " + url, e);
-            }
-        } catch (IOException e) {
-            log.debug("Error adding paths from jar file: " + url, e);
-        }
-    }
-
     @Override
     public Set<String> getResourcePaths(String path) {
         log.trace("path=" + path);
@@ -196,24 +244,9 @@ public class JspCServletContext implements ServletContext {
             appendPathsInDirectory(path, basePath, paths);
         }
         // add META-INF/resources from jars/classpath
-        if (loader != null) {
-            try {
-                String resourcesPath = "META-INF/resources" + path;
-                Enumeration<URL> e = loader.getResources(resourcesPath);
-                while (e.hasMoreElements()) {
-                    URL url = e.nextElement();
-                    log.trace("loading loader url=" + url);
-                    if (url.getProtocol().equals("file")) {
-                        appendPathsInDirectory(path, url.getPath(), paths);
-                    } else if (url.getProtocol().equals("jar")) {
-                        appendPathsInJar(path, url, paths);
-                    } else {
-                        log.warn("Unmanaged protocol calculating resource paths from class loader: " + url);
-                    }
-                }
-            } catch (IOException e) {
-                log.debug("Error loading resources from class loader", e);
-            }
+        JspCResourceIndex index = getResourceIndex();
+        if (index != null) {
+            paths.addAll(index.getChildren(path));
         }
         log.trace("result=" + paths);
         return paths;
@@ -222,21 +255,11 @@ public class JspCServletContext implements ServletContext {
     @Override
     public URL getResource(String path) throws MalformedURLException {
         log.trace("path=" + path);
-        // local files inside uriRoot
         if (!path.startsWith("/")) {
             throw new MalformedURLException(String.format("File should start with /. Invalid file: %s", path));
         }
-        URL url = new URL(uriRoot.getAbsoluteFile().toURI().toURL(), path.substring(1));
-        try (InputStream is = url.openStream()) {
-            return url;
-        } catch (IOException e) {
-            log.trace("File not found in local path: " + path, e);
-            url = null;
-        }
-        // search on JARS under the /META-INF/resources
-        if (loader != null) {
-            url = loader.getResource("META-INF/resources" + path);
-        }
+        // local files inside uriRoot and then JARS under the /META-INF/resources
+        URL url = getResourceCache().getResource(path);
         log.trace("result=" + url);
         return url;
     }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.metadata.web.spec.TldMetaData;
+
+/**
+ * <p>Disk cache of the TLD files parsed from jars. Every jar is stored in a
+ * file named with the hash of its path that contains the size and last
+ * modified time of the jar, and the serialized metadata of all its TLD
+ * files. If the jar has not changed since it was stored the metadata is
+ * read from the cache and the jar is not opened. The metadata is converted
+ * to taglibs in every execution as the result depends on all the TLDs of
+ * the application. The jars read or stored are also kept in memory, so a
+ * cache shared by several executions (daemon mode) does not read the disk
+ * again, and the cache can be used only in memory (no directory).</p>
+ *
+ * @author rmartinc
+ */
+public class JspCTldCache {
+
+    private static final String SUFFIX = ".tlds";
+
+    /**
+     * A TLD file parsed from a location.
+     */
+    public static class Entry {
+
+        private final String location;
+        private final TldMetaData metaData;
+
+        public Entry(String location, TldMetaData metaData) {
+            this.location = location;
+            this.metaData = metaData;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public TldMetaData getMetaData() {
+            return metaData;
+        }
+    }
+
+    private static class Cached {
+        private final long size;
+        private final long lastModified;
+        private final List<Entry> entries;
+
+        Cached(long size, long lastModified, List<Entry> entries) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.entries = entries;
+        }
+    }
+
+    // the cache directory can be shared, only the classes of the TLD metadata are deserialized
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;maxrefs=1000000;maxarray=1000000;maxbytes=67108864;"
+            + "org.jboss.metadata.**;java.lang.Enum;java.lang.Object;java.lang.String;java.lang.Boolean;"
+            + "java.lang.Number;java.lang.Integer;java.lang.Long;java.util.ArrayList;java.util.HashMap;"
+            + "java.util.LinkedHashMap;java.util.HashSet;java.util.LinkedHashSet;java.util.Map$Entry;!*");
+
+    private final Logger log = LogManager.getLogger(JspC.class.getPackageName());
+    private final File directory;
+    private final Map<String, Cached> memory = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Creates the cache.
+     *
+     * @param directory The directory of the cache or null to only use memory
+     */
+    public JspCTldCache(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private Path getCacheFile(File jar) {
+        return directory.toPath().resolve(JspCClassCache.hash(jar.getAbsolutePath()) + SUFFIX);
+    }
+
+    /**
+     * Looks for the TLDs of the jar in the cache.
+     *
+     * @param jar The jar file
+     * @return The TLDs stored for the jar or null if not cached or the jar
+     *         has been modified
+     */
+    public List<Entry> lookup(File jar) {
+        return lookup(jar, log);
+    }
+
+    /**
+     * Looks for the TLDs of the jar in the cache using the logger passed.
+     *
+     * @param jar The jar file
+     * @param log The logger of the JspC instance
+     * @return The TLDs stored for the jar or null if not cached or the jar
+     *         has been modified
+     */
+    public List<Entry> lookup(File jar, Logger log) {
+        Cached cached = memory.get(jar.getAbsolutePath());
+        if (cached != null && cached.size == jar.length() && cached.lastModified == jar.lastModified()) {
+            hits.incrementAndGet();
+            return cached.entries;
+        }
+        if (directory == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Path file = getCacheFile(jar);
+        if (Files.isRegularFile(file)) {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                ois.setObjectInputFilter(FILTER);
+                long size = jar.length();
+                long lastModified = jar.lastModified();
+                if (jar.getAbsolutePath().equals(ois.readUTF()) && size == ois.readLong()
+                        && lastModified == ois.readLong()) {
+                    int count = ois.readInt();
+                    List<Entry> entries = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        entries.add(new Entry(ois.readUTF(), (TldMetaData) ois.readObject()));
+                    }
+                    cached = new Cached(size, lastModified, Collections.unmodifiableList(entries));
+                    memory.put(jar.getAbsolutePath(), cached);
+                    hits.incrementAndGet();
+                    return cached.entries;
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                log.debug("Invalid TLD cache file " + file + " for jar " + jar, e);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the TLDs of the jar in the cache. Errors are just logged.
+     *
+     * @param jar The jar file
+     * @param entries The TLDs parsed from the jar
+     */
+    public void store(File jar, List<Entry> entries) {
+        store(jar, entries, log);
+    }
+
+    /**
+     * Stores the TLDs of the jar in the cache using the logger passed.
+     *
+     * @param jar The jar file
+     * @param entries The TLDs parsed from the jar
+     * @param log The logger of the JspC instance
+     */
+    public void store(File jar, List<Entry> entries, Logger log) {
+        long size = jar.length();
+        long lastModified = jar.lastModified();
+        memory.put(jar.getAbsolutePath(), new Cached(size, lastModified, Collections.unmodifiableList(new ArrayList<>(entries))));
+        if (directory == null) {
+            return;
+        }
+        Path file = getCacheFile(jar);
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            tmp = Files.createTempFile(directory.toPath(), "tld", ".tmp");
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                oos.writeUTF(jar.getAbsolutePath());
+                oos.writeLong(size);
+                oos.writeLong(lastModified);
+                oos.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    oos.writeUTF(entry.getLocation());
+                    oos.writeObject(entry.getMetaData());
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.debug("Error storing the TLD cache file " + file + " for jar " + jar, e);
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e1) {
+                    log.debug("Error deleting temporary file " + tmp, e1);
+                }
+            }
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+}
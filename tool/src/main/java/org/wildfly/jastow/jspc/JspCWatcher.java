@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Watches the application directory (including <em>WEB-INF/lib</em> and
+ * <em>WEB-INF/classes</em>) of an executed <em>JspC</em> and recompiles the
+ * pages affected by the modifications. The events are debounced, the cycle
+ * starts when no new event is received during the debounce time. The
+ * output directory, the manifest and the web.xml generated are ignored if
+ * they are inside the application.</p>
+ *
+ * @author rmartinc
+ */
+public class JspCWatcher implements Closeable {
+
+    public static final long DEFAULT_DEBOUNCE = 300L;
+
+    private final Logger log;
+    private final JspC jspc;
+    private final long debounce;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final List<Path> excluded = new ArrayList<>();
+    private final AtomicInteger cycles = new AtomicInteger();
+    private volatile JspCResults lastResults;
+
+    /**
+     * Creates the watcher and registers all the directories of the
+     * application.
+     *
+     * @param jspc The JspC already executed in watch mode
+     * @param debounce The milliseconds without events to start a cycle
+     * @throws IOException Some error registering the directories
+     */
+    public JspCWatcher(JspC jspc, long debounce) throws IOException {
+        this.jspc = jspc;
+        this.log = jspc.getLog();
+        this.debounce = debounce;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        excluded.add(jspc.getOptions().getScratchDir().getCanonicalFile().toPath());
+        excluded.add(Paths.get(jspc.getManifestFile()).toAbsolutePath());
+        if (jspc.getWebxmlFile() != null) {
+            excluded.add(Paths.get(jspc.getWebxmlFile()).toAbsolutePath());
+        }
+        register(Paths.get(jspc.getUriRoot()));
+    }
+
+    public int getCycles() {
+        return cycles.get();
+    }
+
+    public JspCResults getLastResults() {
+        return lastResults;
+    }
+
+    private boolean isExcluded(Path path) {
+        return excluded.stream().anyMatch(path::startsWith);
+    }
+
+    private void register(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.filter(Files::isDirectory).filter(p -> !isExcluded(p)).collect(Collectors.toList())) {
+                WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, path);
+            }
+        }
+    }
+
+    private void process(WatchKey key, Set<File> changed) throws IOException {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("Too many events in " + dir + ", some modifications can be lost");
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (isExcluded(child)) {
+                continue;
+            }
+            if (Files.isDirectory(child)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // watch the new directory and add the files already created inside
+                    register(child);
+                    try (Stream<Path> paths = Files.walk(child)) {
+                        paths.filter(Files::isRegularFile).forEach(p -> changed.add(p.toFile()));
+                    }
+                }
+            } else {
+                changed.add(child.toFile());
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Waits for modifications and recompiles the affected pages until the
+     * watcher is closed or the thread interrupted.
+     */
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                long first = System.currentTimeMillis();
+                Set<File> changed = new LinkedHashSet<>();
+                process(key, changed);
+                while ((key = watchService.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    process(key, changed);
+                }
+                if (changed.isEmpty()) {
+                    continue;
+                }
+                long start = System.currentTimeMillis();
+                try {
+                    JspCResults results = jspc.recompile(changed);
+                    long end = System.currentTimeMillis();
+                    System.out.println(String.format("Recompiled [%d] files with [%d] errors for [%d] modified files in [%d] milliseconds ([%d] since the first modification)",
+                            results.total(), results.errors(), changed.size(), end - start, end - first));
+                    lastResults = results;
+                } catch (Exception e) {
+                    log.error("Error recompiling modified files: " + changed, e);
+                }
+                cycles.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // watcher closed
+        } catch (IOException e) {
+            log.error("Error watching the application directory", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -15,16 +15,39 @@
  */
 package org.wildfly.jastow.jspc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -74,14 +97,45 @@ public class Utils {
         return docBuilder.parse(f);
     }
 
-    public static void parseTldFile(String location, InputStream is, HashMap<String, TagLibraryInfo> jspTagLibraries) throws XMLStreamException {
+    // the factory is thread safe once configured, so it is shared by all the TLD parsing
+    private static final XMLInputFactory TLD_INPUT_FACTORY = createTldInputFactory();
+
+    private static XMLInputFactory createTldInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty("javax.xml.stream.isSupportingExternalEntities", false);
+        return factory;
+    }
+
+    /**
+     * Creates a stream reader with the same secure configuration used for
+     * the TLD files (no DTD and no external entities).
+     *
+     * @param reader The reader of the document
+     * @return The stream reader
+     * @throws XMLStreamException Some error creating the reader
+     */
+    public static XMLStreamReader createXmlStreamReader(Reader reader) throws XMLStreamException {
+        return TLD_INPUT_FACTORY.createXMLStreamReader(reader);
+    }
+
+    /**
+     * Creates a stream reader with the same secure configuration used for
+     * the TLD files (no DTD and no external entities). The encoding is
+     * detected from the document.
+     *
+     * @param is The input stream of the document
+     * @return The stream reader
+     * @throws XMLStreamException Some error creating the reader
+     */
+    public static XMLStreamReader createXmlStreamReader(InputStream is) throws XMLStreamException {
+        return TLD_INPUT_FACTORY.createXMLStreamReader(is);
+    }
+
+    public static TldMetaData parseTld(InputStream is) throws XMLStreamException {
         try {
-            XMLInputFactory factory = XMLInputFactory.newInstance();
-            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
-            factory.setProperty("javax.xml.stream.isSupportingExternalEntities", false);
-            XMLStreamReader xmlReader = factory.createXMLStreamReader(is);
-            TldMetaData tldMetaData = TldMetaDataParser.parse(xmlReader);
-            Utils.createTldInfo(location, tldMetaData, jspTagLibraries);
+            XMLStreamReader xmlReader = TLD_INPUT_FACTORY.createXMLStreamReader(is);
+            return TldMetaDataParser.parse(xmlReader);
         } finally {
             try {
                 is.close();
@@ -295,4 +349,314 @@ public class Utils {
         }
         return ret;
     }
+
+    public static long lastModified(URL url) {
+        if (url == null) {
+            return -1L;
+        }
+        try {
+            if ("jar".equals(url.getProtocol())) {
+                // use the jar file itself, entries are not modified individually
+                String path = url.getPath();
+                int idx = path.indexOf("!/");
+                if (idx > 0) {
+                    path = path.substring(0, idx);
+                }
+                return lastModified(new URL(path));
+            } else if ("file".equals(url.getProtocol())) {
+                File file = new File(url.toURI());
+                return file.exists()? file.lastModified() : -1L;
+            } else {
+                URLConnection conn = url.openConnection();
+                conn.setUseCaches(false);
+                return conn.getLastModified();
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            return -1L;
+        }
+    }
+
+    private static final Pattern CLASS_IN_DESCRIPTOR = Pattern.compile("L([\\w/$]+);");
+
+    /**
+     * Returns the classes referenced in the constant pool of the class file
+     * (class entries and types used in descriptors) in internal format
+     * (<em>com/sample/Bean</em>).
+     *
+     * @param is The class file input stream
+     * @return The set of referenced classes
+     * @throws IOException Some error reading the file
+     */
+    public static Set<String> getReferencedClasses(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Invalid class file");
+        }
+        in.readUnsignedShort(); // minor
+        in.readUnsignedShort(); // major
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        List<Integer> classes = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // class
+                    classes.add(in.readUnsignedShort());
+                    break;
+                case 8: case 16: case 19: case 20: // string, method type, module, package
+                    in.skipBytes(2);
+                    break;
+                case 15: // method handle
+                    in.skipBytes(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    in.skipBytes(4);
+                    break;
+                case 5: case 6: // long and double use two entries
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag " + tag);
+            }
+        }
+        Set<String> result = new HashSet<>();
+        for (int idx : classes) {
+            String name = utf8[idx];
+            if (name != null && !name.startsWith("[")) {
+                result.add(name);
+            }
+        }
+        for (String value : utf8) {
+            if (value != null && value.indexOf(';') > 0) {
+                Matcher m = CLASS_IN_DESCRIPTOR.matcher(value);
+                while (m.find()) {
+                    result.add(m.group(1));
+                }
+            }
+        }
+        return result;
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    public static String digest(InputStream is) throws IOException {
+        MessageDigest md = createDigest();
+        try (InputStream in = is) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    private static void update(MessageDigest md, Object... values) {
+        for (Object value : values) {
+            md.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+    }
+
+    /**
+     * Calculates a hash of all the metadata of the TLDs found.
+     *
+     * @param jspTagLibraries The taglibs found in the application
+     * @return The hexadecimal hash of the metadata
+     */
+    public static String digestTagLibraries(Map<String, TagLibraryInfo> jspTagLibraries) {
+        MessageDigest md = createDigest();
+        for (Map.Entry<String, TagLibraryInfo> e : new TreeMap<>(jspTagLibraries).entrySet()) {
+            TagLibraryInfo tld = e.getValue();
+            update(md, e.getKey(), tld.getUri(), tld.getLocation(), tld.getPath(), tld.getTlibversion(),
+                    tld.getJspversion(), tld.getShortname(), Arrays.toString(tld.getListeners()),
+                    tld.getValidator() == null? null : tld.getValidator().getValidatorClass());
+            for (TagInfo tag : tld.getTags()) {
+                update(md, tag.getTagName(), tag.getTagClassName(), tag.getBodyContent(), tag.getTagExtraInfo(),
+                        tag.getDynamicAttributes());
+                for (TagAttributeInfo attr : tag.getTagAttributeInfos()) {
+                    update(md, attr.getName(), attr.getType(), attr.getRequired(), attr.getReqTime(), attr.getFragment(),
+                            attr.getExpectedTypeName(), attr.getMethodSignature(), attr.getDeferredValue(), attr.getDeferredMethod());
+                }
+                for (TagVariableInfo var : tag.getTagVariableInfos()) {
+                    update(md, var.getNameGiven(), var.getNameFromAttribute(), var.getClassName(), var.getScope(), var.getDeclare());
+                }
+            }
+            for (TagFileInfo tagFile : tld.getTagFileInfos()) {
+                update(md, tagFile.getName(), tagFile.getPath());
+            }
+            for (FunctionInfo function : tld.getFunctionInfos()) {
+                update(md, function.getName(), function.getFunctionClass(), function.getFunctionSignature());
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Appends the value as a JSON string (quoted and escaped).
+     *
+     * @param sb The builder to append to
+     * @param value The value (null is appended as null)
+     */
+    public static void appendJson(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Escapes the characters that cannot be used in the text of a XML element.
+     *
+     * @param value The value to escape
+     * @return The escaped value
+     */
+    public static String escapeXml(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = c == '&'? "&amp;" : c == '<'? "&lt;" : c == '>'? "&gt;" : null;
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(value.length() + 16).append(value, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null? value : sb.toString();
+    }
+
+    /**
+     * Creates a buffered writer for a XML file. The characters that cannot be
+     * represented in the charset are written as character references
+     * (<em>&amp;#x...;</em>) instead of being replaced by a question mark.
+     * Take into account that the references are not decoded inside comments
+     * or CDATA sections, there the reference text is kept as is.
+     *
+     * @param os The output stream
+     * @param charset The charset of the file
+     * @return The writer
+     */
+    public static BufferedWriter createXmlWriter(OutputStream os, Charset charset) {
+        return new BufferedWriter(new XmlCharsetWriter(new OutputStreamWriter(os, charset), charset.newEncoder()));
+    }
+
+    private static class XmlCharsetWriter extends Writer {
+
+        private final Writer writer;
+        private final CharsetEncoder encoder;
+        // high surrogate at the end of the previous call waiting for its pair
+        private char pending;
+
+        XmlCharsetWriter(Writer writer, CharsetEncoder encoder) {
+            this.writer = writer;
+            this.encoder = encoder;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len <= 0) {
+                return;
+            }
+            if (pending != 0) {
+                if (Character.isLowSurrogate(cbuf[off])) {
+                    writeChars(new char[]{pending, cbuf[off]}, 0, 2);
+                    off++;
+                    len--;
+                } else {
+                    writeChars(new char[]{pending}, 0, 1);
+                }
+                pending = 0;
+            }
+            if (len > 0 && Character.isHighSurrogate(cbuf[off + len - 1])) {
+                pending = cbuf[off + len - 1];
+                len--;
+            }
+            writeChars(cbuf, off, len);
+        }
+
+        private void writeChars(char[] cbuf, int off, int len) throws IOException {
+            if (encoder.canEncode(CharBuffer.wrap(cbuf, off, len))) {
+                writer.write(cbuf, off, len);
+                return;
+            }
+            int start = off;
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                int count = Character.isHighSurrogate(cbuf[i]) && i + 1 < end && Character.isLowSurrogate(cbuf[i + 1])? 2 : 1;
+                if (!encoder.canEncode(CharBuffer.wrap(cbuf, i, count))) {
+                    writer.write(cbuf, start, i - start);
+                    writer.write("&#x" + Integer.toHexString(Character.codePointAt(cbuf, i, end)).toUpperCase(Locale.ROOT) + ";");
+                    start = i + count;
+                }
+                i += count;
+            }
+            writer.write(cbuf, start, end - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (pending != 0) {
+                    writeChars(new char[]{pending}, 0, 1);
+                    pending = 0;
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
 }
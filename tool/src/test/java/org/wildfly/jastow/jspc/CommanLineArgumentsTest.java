@@ -204,6 +204,23 @@ public class CommanLineArgumentsTest {
         Assert.assertEquals("target option", CompilerOptions.VERSION_11, jspc.getOptions().getCompilerTargetVM());
         Assert.assertEquals("threadCount option", (Runtime.getRuntime().availableProcessors() / 2) + 1, jspc.getThreadCount());
         Assert.assertEquals("deletesources option", false, jspc.getDeleteSources());
+        Assert.assertFalse("inMemorySources option", jspc.isInMemorySources());
+        Assert.assertEquals("incremental option", false, jspc.isIncremental());
+        Assert.assertEquals("manifest option", new File(jspc.getOptions().getScratchDir(), JspCManifest.DEFAULT_NAME).getAbsolutePath(), jspc.getManifestFile());
+        Assert.assertNull("whatdepends option", jspc.getWhatDepends());
+        Assert.assertNull("cache option", jspc.getCacheDir());
+        Assert.assertEquals("cacheSize option", 1024, jspc.getCacheSize());
+        Assert.assertNull("tldCache option", jspc.getTldCacheDir());
+        Assert.assertNull("report option", jspc.getReportFile());
+        Assert.assertNull("outputJar option", jspc.getOutputJar());
+        Assert.assertFalse("batchCompile option", jspc.isBatchCompile());
+        Assert.assertEquals("batchShards option", 1, jspc.getBatchShards());
+        Assert.assertFalse("pipeline option", jspc.isPipeline());
+        Assert.assertFalse("watch option", jspc.isWatch());
+        Assert.assertFalse("virtualThreads option", jspc.isVirtualThreads());
+        Assert.assertEquals("compileThreads option", Math.max(1, Runtime.getRuntime().availableProcessors() / 2), jspc.getCompileThreads());
+        Assert.assertEquals("writeThreads option", 1, jspc.getWriteThreads());
+        Assert.assertEquals("queueSize option", 64, jspc.getQueueSize());
     }
 
     @Test
@@ -231,6 +248,18 @@ public class CommanLineArgumentsTest {
                     .set(JspCCommandLineBuilder.JspCArgument.TARGET, "1.7")
                     .set(JspCCommandLineBuilder.JspCArgument.THREAD_COUNT, "1")
                     .set(JspCCommandLineBuilder.JspCArgument.DELETE_SOURCES)
+                    .set(JspCCommandLineBuilder.JspCArgument.IN_MEMORY_SOURCES)
+                    .set(JspCCommandLineBuilder.JspCArgument.INCREMENTAL)
+                    .set(JspCCommandLineBuilder.JspCArgument.MANIFEST, outputDir + "/test.manifest")
+                    .set(JspCCommandLineBuilder.JspCArgument.WHAT_DEPENDS, "/WEB-INF/web.xml")
+                    .set(JspCCommandLineBuilder.JspCArgument.CACHE, outputDir + "/cache")
+                    .set(JspCCommandLineBuilder.JspCArgument.CACHE_SIZE, "10")
+                    .set(JspCCommandLineBuilder.JspCArgument.TLD_CACHE, outputDir + "/tlds")
+                    .set(JspCCommandLineBuilder.JspCArgument.REPORT, outputDir + "/report.json")
+                    .set(JspCCommandLineBuilder.JspCArgument.OUTPUT_JAR, outputDir + "/precompiled-jsps.jar")
+                    .set(JspCCommandLineBuilder.JspCArgument.BATCH_COMPILE)
+                    .set(JspCCommandLineBuilder.JspCArgument.BATCH_SHARDS, "4")
+                    .set(JspCCommandLineBuilder.JspCArgument.VIRTUAL_THREADS)
                     .addFile("samples/simple.jsp")
                     .build();
             Assert.assertEquals("Argument webapp assigned", new File("samples").getCanonicalFile(), new File(jspc.getUriRoot()).getCanonicalFile());
@@ -253,12 +282,66 @@ public class CommanLineArgumentsTest {
             Assert.assertEquals("target option", "1.7", jspc.getOptions().getCompilerTargetVM());
             Assert.assertEquals("threadCount option", 1, jspc.getThreadCount());
             Assert.assertEquals("deletesources option", true, jspc.getDeleteSources());
+            Assert.assertTrue("inMemorySources option", jspc.isInMemorySources());
+            Assert.assertEquals("incremental option", true, jspc.isIncremental());
+            Assert.assertEquals("manifest option", outputDir + File.separator + "test.manifest", jspc.getManifestFile());
+            Assert.assertEquals("whatdepends option", "/WEB-INF/web.xml", jspc.getWhatDepends());
+            Assert.assertEquals("cache option", outputDir + File.separator + "cache", jspc.getCacheDir());
+            Assert.assertEquals("cacheSize option", 10, jspc.getCacheSize());
+            Assert.assertEquals("tldCache option", outputDir + File.separator + "tlds", jspc.getTldCacheDir());
+            Assert.assertEquals("report option", outputDir + File.separator + "report.json", jspc.getReportFile());
+            Assert.assertEquals("outputJar option", outputDir + File.separator + "precompiled-jsps.jar", jspc.getOutputJar());
+            Assert.assertTrue("batchCompile option", jspc.isBatchCompile());
+            Assert.assertEquals("batchShards option", 4, jspc.getBatchShards());
+            Assert.assertTrue("virtualThreads option", jspc.isVirtualThreads());
         } finally {
             deleteTemporaryDir(outputDir);
             deleteTemporaryFile(webincFile);
         }
     }
 
+    @Test
+    public void testPipelineValues() throws Exception {
+        JspC jspc = new JspCCommandLineBuilder()
+                .set(JspCCommandLineBuilder.JspCArgument.PIPELINE)
+                .set(JspCCommandLineBuilder.JspCArgument.COMPILE_THREADS, "3")
+                .set(JspCCommandLineBuilder.JspCArgument.WRITE_THREADS, "2")
+                .set(JspCCommandLineBuilder.JspCArgument.QUEUE_SIZE, "10")
+                .addFile("samples/simple.jsp")
+                .build();
+        Assert.assertTrue("pipeline option", jspc.isPipeline());
+        Assert.assertEquals("compileThreads option", 3, jspc.getCompileThreads());
+        Assert.assertEquals("writeThreads option", 2, jspc.getWriteThreads());
+        Assert.assertEquals("queueSize option", 10, jspc.getQueueSize());
+    }
+
+    @Test
+    public void testPipelineAndBatch() throws Exception {
+        IllegalArgumentException e = Assert.assertThrows(IllegalArgumentException.class,
+                () -> new JspCCommandLineBuilder()
+                        .set(JspCCommandLineBuilder.JspCArgument.PIPELINE)
+                        .set(JspCCommandLineBuilder.JspCArgument.BATCH_COMPILE)
+                        .addFile("samples/simple.jsp")
+                        .build());
+        MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("cannot be used together"));
+    }
+
+    @Test
+    public void testWatchAndBatch() throws Exception {
+        JspC jspc = new JspCCommandLineBuilder()
+                .set(JspCCommandLineBuilder.JspCArgument.WATCH)
+                .addFile("samples/simple.jsp")
+                .build();
+        Assert.assertTrue("watch option", jspc.isWatch());
+        IllegalArgumentException e = Assert.assertThrows(IllegalArgumentException.class,
+                () -> new JspCCommandLineBuilder()
+                        .set(JspCCommandLineBuilder.JspCArgument.WATCH)
+                        .set(JspCCommandLineBuilder.JspCArgument.BATCH_COMPILE)
+                        .addFile("samples/simple.jsp")
+                        .build());
+        MatcherAssert.assertThat(e.getMessage(), CoreMatchers.containsString("-watch"));
+    }
+
     @Test
     public void testThreadCountPerProcessor() throws Exception {
         JspC jspc = new JspCCommandLineBuilder()
@@ -15,25 +15,61 @@
  */
 package org.wildfly.jastow.jspc;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.MatcherAssert;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 /**
  *
@@ -63,6 +99,34 @@ public class CompilationTest {
         }
     }
 
+    private static void copyDirectory(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                Path dest = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(dest);
+                } else {
+                    Files.copy(path, dest, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+    }
+
+    private static JspCResults compileIncremental(String webapp, String outputDir) throws Exception {
+        return new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp)
+                .setOutputDir(outputDir)
+                .setIncremental(true)
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.FRG_WEBXML)
+                .setWebxmlFile(outputDir + "/web-fragment.xml")
+                .setThreadCount(2)
+                .addPage(webapp + "/simple.jsp")
+                .addPage(webapp + "/jsp-include-main.jsp")
+                .addPage(webapp + "/jsp-include-display.jsp")
+                .execute();
+    }
+
     @Test
     public void testCompilationSimple() throws Exception {
         JspCResults results = new JspC()
@@ -252,4 +316,967 @@ public class CompilationTest {
         Assert.assertTrue("web-fragment.xml file exists", Files.exists(Paths.get(tempDir + "/web-fragment.xml")));
         Assert.assertTrue("web-fragment.xml is not empty", Files.size(Paths.get(tempDir + "/web-fragment.xml")) > 0);
     }
+
+    @Test
+    public void testIncremental() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Path output = Paths.get(tempDir, "output");
+        copyDirectory(Paths.get("samples"), webapp);
+        Files.createDirectories(output);
+        // first execution compiles everything
+        JspCResults results = compileIncremental(webapp.toString(), output.toString());
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("results = 3", 3, results.results());
+        Assert.assertEquals("skipped = 0", 0, results.skipped());
+        Assert.assertTrue("manifest file exists", Files.exists(output.resolve(JspCManifest.DEFAULT_NAME)));
+        // second execution skips everything but reports all the pages
+        results = compileIncremental(webapp.toString(), output.toString());
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("results = 3", 3, results.results());
+        Assert.assertEquals("skipped = 3", 3, results.skipped());
+        String fragment = new String(Files.readAllBytes(output.resolve("web-fragment.xml")), StandardCharsets.UTF_8);
+        MatcherAssert.assertThat(fragment, CoreMatchers.containsString("<url-pattern>/simple.jsp</url-pattern>"));
+        MatcherAssert.assertThat(fragment, CoreMatchers.containsString("<url-pattern>/jsp-include-main.jsp</url-pattern>"));
+        MatcherAssert.assertThat(fragment, CoreMatchers.containsString("<url-pattern>/jsp-include-display.jsp</url-pattern>"));
+        // modify the included file, the page that includes it is also compiled
+        File included = webapp.resolve("jsp-include-display.jsp").toFile();
+        Assert.assertTrue(included.setLastModified(included.lastModified() + 10000L));
+        results = compileIncremental(webapp.toString(), output.toString());
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("results = 3", 3, results.results());
+        Assert.assertEquals("skipped = 1", 1, results.skipped());
+        for (JspCResults.ResultEntry entry : results.getResults()) {
+            Assert.assertEquals("Only simple.jsp is skipped", "/simple.jsp".equals(entry.getJspUri()), entry.isSkipped());
+        }
+    }
+
+    @Test
+    public void testWhatDepends() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Path output = Paths.get(tempDir, "output");
+        copyDirectory(Paths.get("samples"), webapp);
+        Files.createDirectories(output);
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setOutputDir(output.toString())
+                .setManifestFile(tempDir + "/graph.manifest")
+                .addPage(webapp + "/jsp-include-main.jsp")
+                .addPage(webapp + "/jsp-include-display.jsp")
+                .addPage(webapp + "/jstl-bean.jsp")
+                .addPage(webapp + "/simple.jsp")
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        JspC jspc = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setManifestFile(tempDir + "/graph.manifest");
+        MatcherAssert.assertThat(jspc.whatDepends(webapp.resolve("jsp-include-display.jsp").toString()),
+                CoreMatchers.is(new TreeSet<>(Arrays.asList("/jsp-include-display.jsp", "/jsp-include-main.jsp"))));
+        MatcherAssert.assertThat(jspc.whatDepends("/WEB-INF/classes/com/tutorialspoint/StudentsBean.class"),
+                CoreMatchers.is(new TreeSet<>(Arrays.asList("/jstl-bean.jsp"))));
+        Assert.assertEquals("All pages depend on web.xml", 4, jspc.whatDepends("WEB-INF/web.xml").size());
+        Assert.assertTrue("Nothing depends on unknown file", jspc.whatDepends("/unknown.jspf").isEmpty());
+    }
+
+    private static JspCResults compileWithCache(String webapp, String outputDir, String cacheDir) throws Exception {
+        return new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp)
+                .setOutputDir(outputDir)
+                .setCacheDir(cacheDir)
+                .setThreadCount(2)
+                .addPage(webapp + "/simple.jsp")
+                .addPage(webapp + "/jsp-include-main.jsp")
+                .addPage(webapp + "/jstl-simple.jsp")
+                .execute();
+    }
+
+    @Test
+    public void testClassCache() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Path cache = Paths.get(tempDir, "cache");
+        copyDirectory(Paths.get("samples"), webapp);
+        Files.createDirectories(cache);
+        // first execution fills the cache
+        Path output = Files.createDirectories(Paths.get(tempDir, "output1"));
+        JspCResults results = compileWithCache(webapp.toString(), output.toString(), cache.toString());
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("hits = 0", 0, results.getCacheHits());
+        Assert.assertEquals("misses = 3", 3, results.getCacheMisses());
+        // second execution in a different directory uses the cache
+        output = Files.createDirectories(Paths.get(tempDir, "output2"));
+        results = compileWithCache(webapp.toString(), output.toString(), cache.toString());
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("hits = 3", 3, results.getCacheHits());
+        Assert.assertEquals("misses = 0", 0, results.getCacheMisses());
+        Assert.assertEquals("results = 3", 3, results.results());
+        for (JspCResults.ResultEntry result : results.getResults()) {
+            String pathName = result.getServletName().replace(".", File.separator);
+            Assert.assertTrue("Class file exists", Files.exists(output.resolve(pathName + ".class")));
+            Assert.assertTrue("Java file exists", Files.exists(output.resolve(pathName + ".java")));
+        }
+        // modify the content of the included file
+        Files.write(webapp.resolve("jsp-include-display.jsp"), "<p>modified</p>".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        output = Files.createDirectories(Paths.get(tempDir, "output3"));
+        results = compileWithCache(webapp.toString(), output.toString(), cache.toString());
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("hits = 2", 2, results.getCacheHits());
+        Assert.assertEquals("misses = 1", 1, results.getCacheMisses());
+        // evict everything
+        Assert.assertEquals("Evicted entries", 4, new JspCClassCache(cache.toFile(), 0).evict());
+    }
+
+    @Test
+    public void testBatchCompile() throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setBatchCompile(true)
+                .setBatchShards(2)
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.FRG_WEBXML)
+                .setWebxmlFile(tempDir + "/web-fragment.xml")
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("No error", 0, results.errors());
+        Assert.assertEquals("No error", 16, results.total());
+        Assert.assertEquals("No error", 16, results.results());
+        for (JspCResults.ResultEntry result : results.getResults()) {
+            String pathName = result.getServletName().replace(".", File.separator);
+            Assert.assertTrue("Class file exists", Files.exists(Paths.get(tempDir).resolve(pathName + ".class")));
+        }
+        Assert.assertTrue("web-fragment.xml file exists", Files.exists(Paths.get(tempDir + "/web-fragment.xml")));
+    }
+
+    @Test
+    public void testBatchCompileError() throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setBatchCompile(true)
+                .setDeleteSources(true)
+                .addPage("samples/error.jsp.err")
+                .addPage("samples/simple.jsp")
+                .addPage("samples/jstl-simple.jsp")
+                .execute();
+        Assert.assertTrue("Error result", results.isError());
+        Assert.assertEquals("error = 1", 1, results.errors());
+        Assert.assertEquals("results = 2", 2, results.results());
+        JspCResults.ResultEntry error = results.getErrors().get(0);
+        Assert.assertEquals("Error URI", "/error.jsp.err", error.getJspUri());
+        Assert.assertTrue("Error mapped to the JSP", error.getError().getMessage().contains("/error.jsp.err"));
+        for (JspCResults.ResultEntry result : results.getResults()) {
+            String pathName = result.getServletName().replace(".", File.separator);
+            Assert.assertTrue("Class file exists", Files.exists(Paths.get(tempDir).resolve(pathName + ".class")));
+            Assert.assertTrue("Java file deleted", Files.notExists(Paths.get(tempDir).resolve(pathName + ".java")));
+        }
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setPipeline(true)
+                .setThreadCount(2)
+                .setCompileThreads(2)
+                .setWriteThreads(2)
+                .setQueueSize(1)
+                .addPage("samples/error.jsp.err")
+                .addPage("samples/jstl-bean.jsp")
+                .addPage("samples/simple.jsp")
+                .addPage("samples/another-simple.jsp")
+                .addPage("samples/jstl-simple.jsp")
+                .addPage("samples/tld-in-web-inf.jsp")
+                .execute();
+        Assert.assertTrue("Error result", results.isError());
+        Assert.assertEquals("error = 1", 1, results.errors());
+        Assert.assertEquals("results = 5", 5, results.results());
+        Assert.assertEquals("Error URI", "/error.jsp.err", results.getErrors().get(0).getJspUri());
+        for (JspCResults.ResultEntry result : results.getResults()) {
+            String pathName = result.getServletName().replace(".", File.separator);
+            Assert.assertTrue("Class file exists", Files.exists(Paths.get(tempDir).resolve(pathName + ".class")));
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void testPipelineFailures() throws Exception {
+        // an error compiling the units marks them as errors
+        JspCBatchCompiler compiler = mockBatchCompiler();
+        Mockito.doThrow(new StackOverflowError("test")).when(compiler).compile(Mockito.anyList());
+        List<JspCBatchCompiler.Unit> completed = runPipeline(compiler, 4);
+        Assert.assertEquals("All the units completed", 4, completed.size());
+        for (JspCBatchCompiler.Unit unit : completed) {
+            MatcherAssert.assertThat(unit.getError(), CoreMatchers.instanceOf(StackOverflowError.class));
+        }
+
+        // an interrupted compile stage drains the queue marking the units as errors
+        compiler = mockBatchCompiler();
+        Mockito.doAnswer(invocation -> {
+            Thread.currentThread().interrupt();
+            return null;
+        }).when(compiler).compile(Mockito.anyList());
+        completed = runPipeline(compiler, 4);
+        Assert.assertEquals("All the units completed", 4, completed.size());
+        for (JspCBatchCompiler.Unit unit : completed) {
+            MatcherAssert.assertThat(unit.getError(), CoreMatchers.instanceOf(InterruptedException.class));
+        }
+    }
+
+    private static JspCBatchCompiler mockBatchCompiler() {
+        JspCBatchCompiler compiler = Mockito.mock(JspCBatchCompiler.class);
+        Mockito.when(compiler.getLog()).thenReturn(Mockito.mock(Logger.class));
+        Mockito.when(compiler.getOptions()).thenReturn(Mockito.mock(JspCOptions.class));
+        return compiler;
+    }
+
+    private static List<JspCBatchCompiler.Unit> runPipeline(JspCBatchCompiler compiler, int units) throws InterruptedException {
+        List<JspCBatchCompiler.Unit> completed = Collections.synchronizedList(new ArrayList<>());
+        JspCPipeline pipeline = new JspCPipeline(compiler, 1, 1, 1, completed::add);
+        pipeline.start();
+        for (int i = 0; i < units; i++) {
+            pipeline.submit(Mockito.mock(JspCBatchCompiler.Unit.class, Mockito.CALLS_REAL_METHODS));
+        }
+        pipeline.finish();
+        return completed;
+    }
+
+    @Test
+    public void testSchedulingByCost() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Path output = Files.createDirectories(Paths.get(tempDir, "output"));
+        Path manifestFile = output.resolve("test.manifest");
+        copyDirectory(Paths.get("samples"), webapp);
+        // without previous information the size of the JSP is used
+        JspC jspc = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setOutputDir(output.toString())
+                .setManifestFile(manifestFile.toString())
+                .setThreadCount(2)
+                .addPage(webapp + "/simple.jsp")
+                .addPage(webapp + "/jstl-simple.jsp")
+                .addPage(webapp + "/jstl-bean.jsp");
+        JspCResults results = jspc.execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("Biggest page first", webapp + "/jstl-bean.jsp", jspc.getPages().get(0));
+        // the duration is saved in the manifest, make simple.jsp the slowest page
+        JspCManifest manifest = JspCManifest.load(manifestFile.toFile());
+        JspCManifest modified = new JspCManifest(manifest.getConfiguration());
+        for (Map.Entry<String, JspCManifest.Entry> e : manifest.getEntries().entrySet()) {
+            Assert.assertTrue("Duration saved", e.getValue().getDuration() >= 0);
+            modified.put(e.getKey(), new JspCManifest.Entry(e.getValue().getServletName(),
+                    e.getValue().getDependencies(), e.getKey().equals("/simple.jsp")? 100000L : 1L));
+        }
+        modified.save(manifestFile.toFile());
+        jspc = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setOutputDir(output.toString())
+                .setManifestFile(manifestFile.toString())
+                .setThreadCount(2)
+                .addPage(webapp + "/jstl-bean.jsp")
+                .addPage(webapp + "/jstl-simple.jsp")
+                .addPage(webapp + "/simple.jsp");
+        results = jspc.execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("Slowest page first", webapp + "/simple.jsp", jspc.getPages().get(0));
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        // if the JVM has no virtual threads normal threads are used
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setVirtualThreads(true)
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("No error", 16, results.total());
+        Assert.assertEquals("No error", 16, results.results());
+    }
+
+    @Test
+    public void testResourceIndex() throws Exception {
+        File lib = new File("samples/WEB-INF/lib/inner-lib.jar");
+        File classes = new File("samples/WEB-INF/classes");
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{lib.toURI().toURL(), classes.toURI().toURL()}, null)) {
+            JspCServletContext ctx = new JspCServletContext();
+            ctx.setUriRoot("samples");
+            ctx.setClassLoader(loader);
+            MatcherAssert.assertThat(ctx.getResourcePaths("/"), CoreMatchers.hasItems("/simple.jsp", "/WEB-INF/",
+                    "/jsp-include-display-jar.jsp", "/SubstrDescriptor.tld", "/directory/", "/lala.txt", "/one/"));
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("/directory/sample.txt")), ctx.getResourcePaths("/directory"));
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("/one/one.txt")), ctx.getResourcePaths("/one/"));
+            URL url = ctx.getResource("/directory/sample.txt");
+            Assert.assertNotNull(url);
+            Assert.assertEquals("jar", url.getProtocol());
+            url = ctx.getResource("/one/one.txt");
+            Assert.assertNotNull(url);
+            Assert.assertEquals("file", url.getProtocol());
+            Assert.assertNull(ctx.getResource("/directory/missing.txt"));
+        }
+    }
+
+    @Test
+    public void testResourceCache() throws Exception {
+        JspCServletContext ctx = new JspCServletContext();
+        ctx.setUriRoot("samples");
+        JspCResourceCache cache = ctx.getResourceCache();
+        Assert.assertNotNull(ctx.getResource("/simple.jsp"));
+        Assert.assertEquals(ctx.getResource("/simple.jsp"), new File("samples/simple.jsp").getAbsoluteFile().toURI().toURL());
+        Assert.assertNotNull(ctx.getResource("/dir1"));
+        Assert.assertNotNull(ctx.getResource("/dir1/"));
+        Assert.assertNotNull(ctx.getResource("/dir1/../simple.jsp"));
+        Assert.assertNull(ctx.getResource("/missing.jsp"));
+        Assert.assertNull(ctx.getResource("/missing.jsp"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(5, cache.getMisses());
+        Assert.assertSame(cache, ctx.getResourceCache());
+    }
+
+    @Test
+    public void testParallelTldScan() throws Exception {
+        // the taglibs are part of the incremental configuration, so the
+        // pages are up-to-date only if the scan is the same with any threads
+        for (int threads : new int[]{1, 4}) {
+            JspCResults results = new JspC()
+                    .setDebugLevel(Level.OFF)
+                    .setUriRoot("samples")
+                    .setOutputDir(tempDir)
+                    .setIncremental(true)
+                    .setThreadCount(threads)
+                    .addPage("samples/tld-in-web-inf.jsp")
+                    .addPage("samples/tld-in-jar-resources.jsp")
+                    .addPage("samples/jstl-simple.jsp")
+                    .execute();
+            Assert.assertFalse("Error result", results.isError());
+            Assert.assertEquals("No error", 3, results.results());
+            Assert.assertEquals("Skipped", threads == 1? 0 : 3, results.skipped());
+        }
+    }
+
+    @Test
+    public void testTldCache() throws Exception {
+        Path tldCache = Paths.get(tempDir, "tlds");
+        for (int i = 0; i < 2; i++) {
+            JspCResults results = new JspC()
+                    .setDebugLevel(Level.OFF)
+                    .setUriRoot("samples")
+                    .setOutputDir(tempDir)
+                    .setTldCacheDir(tldCache.toString())
+                    .addPage("samples/tld-in-jar-resources.jsp")
+                    .addPage("samples/jstl-simple.jsp")
+                    .execute();
+            Assert.assertFalse("Error result", results.isError());
+            Assert.assertEquals("No error", 2, results.results());
+        }
+        JspCTldCache cache = new JspCTldCache(tldCache.toFile());
+        List<JspCTldCache.Entry> tlds = cache.lookup(new File("samples/WEB-INF/lib/inner-lib.jar").getCanonicalFile());
+        Assert.assertNotNull("TLDs of the jar are cached", tlds);
+        Assert.assertEquals(1, tlds.size());
+        Assert.assertEquals("substr", tlds.get(0).getMetaData().getShortName());
+        Assert.assertNull("Not cached jar", cache.lookup(new File("samples/beginnersbook-details-extlib.jar")));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        // a tampered file with other classes is rejected
+        File jar = new File("samples/WEB-INF/lib/inner-lib.jar").getCanonicalFile();
+        Path cacheFile = tldCache.resolve(JspCClassCache.hash(jar.getAbsolutePath()) + ".tlds");
+        Assert.assertTrue("Cache file exists", Files.isRegularFile(cacheFile));
+        try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(cacheFile))) {
+            oos.writeUTF(jar.getAbsolutePath());
+            oos.writeLong(jar.length());
+            oos.writeLong(jar.lastModified());
+            oos.writeInt(1);
+            oos.writeUTF("META-INF/tampered.tld");
+            oos.writeObject(new Tampered());
+        }
+        cache = new JspCTldCache(tldCache.toFile());
+        Assert.assertNull("Tampered file not used", cache.lookup(jar));
+        Assert.assertFalse("Tampered object not deserialized", Tampered.deserialized);
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    private static class Tampered implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private static volatile boolean deserialized = false;
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            deserialized = true;
+        }
+    }
+
+    @Test
+    public void testDaemon() throws Exception {
+        try (JspCDaemon daemon = new JspCDaemon(0, new JspCEngine())) {
+            daemon.start();
+            String cwd = System.getProperty("user.dir");
+            for (int i = 0; i < 2; i++) {
+                String response = JspCClient.send(daemon.getPort(), cwd, "-d", tempDir, "-webapp", "samples",
+                        "samples/simple.jsp", "samples/tld-in-jar-resources.jsp");
+                Assert.assertEquals("No error: " + response, 0, JspCClient.getErrorCode(response));
+                MatcherAssert.assertThat(response, CoreMatchers.containsString("\"total\":2,\"errors\":0"));
+                MatcherAssert.assertThat(response, CoreMatchers.containsString("\"jspUri\":\"/simple.jsp\""));
+            }
+            // the second execution reuses the TLDs of the jars
+            MatcherAssert.assertThat(daemon.getEngine().getTldCache().getHits(), CoreMatchers.not(0));
+            Assert.assertFalse("Jar entries are kept", daemon.getEngine().getJarEntries().isEmpty());
+            // the token file is only readable by the owner
+            File tokenFile = JspCDaemon.getTokenFile(new File(cwd), daemon.getPort());
+            Assert.assertEquals("Token in the file", daemon.getToken(), Files.readString(tokenFile.toPath()));
+            if (tokenFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Assert.assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+            }
+            // different directory is rejected
+            String response = JspCClient.send(daemon.getPort(), daemon.getToken(), tempDir, new String[]{"-d", tempDir, "samples/simple.jsp"});
+            Assert.assertEquals("Failure: " + response, -1, JspCClient.getErrorCode(response));
+            // invalid token is rejected
+            response = JspCClient.send(daemon.getPort(), "invalid", cwd, new String[]{"-d", tempDir, "samples/simple.jsp"});
+            Assert.assertEquals("Failure: " + response, -1, JspCClient.getErrorCode(response));
+            MatcherAssert.assertThat(response, CoreMatchers.containsString("Invalid token"));
+            // an empty argument does not finish the request, the page after it is compiled
+            response = JspCClient.send(daemon.getPort(), cwd, "-d", tempDir, "-webapp", "samples", "-javaEncoding", "", "samples/simple.jsp");
+            Assert.assertEquals("No error: " + response, 0, JspCClient.getErrorCode(response));
+            MatcherAssert.assertThat(response, CoreMatchers.containsString("\"total\":1,\"errors\":0"));
+            // a client that sends nothing does not block the daemon
+            daemon.setReadTimeout(500);
+            try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+                response = JspCClient.send(daemon.getPort(), cwd, "-d", tempDir, "-webapp", "samples", "samples/simple.jsp");
+                Assert.assertEquals("No error: " + response, 0, JspCClient.getErrorCode(response));
+            }
+            daemon.close();
+            Assert.assertFalse("Token file removed", tokenFile.exists());
+        }
+    }
+
+    private static void waitForCycles(JspCWatcher watcher, int cycles) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 30000L;
+        while (watcher.getCycles() < cycles && System.currentTimeMillis() < timeout) {
+            Thread.sleep(100L);
+        }
+        Assert.assertEquals("cycles", cycles, watcher.getCycles());
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Path output = Paths.get(tempDir, "output");
+        copyDirectory(Paths.get("samples"), webapp);
+        Files.createDirectories(output);
+        JspC jspc = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setOutputDir(output.toString())
+                .setWatch(true)
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.FRG_WEBXML)
+                .setWebxmlFile(output + "/web-fragment.xml")
+                .setThreadCount(2)
+                .addPage(webapp + "/simple.jsp")
+                .addPage(webapp + "/jsp-include-main.jsp")
+                .addPage(webapp + "/jsp-include-display.jsp");
+        JspCResults results = jspc.execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("results = 3", 3, results.results());
+        try (JspCWatcher watcher = new JspCWatcher(jspc, 100L)) {
+            Thread thread = new Thread(watcher::run);
+            thread.start();
+            // modify the included file, the page that includes it is also compiled
+            Files.write(webapp.resolve("jsp-include-display.jsp"), "<p>modified</p>".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            waitForCycles(watcher, 1);
+            results = watcher.getLastResults();
+            Assert.assertFalse("Error result", results.isError());
+            Assert.assertEquals("results = 2", 2, results.results());
+            for (JspCResults.ResultEntry entry : results.getResults()) {
+                MatcherAssert.assertThat(entry.getJspUri(), CoreMatchers.anyOf(
+                        CoreMatchers.is("/jsp-include-main.jsp"), CoreMatchers.is("/jsp-include-display.jsp")));
+            }
+            // a new page is compiled and added to the web-fragment.xml
+            Files.copy(webapp.resolve("simple.jsp"), webapp.resolve("simple-new.jsp"));
+            waitForCycles(watcher, 2);
+            results = watcher.getLastResults();
+            Assert.assertFalse("Error result", results.isError());
+            Assert.assertEquals("results = 1", 1, results.results());
+            String fragment = new String(Files.readAllBytes(output.resolve("web-fragment.xml")), StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(fragment, CoreMatchers.containsString("<url-pattern>/simple-new.jsp</url-pattern>"));
+            MatcherAssert.assertThat(fragment, CoreMatchers.containsString("<url-pattern>/simple.jsp</url-pattern>"));
+            watcher.close();
+            thread.join(10000L);
+            Assert.assertFalse("Watcher finished", thread.isAlive());
+        }
+        // the web.xml reloads the class loader and all the pages depend on it
+        results = jspc.recompile(Arrays.asList(webapp.resolve("WEB-INF/web.xml").toFile()));
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("results = 4", 4, results.results());
+        jspc.close();
+    }
+
+    @Test
+    public void testPhaseTimes() throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setPipeline(true)
+                .setThreadCount(2)
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.FRG_WEBXML)
+                .setWebxmlFile(tempDir + "/web-fragment.xml")
+                .addPage("samples/jstl-bean.jsp")
+                .addPage("samples/simple.jsp")
+                .addPage("samples/another-simple.jsp")
+                .addPage("samples/jstl-simple.jsp")
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        JspCResults.Statistics stats = results.getStatistics();
+        Assert.assertEquals("count = 4", 4, stats.getCount());
+        Assert.assertTrue("pages total > 0", stats.getTotal() > 0);
+        Assert.assertTrue("p50 <= p95", stats.getP50() <= stats.getP95());
+        Assert.assertTrue("p95 <= max", stats.getP95() <= stats.getMax());
+        long pages = 0;
+        for (JspCResults.Phase phase : JspCResults.Phase.values()) {
+            Assert.assertTrue("time >= 0", results.getTime(phase) >= 0);
+            if (phase.isPage()) {
+                Assert.assertEquals("page phase sum", results.getTime(phase), results.getStatistics(phase).getTotal());
+                pages += results.getTime(phase);
+            }
+        }
+        Assert.assertEquals("sum of the page phases", stats.getTotal(), pages);
+        List<JspCResults.ResultEntry> slowest = results.getSlowest(2);
+        Assert.assertEquals("slowest = 2", 2, slowest.size());
+        Assert.assertEquals("slowest is the max", stats.getMax(), slowest.get(0).getTime());
+        Assert.assertTrue("slowest sorted", slowest.get(0).getTime() >= slowest.get(1).getTime());
+        List<String> summary = results.getSummary(2);
+        MatcherAssert.assertThat(summary.get(0), CoreMatchers.startsWith("Phase"));
+        MatcherAssert.assertThat(summary, CoreMatchers.hasItem(CoreMatchers.startsWith("tld-scan")));
+        MatcherAssert.assertThat(summary, CoreMatchers.hasItem(CoreMatchers.startsWith("Slowest pages:")));
+        MatcherAssert.assertThat(summary.get(summary.size() - 1), CoreMatchers.containsString("compile="));
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        Path report = Paths.get(tempDir, "report", "report.json");
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setBatchCompile(true)
+                .setThreadCount(2)
+                .setFailOnError(false)
+                .setReportFile(report.toString())
+                .addPage("samples/error.jsp.err")
+                .addPage("samples/simple.jsp")
+                .addPage("samples/jstl-simple.jsp")
+                .execute();
+        Assert.assertEquals("error = 1", 1, results.errors());
+        Assert.assertEquals("results = 2", 2, results.results());
+        Assert.assertTrue("report exists", Files.exists(report));
+        String json = new String(Files.readAllBytes(report), StandardCharsets.UTF_8).trim();
+        MatcherAssert.assertThat(json, CoreMatchers.startsWith("{\"threadCount\":2,\"mode\":\"batch\",\"setup\":{\"classLoader\":"));
+        MatcherAssert.assertThat(json, CoreMatchers.endsWith("}}"));
+        MatcherAssert.assertThat(json, CoreMatchers.containsString("\"total\":3,\"errors\":1,\"skipped\":0"));
+        MatcherAssert.assertThat(json, CoreMatchers.containsString("\"jspUri\":\"/simple.jsp\""));
+        MatcherAssert.assertThat(json, CoreMatchers.containsString("\"jspUri\":\"/error.jsp.err\""));
+        MatcherAssert.assertThat(json, CoreMatchers.containsString("\"phases\":{\"generate\":{\"total\":"));
+        for (JspCResults.ResultEntry entry : results.getResults()) {
+            Assert.assertTrue("source size > 0", entry.getSourceSize() > 0);
+            String pathName = entry.getServletName().replace(".", File.separator);
+            Assert.assertEquals("class size", Files.size(Paths.get(tempDir).resolve(pathName + ".class")), entry.getClassSize());
+            MatcherAssert.assertThat(json, CoreMatchers.containsString("\"sourceSize\":" + entry.getSourceSize()
+                    + ",\"classSize\":" + entry.getClassSize()));
+        }
+    }
+
+    @Test
+    public void testReportTldCache() throws Exception {
+        // the TLD cache of the engine is shared, the report only counts each execution
+        JspCEngine engine = new JspCEngine();
+        Pattern counters = Pattern.compile("\"tldCache\":\\{\"hits\":(\\d+),\"misses\":(\\d+),");
+        int[][] values = new int[2][];
+        for (int i = 0; i < 2; i++) {
+            Path report = Paths.get(tempDir, "report" + i + ".json");
+            try (JspC jspc = new JspC()) {
+                JspCResults results = jspc.setDebugLevel(Level.OFF)
+                        .setEngine(engine)
+                        .setOutputDir(Files.createDirectories(Paths.get(tempDir, "output" + i)).toString())
+                        .setUriRoot("samples")
+                        .setReportFile(report.toString())
+                        .addPage("samples/simple.jsp")
+                        .execute();
+                Assert.assertFalse("Error result", results.isError());
+            }
+            Matcher matcher = counters.matcher(new String(Files.readAllBytes(report), StandardCharsets.UTF_8));
+            Assert.assertTrue("TLD cache in the report", matcher.find());
+            values[i] = new int[]{Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+        }
+        Assert.assertEquals("No hits in the first execution", 0, values[0][0]);
+        Assert.assertTrue("Misses in the first execution", values[0][1] > 0);
+        Assert.assertEquals("All hits in the second execution", values[0][1], values[1][0]);
+        Assert.assertEquals("No misses in the second execution", 0, values[1][1]);
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Path dump = Paths.get(tempDir, "jspc.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(JspCEvents.CompileJsp.class).withoutThreshold();
+            recording.enable(JspCEvents.ScanTld.class).withoutThreshold();
+            recording.enable(JspCEvents.SetupClassLoader.class).withoutThreshold();
+            recording.enable(JspCEvents.WriteWebXml.class).withoutThreshold();
+            recording.start();
+            new JspC()
+                    .setDebugLevel(Level.OFF)
+                    .setOutputDir(tempDir)
+                    .setUriRoot("samples")
+                    .setFailOnError(false)
+                    .setWebxmlLevel(JspC.WEBXML_LEVEL.FRG_WEBXML)
+                    .setWebxmlFile(tempDir + "/web-fragment.xml")
+                    .addPage("samples/error.jsp.err")
+                    .addPage("samples/simple.jsp")
+                    .execute();
+            recording.stop();
+            recording.dump(dump);
+        }
+        Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(dump).stream()
+                .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+        List<RecordedEvent> compiles = events.get("org.wildfly.jastow.jspc.CompileJsp");
+        Assert.assertEquals("compile events", 2, compiles.size());
+        for (RecordedEvent e : compiles) {
+            Assert.assertNotNull("thread", e.getThread());
+            if ("/simple.jsp".equals(e.getString("jspUri"))) {
+                Assert.assertEquals("outcome", JspCEvents.OUTCOME_COMPILED, e.getString("outcome"));
+                Assert.assertTrue("source size", e.getLong("sourceSize") > 0);
+                Assert.assertTrue("class size", e.getLong("classSize") > 0);
+            } else {
+                Assert.assertEquals("outcome", JspCEvents.OUTCOME_ERROR, e.getString("outcome"));
+            }
+        }
+        MatcherAssert.assertThat(events.get("org.wildfly.jastow.jspc.ScanTld").size(), CoreMatchers.not(0));
+        Assert.assertEquals("class loader events", 1, events.get("org.wildfly.jastow.jspc.SetupClassLoader").size());
+        List<RecordedEvent> webxml = events.get("org.wildfly.jastow.jspc.WriteWebXml");
+        Assert.assertEquals("web xml events", 1, webxml.size());
+        Assert.assertEquals("servlets", 1, webxml.get(0).getInt("servlets"));
+    }
+
+    @Test
+    public void testMergeWebXmlEscaping() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Files.createDirectories(webapp.resolve("WEB-INF"));
+        Files.copy(Paths.get("samples/simple.jsp"), webapp.resolve("a&b.jsp"));
+        Files.write(webapp.resolve("WEB-INF/web.xml"), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<web-app xmlns=\"https://jakarta.ee/xml/ns/jakartaee\" version=\"5.0\">\n"
+                + "    <display-name>merge \u4e2d\u6587</display-name>\n"
+                + "</web-app>\n").getBytes(StandardCharsets.UTF_8));
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot(webapp.toString())
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.MERGE_WEBXML)
+                .setWebxmlFile(tempDir + "/web.xml")
+                .setWebxmlEncoding(StandardCharsets.ISO_8859_1)
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        String merged = new String(Files.readAllBytes(Paths.get(tempDir, "web.xml")), StandardCharsets.ISO_8859_1);
+        // unmappable characters are written as references and the values are escaped
+        MatcherAssert.assertThat(merged, CoreMatchers.containsString("<display-name>merge &#x4E2D;&#x6587;</display-name>"));
+        MatcherAssert.assertThat(merged, CoreMatchers.containsString("<url-pattern>/a&amp;b.jsp</url-pattern>"));
+        Assert.assertEquals("Parsed display name", "merge \u4e2d\u6587", Utils.readXmlIntoDocument(Paths.get(tempDir, "web.xml").toFile())
+                .getElementsByTagName("display-name").item(0).getTextContent());
+    }
+
+    private static String writeXml(String value, Charset charset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BufferedWriter writer = Utils.createXmlWriter(bytes, charset)) {
+            writer.write(value);
+        }
+        return new String(bytes.toByteArray(), charset);
+    }
+
+    @Test
+    public void testXmlWriterSurrogatePairs() throws Exception {
+        // the pair is split between the chunks of the buffered writer
+        String value = "a".repeat(8191) + "\uD83D\uDE00" + "b".repeat(8192);
+        Assert.assertEquals("Pair kept in UTF-8", value, writeXml(value, StandardCharsets.UTF_8));
+        Assert.assertEquals("Pair as a single reference", "a".repeat(8191) + "&#x1F600;" + "b".repeat(8192),
+                writeXml(value, StandardCharsets.ISO_8859_1));
+        Assert.assertEquals("Pair at the end", "end&#x1F600;", writeXml("end\uD83D\uDE00", StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testMergeWebXmlEmptyRoot() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Files.createDirectories(webapp.resolve("WEB-INF"));
+        Files.copy(Paths.get("samples/simple.jsp"), webapp.resolve("simple.jsp"));
+        Files.write(webapp.resolve("WEB-INF/web.xml"), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!-- <web-app/> in a comment -->\n"
+                + "<web-app xmlns=\"https://jakarta.ee/xml/ns/jakartaee\" version=\"5.0\" metadata-complete=\"a/>b\"/>\n")
+                .getBytes(StandardCharsets.UTF_8));
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot(webapp.toString())
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.MERGE_WEBXML)
+                .setWebxmlFile(tempDir + "/web.xml")
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        String merged = new String(Files.readAllBytes(Paths.get(tempDir, "web.xml")), StandardCharsets.UTF_8);
+        // the empty root is expanded and the servlets are inside it
+        MatcherAssert.assertThat(merged, CoreMatchers.containsString(
+                "<web-app xmlns=\"https://jakarta.ee/xml/ns/jakartaee\" version=\"5.0\" metadata-complete=\"a/>b\">"));
+        Assert.assertTrue("Servlets inside the root", merged.indexOf("<servlet>") > merged.indexOf("metadata-complete"));
+        MatcherAssert.assertThat(merged.trim(), CoreMatchers.endsWith("</web-app>"));
+        Assert.assertEquals("Parsed servlet", "org.apache.jsp.simple_jsp", Utils.readXmlIntoDocument(Paths.get(tempDir, "web.xml").toFile())
+                .getElementsByTagName("servlet-class").item(0).getTextContent());
+    }
+
+    @Test
+    public void testMergeWebXmlKeepsFormatting() throws Exception {
+        Path webapp = Paths.get(tempDir, "webapp");
+        Files.createDirectories(webapp.resolve("WEB-INF"));
+        Files.copy(Paths.get("samples/simple.jsp"), webapp.resolve("simple.jsp"));
+        String header = "<web-app xmlns = \"https://jakarta.ee/xml/ns/jakartaee\"\n"
+                + "         version = \"5.0\">\n"
+                + "    <!-- comment with non-ascii characters: \u00e1\u00e9\u00ed\u00f3\u00fa -->\n"
+                + "    <display-name>merge \u00f1</display-name>\n";
+        String footer = "    <welcome-file-list><welcome-file>simple.jsp</welcome-file></welcome-file-list>\n"
+                + "</web-app>\n";
+        Files.write(webapp.resolve("WEB-INF/web.xml"), ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n" + header + footer)
+                .getBytes(StandardCharsets.ISO_8859_1));
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot(webapp.toString())
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.MERGE_WEBXML)
+                .setWebxmlFile(tempDir + "/web.xml")
+                .setWebxmlEncoding(StandardCharsets.UTF_8)
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals(1, results.results());
+        String merged = new String(Files.readAllBytes(Paths.get(tempDir, "web.xml")), StandardCharsets.UTF_8);
+        // original contents are kept and the servlets are injected before the first stop element
+        MatcherAssert.assertThat(merged, CoreMatchers.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + System.lineSeparator() + header));
+        MatcherAssert.assertThat(merged, CoreMatchers.endsWith(footer));
+        MatcherAssert.assertThat(merged, CoreMatchers.containsString("<url-pattern>/simple.jsp</url-pattern>"));
+        Assert.assertTrue("Generated block before the welcome files",
+                merged.indexOf("<!-- End of web include -->") < merged.indexOf("<welcome-file-list>"));
+
+        // without stop elements the servlets are added at the end
+        Files.write(webapp.resolve("WEB-INF/web.xml"), (header + "</web-app>").getBytes(StandardCharsets.UTF_8));
+        results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot(webapp.toString())
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.MERGE_WEBXML)
+                .setWebxmlFile(tempDir + "/web.xml")
+                .setWebxmlEncoding(StandardCharsets.UTF_8)
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        merged = new String(Files.readAllBytes(Paths.get(tempDir, "web.xml")), StandardCharsets.UTF_8);
+        MatcherAssert.assertThat(merged, CoreMatchers.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + System.lineSeparator() + header));
+        MatcherAssert.assertThat(merged, CoreMatchers.containsString("<!-- End of web include -->" + System.lineSeparator()
+                + System.lineSeparator() + "</web-app>"));
+    }
+
+    private JspCResults compileToJar(String outputDir, String jar, int threads) throws Exception {
+        return new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(outputDir)
+                .setUriRoot("samples")
+                .setDeleteSources(false)
+                .setWebxmlLevel(JspC.WEBXML_LEVEL.FRG_WEBXML)
+                .setWebxmlFile(outputDir + "/web-fragment.xml")
+                .setOutputJar(jar)
+                .setThreadCount(threads)
+                .execute();
+    }
+
+    @Test
+    public void testOutputJarTimestamp() throws Exception {
+        Path source = Files.write(Paths.get(tempDir, "Page.java"),
+                "/*\n * Generated by the Jasper component of Apache Tomcat\n * Generated at: 2026-10-17 10:00:00 UTC\n */\nclass Page {}\n"
+                        .getBytes(StandardCharsets.UTF_8));
+        File jarFile = new File(tempDir, "timestamp.jar");
+        try (JspCJarSink sink = new JspCJarSink(jarFile, Instant.parse("2020-05-01T10:20:30Z"))) {
+            sink.add("org/apache/jsp/Page.java", source.toFile());
+        }
+        try (JarFile jar = new JarFile(jarFile)) {
+            JarEntry entry = jar.getJarEntry("org/apache/jsp/Page.java");
+            Assert.assertEquals("UTC local time", LocalDateTime.of(2020, 5, 1, 10, 20, 30), entry.getTimeLocal());
+            MatcherAssert.assertThat(new String(jar.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8),
+                    CoreMatchers.containsString(" * Generated at: 2020-05-01 10:20:30 Z\n */\nclass Page {}"));
+        }
+    }
+
+    @Test
+    public void testOutputJar() throws Exception {
+        Path output1 = Files.createDirectories(Paths.get(tempDir, "output1"));
+        Path output2 = Files.createDirectories(Paths.get(tempDir, "output2"));
+        JspCResults results = compileToJar(output1.toString(), tempDir + "/jar1/precompiled-jsps.jar", 1);
+        Assert.assertFalse("Error result", results.isError());
+        results = compileToJar(output2.toString(), tempDir + "/jar2/precompiled-jsps.jar", 4);
+        Assert.assertFalse("Error result", results.isError());
+        // the same inputs generate the same jar
+        byte[] jar1 = Files.readAllBytes(Paths.get(tempDir, "jar1", "precompiled-jsps.jar"));
+        byte[] jar2 = Files.readAllBytes(Paths.get(tempDir, "jar2", "precompiled-jsps.jar"));
+        Assert.assertArrayEquals("Reproducible jar", jar1, jar2);
+        try (JarFile jar = new JarFile(Paths.get(tempDir, "jar1", "precompiled-jsps.jar").toFile())) {
+            List<JarEntry> entries = jar.stream().collect(Collectors.toList());
+            List<String> names = entries.stream().map(JarEntry::getName).collect(Collectors.toList());
+            Assert.assertEquals("Sorted entries", new ArrayList<>(new TreeSet<>(names)), names);
+            Assert.assertEquals("Same timestamp", 1, entries.stream().map(JarEntry::getTime).distinct().count());
+            MatcherAssert.assertThat(names, CoreMatchers.hasItems("META-INF/web-fragment.xml",
+                    "org/apache/jsp/simple_jsp.class", "org/apache/jsp/simple_jsp.java", "org/apache/jsp/"));
+            // every class in the output directory is in the jar
+            try (Stream<Path> paths = Files.walk(output1)) {
+                for (Path path : paths.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList())) {
+                    String name = output1.relativize(path).toString().replace(File.separatorChar, '/');
+                    Assert.assertNotNull("Class in the jar " + name, jar.getJarEntry(name));
+                    Assert.assertArrayEquals(Files.readAllBytes(path), jar.getInputStream(jar.getJarEntry(name)).readAllBytes());
+                }
+            }
+        }
+    }
+
+    private void assertInMemorySources(boolean batchCompile) throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setDeleteSources(true)
+                .setInMemorySources(true)
+                .setBatchCompile(batchCompile)
+                .setThreadCount(2)
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        Assert.assertEquals("No error", 16, results.results());
+        for (JspCResults.ResultEntry result : results.getResults()) {
+            String pathName = result.getServletName().replace(".", File.separator);
+            Assert.assertTrue("Class file exists", Files.exists(Paths.get(tempDir).resolve(pathName + ".class")));
+            Assert.assertTrue("Java file deleted", Files.notExists(Paths.get(tempDir).resolve(pathName + ".java")));
+        }
+    }
+
+    @Test
+    public void testInMemorySources() throws Exception {
+        assertInMemorySources(false);
+    }
+
+    @Test
+    public void testInMemorySourcesBatchCompile() throws Exception {
+        assertInMemorySources(true);
+    }
+
+    @Test
+    public void testInMemorySourcesKeepGenerated() throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setUriRoot("samples")
+                .setInMemorySources(true)
+                .setBatchCompile(true)
+                .execute();
+        Assert.assertFalse("Error result", results.isError());
+        for (JspCResults.ResultEntry result : results.getResults()) {
+            String pathName = result.getServletName().replace(".", File.separator);
+            Assert.assertTrue("Class file exists", Files.exists(Paths.get(tempDir).resolve(pathName + ".class")));
+            Assert.assertTrue("Java file kept", Files.exists(Paths.get(tempDir).resolve(pathName + ".java")));
+        }
+    }
+
+    @Test
+    public void testInMemorySourcesError() throws Exception {
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setOutputDir(tempDir)
+                .setDeleteSources(true)
+                .setInMemorySources(true)
+                .addPage("samples/error.jsp.err")
+                .addPage("samples/simple.jsp")
+                .execute();
+        Assert.assertTrue("Error result", results.isError());
+        Assert.assertEquals("error = 1", 1, results.errors());
+        JspCResults.ResultEntry error = results.getErrors().get(0);
+        Assert.assertEquals("Error URI", "/error.jsp.err", error.getJspUri());
+        Assert.assertTrue("Error mapped to the JSP", error.getError().getMessage().contains("/error.jsp.err"));
+    }
+
+    @Test
+    public void testDebugLevelPerInstance() throws Exception {
+        Level configured = LogManager.getLogger(JspC.class.getPackageName()).getLevel();
+        JspC debug = new JspC().setDebugLevel(Level.DEBUG);
+        JspC off = new JspC().setDebugLevel(Level.OFF);
+        Assert.assertEquals("Debug instance", Level.DEBUG, debug.getDebugLevel());
+        Assert.assertEquals("Off instance", Level.OFF, off.getDebugLevel());
+        Assert.assertEquals("Default instance", configured, new JspC().getDebugLevel());
+        Assert.assertEquals("Configuration not modified", configured, LogManager.getLogger(JspC.class.getPackageName()).getLevel());
+    }
+
+    private static class CountingSemaphore extends Semaphore {
+        private final AtomicInteger current = new AtomicInteger();
+        private final AtomicInteger max = new AtomicInteger();
+
+        CountingSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void acquireUninterruptibly() {
+            super.acquireUninterruptibly();
+            max.accumulateAndGet(current.incrementAndGet(), Math::max);
+        }
+
+        @Override
+        public void acquire() throws InterruptedException {
+            super.acquire();
+            max.accumulateAndGet(current.incrementAndGet(), Math::max);
+        }
+
+        @Override
+        public void release() {
+            current.decrementAndGet();
+            super.release();
+        }
+    }
+
+    @Test
+    public void testThreadBudget() throws Exception {
+        CountingSemaphore budget = new CountingSemaphore(2);
+        List<CompletableFuture<JspCResults>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String output = Files.createDirectories(Paths.get(tempDir, "output" + i)).toString();
+            boolean batchCompile = i == 2;
+            boolean pipeline = i == 3;
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new JspC()
+                            .setDebugLevel(Level.OFF)
+                            .setOutputDir(output)
+                            .setUriRoot("samples")
+                            .setThreadCount(4)
+                            .setBatchCompile(batchCompile)
+                            .setBatchShards(2)
+                            .setPipeline(pipeline)
+                            .setCompileThreads(2)
+                            .setQueueSize(1)
+                            .setThreadBudget(budget)
+                            .execute();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<JspCResults> future : futures) {
+            JspCResults results = future.get();
+            Assert.assertFalse("Error result", results.isError());
+            Assert.assertEquals("No error", 16, results.results());
+        }
+        Assert.assertTrue("Budget used", budget.max.get() > 0);
+        Assert.assertTrue("Budget respected", budget.max.get() <= 2);
+        Assert.assertEquals("All permits released", 2, budget.availablePermits());
+    }
 }
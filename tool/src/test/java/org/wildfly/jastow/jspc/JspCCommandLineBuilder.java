@@ -60,7 +60,24 @@ public class JspCCommandLineBuilder {
         TARGET("-target", true),
         THREAD_COUNT("-threadCount", true),
         DELETE_SOURCES("-deletesources"),
-        MERGE_XML("-mergexml", true);
+        IN_MEMORY_SOURCES("-inMemorySources"),
+        MERGE_XML("-mergexml", true),
+        INCREMENTAL("-incremental"),
+        MANIFEST("-manifest", true),
+        WHAT_DEPENDS("-whatdepends", true),
+        CACHE("-cache", true),
+        CACHE_SIZE("-cacheSize", true),
+        TLD_CACHE("-tldCache", true),
+        REPORT("-report", true),
+        OUTPUT_JAR("-outputJar", true),
+        BATCH_COMPILE("-batchCompile"),
+        BATCH_SHARDS("-batchShards", true),
+        PIPELINE("-pipeline"),
+        WATCH("-watch"),
+        COMPILE_THREADS("-compileThreads", true),
+        WRITE_THREADS("-writeThreads", true),
+        QUEUE_SIZE("-queueSize", true),
+        VIRTUAL_THREADS("-virtualThreads");
 
         private final String argument;
         private final boolean valueNeeded;
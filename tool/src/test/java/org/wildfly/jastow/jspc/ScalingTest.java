@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.Level;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>End to end scaling tests over synthetic applications created by the
+ * {@link WebappGenerator}. The tests record the compilation throughput
+ * versus the number of threads and pages, and the cost of the resource
+ * lookups versus the number of jars. They fail if the time per page (or
+ * per resource) grows more than {@link #SUPERLINEAR_FACTOR} times between
+ * the smallest and the biggest application.</p>
+ *
+ * <p>The tests are long and they are only executed if the property
+ * <em>jspc.scaling</em> is <em>true</em>. The sizes can be changed with the
+ * properties <em>jspc.scaling.pages</em>, <em>jspc.scaling.threads</em> and
+ * <em>jspc.scaling.jars</em> (comma separated lists).</p>
+ *
+ * @author rmartinc
+ */
+public class ScalingTest {
+
+    private static final double SUPERLINEAR_FACTOR = 3.0;
+
+    private Path tempDir;
+
+    private static int[] getSizes(String property, String defaultValue) {
+        return Arrays.stream(System.getProperty(property, defaultValue).split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue("Scaling tests disabled, use -Djspc.scaling=true", Boolean.getBoolean("jspc.scaling"));
+        tempDir = Files.createTempDirectory("scaling").toFile().getCanonicalFile().toPath();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (tempDir != null) {
+            try (Stream<Path> paths = Files.walk(tempDir)) {
+                paths.sorted(Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+            }
+        }
+    }
+
+    private JspCResults compile(Path webapp, int threads) throws Exception {
+        Path output = Files.createTempDirectory(tempDir, "output");
+        JspCResults results = new JspC()
+                .setDebugLevel(Level.OFF)
+                .setUriRoot(webapp.toString())
+                .setOutputDir(output.toString())
+                .setThreadCount(threads)
+                .execute();
+        if (results.isError()) {
+            JspCResults.ResultEntry error = results.getErrors().get(0);
+            throw new AssertionError("Error compiling " + error.getJspUri() + " in " + webapp, error.getError());
+        }
+        return results;
+    }
+
+    private static int walk(JspCServletContext ctx, String path) {
+        int count = 0;
+        Set<String> paths = ctx.getResourcePaths(path);
+        for (String p : paths) {
+            count += p.endsWith("/") ? walk(ctx, p) : 1;
+        }
+        return count;
+    }
+
+    @Test
+    public void testCompilationScaling() throws Exception {
+        int[] pages = getSizes("jspc.scaling.pages", "200,400,800");
+        int[] threads = getSizes("jspc.scaling.threads", "1,2,4");
+        // warm-up with a small application
+        compile(new WebappGenerator().setPages(20).setJars(2).generate(tempDir.resolve("warmup")), threads[threads.length - 1]);
+
+        double[][] perPage = new double[pages.length][threads.length];
+        System.out.println(String.format("%8s %8s %10s %10s %10s %10s", "pages", "threads", "total(ms)", "scan(ms)", "ms/page", "pages/s"));
+        for (int p = 0; p < pages.length; p++) {
+            Path webapp = new WebappGenerator().setPages(pages[p]).setJars(20).generate(tempDir.resolve("webapp-" + pages[p]));
+            for (int t = 0; t < threads.length; t++) {
+                JspCResults results = compile(webapp, threads[t]);
+                Assert.assertEquals(pages[p], results.total());
+                perPage[p][t] = (double) results.getTime() / results.total();
+                System.out.println(String.format("%8d %8d %10d %10d %10.2f %10.2f", results.total(), threads[t], results.getTime(),
+                        results.getTime(JspCResults.Phase.TLD_SCAN), perPage[p][t], 1000.0 / perPage[p][t]));
+            }
+        }
+        for (int t = 0; t < threads.length; t++) {
+            Assert.assertTrue(String.format("Superlinear compilation with %d threads: %.2f ms/page for %d pages and %.2f ms/page for %d pages",
+                    threads[t], perPage[0][t], pages[0], perPage[pages.length - 1][t], pages[pages.length - 1]),
+                    perPage[pages.length - 1][t] <= perPage[0][t] * SUPERLINEAR_FACTOR);
+        }
+    }
+
+    @Test
+    public void testResourceLookupScaling() throws Exception {
+        int[] jars = getSizes("jspc.scaling.jars", "50,100,200");
+        double[] perResource = new double[jars.length];
+        System.out.println(String.format("%8s %10s %10s %10s %12s", "jars", "resources", "index(ms)", "walk(ms)", "us/resource"));
+        for (int j = 0; j < jars.length; j++) {
+            Path webapp = new WebappGenerator().setPages(100).setJars(jars[j]).setResourcesPerJar(40)
+                    .generate(tempDir.resolve("webapp-jars-" + jars[j]));
+            File[] files = webapp.resolve("WEB-INF/lib").toFile().listFiles();
+            URL[] urls = new URL[files.length];
+            for (int i = 0; i < files.length; i++) {
+                urls[i] = files[i].toURI().toURL();
+            }
+            try (URLClassLoader loader = new URLClassLoader(urls, null)) {
+                JspCServletContext ctx = new JspCServletContext();
+                ctx.setUriRoot(webapp.toString());
+                ctx.setClassLoader(loader);
+                long start = System.nanoTime();
+                ctx.getResourceIndex();
+                long index = System.nanoTime() - start;
+                int resources = walk(ctx, "/");
+                long total = System.nanoTime() - start;
+                perResource[j] = total / 1000.0 / resources;
+                System.out.println(String.format("%8d %10d %10d %10d %12.2f", jars[j], resources, index / 1000000,
+                        (total - index) / 1000000, perResource[j]));
+            }
+        }
+        Assert.assertTrue(String.format("Superlinear resource lookups: %.2f us/resource for %d jars and %.2f us/resource for %d jars",
+                perResource[0], jars[0], perResource[jars.length - 1], jars[jars.length - 1]),
+                perResource[jars.length - 1] <= perResource[0] * SUPERLINEAR_FACTOR);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wildfly.jastow.jspc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * <p>Generates synthetic web applications to test the JspC with big
+ * applications. The shape is configurable:</p>
+ *
+ * <ul>
+ * <li>Number of pages, distributed in a directory tree of the configured
+ * depth (every level has {@link #FANOUT} sub-directories).</li>
+ * <li>Include depth: every page statically includes a chain of fragments
+ * (placed inside <em>WEB-INF/includes</em>) of that length. The chains are
+ * shared by several pages.</li>
+ * <li>Custom tags per page: every page uses that number of tags of one of
+ * the taglibs. The tags are handled by the standard <em>TagSupport</em>,
+ * so no classes are needed.</li>
+ * <li>Number of taglib jars in <em>WEB-INF/lib</em>. Every jar contains a
+ * TLD and some static resources inside <em>META-INF/resources</em> (in
+ * its own directory tree and in a directory shared by all the jars). If
+ * there are no jars the TLD is placed in <em>WEB-INF</em>.</li>
+ * </ul>
+ *
+ * @author rmartinc
+ */
+public class WebappGenerator {
+
+    public static final int FANOUT = 4;
+    public static final int INCLUDE_CHAINS = 10;
+
+    private int pages = 100;
+    private int includeDepth = 2;
+    private int tagsPerPage = 3;
+    private int jars = 10;
+    private int directoryDepth = 3;
+    private int resourcesPerJar = 20;
+
+    public WebappGenerator setPages(int pages) {
+        this.pages = pages;
+        return this;
+    }
+
+    public WebappGenerator setIncludeDepth(int includeDepth) {
+        this.includeDepth = includeDepth;
+        return this;
+    }
+
+    public WebappGenerator setTagsPerPage(int tagsPerPage) {
+        this.tagsPerPage = tagsPerPage;
+        return this;
+    }
+
+    public WebappGenerator setJars(int jars) {
+        this.jars = jars;
+        return this;
+    }
+
+    public WebappGenerator setDirectoryDepth(int directoryDepth) {
+        this.directoryDepth = directoryDepth;
+        return this;
+    }
+
+    public WebappGenerator setResourcesPerJar(int resourcesPerJar) {
+        this.resourcesPerJar = resourcesPerJar;
+        return this;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String taglibUri(int taglib) {
+        return "urn:jspc:generated:taglib-" + taglib;
+    }
+
+    private String tld(int taglib) {
+        StringBuilder sb = new StringBuilder()
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<taglib xmlns=\"https://jakarta.ee/xml/ns/jakartaee\" version=\"3.0\">\n")
+                .append("    <tlib-version>1.0</tlib-version>\n")
+                .append("    <short-name>generated").append(taglib).append("</short-name>\n")
+                .append("    <uri>").append(taglibUri(taglib)).append("</uri>\n");
+        for (int i = 0; i < tagsPerPage; i++) {
+            sb.append("    <tag>\n")
+                    .append("        <name>tag").append(i).append("</name>\n")
+                    .append("        <tag-class>jakarta.servlet.jsp.tagext.TagSupport</tag-class>\n")
+                    .append("        <body-content>empty</body-content>\n")
+                    .append("    </tag>\n");
+        }
+        return sb.append("</taglib>\n").toString();
+    }
+
+    private String page(int idx) {
+        StringBuilder sb = new StringBuilder()
+                .append("<%@page contentType=\"text/html\" pageEncoding=\"UTF-8\"%>\n");
+        if (tagsPerPage > 0) {
+            sb.append("<%@taglib prefix=\"g\" uri=\"").append(taglibUri(jars > 0 ? idx % jars : 0)).append("\"%>\n");
+        }
+        sb.append("<html>\n<body>\n<h1>Page ").append(idx).append("</h1>\n");
+        if (includeDepth > 0) {
+            sb.append("<%@include file=\"/WEB-INF/includes/chain").append(idx % INCLUDE_CHAINS).append("/include0.jspf\"%>\n");
+        }
+        for (int i = 0; i < tagsPerPage; i++) {
+            sb.append("<g:tag").append(i).append("/>\n");
+        }
+        return sb.append("<p>${param.name}</p>\n</body>\n</html>\n").toString();
+    }
+
+    private String include(int chain, int level) {
+        StringBuilder sb = new StringBuilder()
+                .append("<p>Chain ").append(chain).append(" level ").append(level)
+                .append(": ${param.level").append(level).append("}</p>\n");
+        if (level + 1 < includeDepth) {
+            sb.append("<%@include file=\"include").append(level + 1).append(".jspf\"%>\n");
+        }
+        return sb.toString();
+    }
+
+    private String directory(int idx) {
+        StringBuilder sb = new StringBuilder();
+        int value = idx;
+        for (int i = 0; i < directoryDepth; i++) {
+            sb.append("dir").append(value % FANOUT).append('/');
+            value /= FANOUT;
+        }
+        return sb.toString();
+    }
+
+    private static void addEntry(JarOutputStream jar, Set<String> dirs, String name, String content) throws IOException {
+        // add the parent directories like a normal jar
+        for (int idx = name.indexOf('/'); idx >= 0; idx = name.indexOf('/', idx + 1)) {
+            String dir = name.substring(0, idx + 1);
+            if (dirs.add(dir)) {
+                jar.putNextEntry(new JarEntry(dir));
+                jar.closeEntry();
+            }
+        }
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(content.getBytes(StandardCharsets.UTF_8));
+        jar.closeEntry();
+    }
+
+    private void jar(Path file, int idx) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(file))) {
+            Set<String> dirs = new HashSet<>();
+            addEntry(jar, dirs, "META-INF/generated" + idx + ".tld", tld(idx));
+            addEntry(jar, dirs, "META-INF/resources/lib" + idx + "/index.html", "<html><body><h1>Library " + idx + "</h1></body></html>\n");
+            for (int i = 0; i < resourcesPerJar; i++) {
+                String name = i % 2 == 0
+                        ? "META-INF/resources/lib" + idx + "/" + directory(i) + "resource" + i + ".txt"
+                        : "META-INF/resources/shared/lib" + idx + "-resource" + i + ".txt";
+                addEntry(jar, dirs, name, "resource " + i + " of library " + idx + "\n");
+            }
+        }
+    }
+
+    /**
+     * Generates the application in the directory.
+     *
+     * @param webapp The root directory of the application
+     * @return The same directory
+     * @throws IOException Some error writing the files
+     */
+    public Path generate(Path webapp) throws IOException {
+        write(webapp.resolve("WEB-INF/web.xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<web-app xmlns=\"https://jakarta.ee/xml/ns/jakartaee\" version=\"5.0\">\n"
+                + "    <display-name>generated</display-name>\n"
+                + "</web-app>\n");
+        for (int chain = 0; chain < INCLUDE_CHAINS; chain++) {
+            for (int level = 0; level < includeDepth; level++) {
+                write(webapp.resolve("WEB-INF/includes/chain" + chain + "/include" + level + ".jspf"), include(chain, level));
+            }
+        }
+        for (int i = 0; i < pages; i++) {
+            write(webapp.resolve(directory(i) + "page" + i + ".jsp"), page(i));
+        }
+        if (jars == 0) {
+            write(webapp.resolve("WEB-INF/generated0.tld"), tld(0));
+        }
+        for (int i = 0; i < jars; i++) {
+            jar(webapp.resolve("WEB-INF/lib/generated" + i + ".jar"), i);
+        }
+        return webapp;
+    }
+}